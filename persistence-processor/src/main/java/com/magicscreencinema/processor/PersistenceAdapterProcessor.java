@@ -0,0 +1,361 @@
+package com.magicscreencinema.processor;
+
+import javax.annotation.processing.*;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.*;
+import javax.lang.model.type.DeclaredType;
+import javax.lang.model.type.TypeKind;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+import java.io.IOException;
+import java.io.Writer;
+import java.util.*;
+
+/**
+ * Generates a json adapter for every {@code @ElementCollection} class, so the persistence layer
+ * reads and writes its fields without reflection. The adapter of {@code pkg.Hall} is
+ * {@code pkg.Hall_PersistenceAdapter}, extending {@code GeneratedEntityAdapter}, which the
+ * persistence layer picks up at runtime when it is on the class path.
+ * <p>
+ * Classes the generated code can not reach, such as private nested classes, are skipped and keep
+ * being serialized through reflection.
+ */
+@SupportedAnnotationTypes(PersistenceAdapterProcessor.ELEMENT_COLLECTION)
+public class PersistenceAdapterProcessor extends AbstractProcessor {
+    static final String ELEMENT_COLLECTION = "com.magicscreencinema.persistence.declaration.ElementCollection";
+    static final String BASE_CLASS = "com.magicscreencinema.persistence.GeneratedEntityAdapter";
+    static final String SUFFIX = "_PersistenceAdapter";
+
+    private Elements elements;
+    private Types types;
+    private Messager messager;
+
+    @Override
+    public synchronized void init(ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        this.elements = processingEnv.getElementUtils();
+        this.types = processingEnv.getTypeUtils();
+        this.messager = processingEnv.getMessager();
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment roundEnv) {
+        TypeElement elementCollection = elements.getTypeElement(ELEMENT_COLLECTION);
+        if (elementCollection == null) return false;
+
+        for (TypeElement type : ElementFilter.typesIn(roundEnv.getElementsAnnotatedWith(elementCollection))) {
+            if (type.getKind() != ElementKind.CLASS) continue;
+            String reason = unreachable(type);
+            if (reason != null) {
+                messager.printMessage(Diagnostic.Kind.NOTE, "No persistence adapter generated for " + type + ", " + reason, type);
+                continue;
+            }
+            try {
+                generate(type);
+            } catch (IOException e) {
+                messager.printMessage(Diagnostic.Kind.ERROR, "Could not write persistence adapter: " + e.getMessage(), type);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * why the generated adapter could not use the class, or null when it can
+     */
+    private String unreachable(TypeElement type) {
+        if (type.getModifiers().contains(Modifier.ABSTRACT)) return "it is abstract";
+        for (Element current = type; current instanceof TypeElement; current = current.getEnclosingElement()) {
+            if (current.getModifiers().contains(Modifier.PRIVATE)) return "it is not visible to its package";
+            if (current.getEnclosingElement() instanceof TypeElement && !current.getModifiers().contains(Modifier.STATIC)) {
+                return "it is an inner class";
+            }
+        }
+        for (TypeElement declaring : hierarchy(type)) {
+            if (!isAccessibleFrom(declaring, packageOf(type))) return "superclass " + declaring + " is not accessible";
+        }
+        return null;
+    }
+
+    private void generate(TypeElement type) throws IOException {
+        String packageName = packageOf(type);
+        String typeName = type.getQualifiedName().toString();
+        String adapterName = binaryName(type).substring(packageName.isEmpty() ? 0 : packageName.length() + 1).replace('$', '_') + SUFFIX;
+
+        List<PersistentField> fields = new ArrayList<>();
+        Set<String> handleNames = new HashSet<>();
+        for (TypeElement declaring : hierarchy(type)) {
+            for (VariableElement field : ElementFilter.fieldsIn(declaring.getEnclosedElements())) {
+                if (field.getModifiers().contains(Modifier.STATIC)) continue;
+                fields.add(new PersistentField(field, declaring, packageName, handleName(field, handleNames)));
+            }
+        }
+        // like the runtime metadata, a field shadows the fields of the same name higher up
+        Map<String, PersistentField> readable = new LinkedHashMap<>();
+        for (PersistentField field : fields) {
+            PersistentField shadowed = readable.put(field.name(), field);
+            if (shadowed != null) {
+                // entity.name would only reach the lowest of them
+                shadowed.direct = false;
+                field.direct = false;
+            }
+        }
+
+        StringBuilder source = new StringBuilder();
+        if (!packageName.isEmpty()) source.append("package ").append(packageName).append(";\n\n");
+        source.append("import com.google.gson.stream.JsonReader;\n")
+                .append("import com.google.gson.stream.JsonWriter;\n\n")
+                .append("import java.io.IOException;\n")
+                .append("import java.lang.invoke.MethodHandles;\n")
+                .append("import java.lang.invoke.VarHandle;\n\n")
+                .append("@javax.annotation.processing.Generated(\"").append(getClass().getName()).append("\")\n")
+                .append("public final class ").append(adapterName).append(" extends ").append(BASE_CLASS).append('<').append(typeName).append("> {\n");
+
+        for (PersistentField field : fields) {
+            if (field.usesHandle()) source.append("    private static final VarHandle ").append(field.handle).append(";\n");
+        }
+        if (fields.stream().anyMatch(PersistentField::usesHandle)) {
+            source.append("\n    static {\n        try {\n");
+            Map<TypeElement, String> lookups = new HashMap<>();
+            for (PersistentField field : fields) {
+                if (!field.usesHandle()) continue;
+                String declaring = field.declaring.getQualifiedName() + ".class";
+                String lookup = lookups.get(field.declaring);
+                if (lookup == null) {
+                    lookup = "lookup" + lookups.size();
+                    lookups.put(field.declaring, lookup);
+                    source.append("            MethodHandles.Lookup ").append(lookup).append(" = MethodHandles.privateLookupIn(")
+                            .append(declaring).append(", MethodHandles.lookup());\n");
+                }
+                source.append("            ").append(field.handle).append(" = ").append(lookup).append(".unreflectVarHandle(")
+                        .append(declaring).append(".getDeclaredField(\"").append(field.name()).append("\"));\n");
+            }
+            source.append("        } catch (ReflectiveOperationException e) {\n")
+                    .append("            throw new ExceptionInInitializerError(e);\n")
+                    .append("        }\n    }\n");
+        }
+
+        source.append("\n    public ").append(adapterName).append("() {\n")
+                .append("        super(").append(typeName).append(".class);\n    }\n");
+
+        if (hasReachableNoArgsConstructor(type)) {
+            source.append("\n    @Override\n    protected ").append(typeName).append(" newInstance() {\n")
+                    .append("        return new ").append(typeName).append("();\n    }\n");
+        }
+
+        source.append("\n    @Override\n    protected void writeFields(JsonWriter writer, ").append(typeName).append(" entity) throws IOException {\n");
+        for (PersistentField field : fields) {
+            source.append("        writer.name(\"").append(field.name()).append("\");\n");
+            source.append("        ").append(writeStatement(field)).append('\n');
+        }
+        source.append("    }\n");
+
+        source.append("\n    @Override\n    protected boolean readField(JsonReader reader, ").append(typeName)
+                .append(" entity, String name) throws IOException {\n");
+        List<PersistentField> plain = readable.values().stream().filter(field -> !field.relation).toList();
+        if (plain.isEmpty()) {
+            source.append("        return false;\n    }\n}\n");
+        } else {
+            source.append("        switch (name) {\n");
+            for (PersistentField field : plain) {
+                source.append("            case \"").append(field.name()).append("\" -> ").append(readStatement(field)).append('\n');
+            }
+            source.append("            default -> {\n                return false;\n            }\n        }\n        return true;\n    }\n}\n");
+        }
+
+        JavaFileObject file = processingEnv.getFiler().createSourceFile(
+                (packageName.isEmpty() ? "" : packageName + ".") + adapterName, type);
+        try (Writer writer = file.openWriter()) {
+            writer.write(source.toString());
+        }
+    }
+
+    private String writeStatement(PersistentField field) {
+        String value = field.getter();
+        String name = '"' + field.name() + '"';
+        if (field.relation) return "writeReference(writer, " + name + ", entity, " + value + ");";
+        return switch (field.kind) {
+            case INT, LONG, SHORT, BYTE -> "writer.value((long) " + value + ");";
+            case DOUBLE -> "writer.value((double) " + value + ");";
+            case BOOLEAN -> "writer.value((boolean) " + value + ");";
+            case STRING -> "writer.value((String) " + value + ");";
+            case BOXED_NUMBER -> "writer.value((Number) " + value + ");";
+            case BOXED_BOOLEAN -> "writer.value((Boolean) " + value + ");";
+            case OTHER -> "writeValue(writer, " + name + ", " + value + ");";
+        };
+    }
+
+    private String readStatement(PersistentField field) {
+        String read = switch (field.kind) {
+            case INT -> "reader.nextInt()";
+            case LONG -> "reader.nextLong()";
+            case SHORT -> "(short) reader.nextInt()";
+            case BYTE -> "(byte) reader.nextInt()";
+            case DOUBLE -> "reader.nextDouble()";
+            case BOOLEAN -> "reader.nextBoolean()";
+            case STRING -> "readString(reader)";
+            case BOXED_BOOLEAN -> "readBoolean(reader)";
+            case BOXED_NUMBER -> switch (field.erasure) {
+                case "java.lang.Integer" -> "readInteger(reader)";
+                case "java.lang.Long" -> "readLong(reader)";
+                default -> "readDouble(reader)";
+            };
+            case OTHER -> "readValue(reader, \"" + field.name() + "\")";
+        };
+        if (field.isFinal()) return "setReflectively(entity, \"" + field.name() + "\", " + read + ");";
+        if (field.usesHandle()) return field.handle + ".set(entity, " + read + ");";
+        String cast = field.kind == Kind.OTHER ? "(" + field.erasure + ") " : "";
+        return "entity." + field.name() + " = " + cast + read + ";";
+    }
+
+    private enum Kind {
+        INT, LONG, SHORT, BYTE, DOUBLE, BOOLEAN, STRING, BOXED_NUMBER, BOXED_BOOLEAN, OTHER
+    }
+
+    private final class PersistentField {
+        private final VariableElement element;
+        private final TypeElement declaring;
+        private final String handle;
+        private final String erasure;
+        private final boolean relation;
+        private final Kind kind;
+        private boolean direct;
+
+        private PersistentField(VariableElement element, TypeElement declaring, String adapterPackage, String handle) {
+            this.element = element;
+            this.declaring = declaring;
+            this.handle = handle;
+            TypeMirror type = element.asType();
+            this.erasure = types.erasure(type).toString();
+            this.relation = isElementCollection(type) || isCollectionOfElementCollection(type);
+            this.kind = kindOf(type);
+            // direct access needs the field and its type to be visible from the adapter's package
+            this.direct = !element.getModifiers().contains(Modifier.PRIVATE)
+                    && packageOf(declaring).equals(adapterPackage)
+                    && isAccessibleType(types.erasure(type), adapterPackage);
+        }
+
+        String name() {
+            return element.getSimpleName().toString();
+        }
+
+        boolean isFinal() {
+            return element.getModifiers().contains(Modifier.FINAL);
+        }
+
+        boolean usesHandle() {
+            return !direct;
+        }
+
+        String getter() {
+            return direct ? "entity." + name() : switch (kind) {
+                case INT, SHORT, BYTE -> "(int) " + handle + ".get(entity)";
+                case LONG -> "(long) " + handle + ".get(entity)";
+                case DOUBLE -> "(double) " + handle + ".get(entity)";
+                case BOOLEAN -> "(boolean) " + handle + ".get(entity)";
+                default -> "(Object) " + handle + ".get(entity)";
+            };
+        }
+
+        private Kind kindOf(TypeMirror type) {
+            return switch (type.getKind()) {
+                case INT -> Kind.INT;
+                case LONG -> Kind.LONG;
+                case SHORT -> Kind.SHORT;
+                case BYTE -> Kind.BYTE;
+                case DOUBLE -> Kind.DOUBLE;
+                case BOOLEAN -> Kind.BOOLEAN;
+                case DECLARED -> switch (erasure) {
+                    case "java.lang.String" -> Kind.STRING;
+                    case "java.lang.Integer", "java.lang.Long", "java.lang.Double" -> Kind.BOXED_NUMBER;
+                    case "java.lang.Boolean" -> Kind.BOXED_BOOLEAN;
+                    default -> Kind.OTHER;
+                };
+                // floats and chars keep gson's formatting
+                default -> Kind.OTHER;
+            };
+        }
+    }
+
+    private boolean isElementCollection(TypeMirror type) {
+        if (type.getKind() != TypeKind.DECLARED) return false;
+        Element element = ((DeclaredType) type).asElement();
+        for (AnnotationMirror annotation : element.getAnnotationMirrors()) {
+            if (((TypeElement) annotation.getAnnotationType().asElement()).getQualifiedName().contentEquals(ELEMENT_COLLECTION)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean isCollectionOfElementCollection(TypeMirror type) {
+        if (type.getKind() != TypeKind.DECLARED) return false;
+        TypeElement collection = elements.getTypeElement("java.util.Collection");
+        if (!types.isAssignable(types.erasure(type), types.erasure(collection.asType()))) return false;
+        List<? extends TypeMirror> arguments = ((DeclaredType) type).getTypeArguments();
+        return !arguments.isEmpty() && isElementCollection(arguments.getFirst());
+    }
+
+    private boolean hasReachableNoArgsConstructor(TypeElement type) {
+        for (ExecutableElement constructor : ElementFilter.constructorsIn(type.getEnclosedElements())) {
+            if (constructor.getParameters().isEmpty()) return !constructor.getModifiers().contains(Modifier.PRIVATE);
+        }
+        return false;
+    }
+
+    /**
+     * the class and its superclasses below Object, from the top of the hierarchy down
+     */
+    private List<TypeElement> hierarchy(TypeElement type) {
+        List<TypeElement> hierarchy = new ArrayList<>();
+        for (TypeElement current = type; current != null && !current.getQualifiedName().contentEquals("java.lang.Object"); ) {
+            hierarchy.addFirst(current);
+            TypeMirror superclass = current.getSuperclass();
+            current = superclass.getKind() == TypeKind.DECLARED ? (TypeElement) ((DeclaredType) superclass).asElement() : null;
+        }
+        return hierarchy;
+    }
+
+    private boolean isAccessibleType(TypeMirror type, String fromPackage) {
+        if (type.getKind() == TypeKind.ARRAY) {
+            return isAccessibleType(((javax.lang.model.type.ArrayType) type).getComponentType(), fromPackage);
+        }
+        if (type.getKind() != TypeKind.DECLARED) return type.getKind().isPrimitive();
+        return isAccessibleFrom((TypeElement) ((DeclaredType) type).asElement(), fromPackage);
+    }
+
+    private boolean isAccessibleFrom(TypeElement type, String fromPackage) {
+        boolean samePackage = packageOf(type).equals(fromPackage);
+        for (Element current = type; current instanceof TypeElement; current = current.getEnclosingElement()) {
+            Set<Modifier> modifiers = current.getModifiers();
+            if (modifiers.contains(Modifier.PRIVATE)) return false;
+            if (!samePackage && !modifiers.contains(Modifier.PUBLIC)) return false;
+        }
+        return true;
+    }
+
+    private String packageOf(Element element) {
+        return elements.getPackageOf(element).getQualifiedName().toString();
+    }
+
+    private String binaryName(TypeElement type) {
+        return elements.getBinaryName(type).toString();
+    }
+
+    private static String handleName(VariableElement field, Set<String> taken) {
+        String base = field.getSimpleName().toString().replaceAll("([a-z0-9])([A-Z])", "$1_$2").toUpperCase(Locale.ROOT);
+        String name = base;
+        for (int i = 2; !taken.add(name); i++) {
+            name = base + "_" + i;
+        }
+        return name;
+    }
+}
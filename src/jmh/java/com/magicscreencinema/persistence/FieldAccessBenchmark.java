@@ -0,0 +1,72 @@
+package com.magicscreencinema.persistence;
+
+import com.magicscreencinema.domain.enums.AgeRestrictionEnum;
+import com.magicscreencinema.domain.model.Movie;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.reflect.Field;
+import java.time.LocalDate;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the method handle accessors of {@link EntityMetadata} with plain reflection, for one
+ * field and for the field loop of an entity as the codecs run it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FieldAccessBenchmark {
+    private Movie movie;
+    private Field[] fields;
+    private List<EntityMetadata.FieldMetadata> metadata;
+    private int name;
+    private int duration;
+
+    @Setup
+    public void setUp() {
+        movie = new Movie("Dune", AgeRestrictionEnum.TWELVE, "Desert planet", LocalDate.now().plusDays(30), 155);
+        metadata = EntityMetadata.of(Movie.class).fields();
+        fields = metadata.stream().map(EntityMetadata.FieldMetadata::field).toArray(Field[]::new);
+        for (int i = 0; i < fields.length; i++) {
+            if (fields[i].getName().equals("name")) name = i;
+            if (fields[i].getName().equals("movieDuration")) duration = i;
+        }
+    }
+
+    @Benchmark
+    public Object readFieldReflection() throws IllegalAccessException {
+        return fields[name].get(movie);
+    }
+
+    @Benchmark
+    public Object readFieldMethodHandle() {
+        return metadata.get(name).get(movie);
+    }
+
+    @Benchmark
+    public void readEntityReflection(Blackhole blackhole) throws IllegalAccessException {
+        for (Field field : fields) blackhole.consume(field.get(movie));
+    }
+
+    @Benchmark
+    public void readEntityMethodHandle(Blackhole blackhole) {
+        for (EntityMetadata.FieldMetadata field : metadata) blackhole.consume(field.get(movie));
+    }
+
+    @Benchmark
+    public void writeEntityReflection() throws IllegalAccessException {
+        fields[name].set(movie, "Dune");
+        fields[duration].set(movie, 155L);
+    }
+
+    @Benchmark
+    public void writeEntityMethodHandle() {
+        metadata.get(name).set(movie, "Dune");
+        metadata.get(duration).set(movie, 155L);
+    }
+}
@@ -4,6 +4,7 @@ import com.magicscreencinema.domain.exception.InvalidDiscountException;
 import com.magicscreencinema.domain.validation.FieldValidator;
 import com.magicscreencinema.persistence.declaration.ElementCollection;
 import com.magicscreencinema.persistence.declaration.Id;
+import com.magicscreencinema.persistence.declaration.Indexed;
 
 import java.util.UUID;
 
@@ -12,6 +13,7 @@ public class Discount {
     @Id
     private UUID id;
     private double discountAmount;
+    @Indexed(unique = true)
     private String promoCode;
 
     public Discount(double discountAmount, String promoCode) {
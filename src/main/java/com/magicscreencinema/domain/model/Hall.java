@@ -17,6 +17,8 @@ public class Hall {
     private int rowWidth;
     @OneToMany(cascade = {Cascade.SAVE, Cascade.DELETE})
     private List<Seat> seats;
+    @Version
+    private long version;
 
     private Hall() {
     }
@@ -73,4 +75,8 @@ public class Hall {
     public UUID getId() {
         return id;
     }
+
+    public long getVersion() {
+        return version;
+    }
 }
@@ -4,6 +4,8 @@ import com.magicscreencinema.domain.enums.AgeRestrictionEnum;
 import com.magicscreencinema.domain.validation.FieldValidator;
 import com.magicscreencinema.persistence.declaration.ElementCollection;
 import com.magicscreencinema.persistence.declaration.Id;
+import com.magicscreencinema.persistence.declaration.Indexed;
+import com.magicscreencinema.persistence.declaration.Version;
 
 import java.time.LocalDate;
 import java.util.UUID;
@@ -12,11 +14,14 @@ import java.util.UUID;
 public class Movie {
     @Id
     private UUID id;
+    @Indexed
     private String name;
     private AgeRestrictionEnum ageRestriction;
     private String description;
     private LocalDate premiereDate;
     private long movieDuration;
+    @Version
+    private long version;
 
     public Movie(String name, AgeRestrictionEnum ageRestriction, String description, LocalDate premiereDate, long movieDuration) {
         this.name = FieldValidator.validateNullOrEmptyString(name, "Name");
@@ -73,4 +78,8 @@ public class Movie {
     public UUID getId() {
         return id;
     }
+
+    public long getVersion() {
+        return version;
+    }
 }
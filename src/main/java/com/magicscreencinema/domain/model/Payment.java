@@ -5,6 +5,7 @@ import com.magicscreencinema.domain.enums.PaymentStatusEnum;
 import com.magicscreencinema.domain.validation.FieldValidator;
 import com.magicscreencinema.persistence.declaration.ElementCollection;
 import com.magicscreencinema.persistence.declaration.Id;
+import com.magicscreencinema.persistence.declaration.Indexed;
 
 import java.util.UUID;
 
@@ -14,6 +15,7 @@ public class Payment {
     private UUID id;
     private PaymentMethodEnum paymentMethod;
     private PaymentStatusEnum paymentStatus;
+    @Indexed(unique = true)
     private String transactionId;
 
     public Payment(PaymentMethodEnum paymentMethod, PaymentStatusEnum paymentStatus, String transactionId) {
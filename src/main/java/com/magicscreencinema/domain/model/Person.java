@@ -3,6 +3,7 @@ package com.magicscreencinema.domain.model;
 import com.magicscreencinema.domain.validation.FieldValidator;
 import com.magicscreencinema.persistence.declaration.ElementCollection;
 import com.magicscreencinema.persistence.declaration.Id;
+import com.magicscreencinema.persistence.declaration.Indexed;
 
 import java.time.LocalDate;
 import java.util.Optional;
@@ -15,6 +16,7 @@ public abstract class Person {
     private String firstName;
     private String lastName;
     private String phoneNumber;
+    @Indexed(unique = true)
     private String email;
     private String password;
     private LocalDate birthDate;
@@ -14,6 +14,7 @@ import java.util.UUID;
 public class Reservation {
     @Id
     private UUID reservationNumber;
+    @RangeIndexed
     private LocalDateTime reservationTime;
     private ReservationStatusEnum status;
 
@@ -4,6 +4,7 @@ import com.magicscreencinema.domain.validation.FieldValidator;
 import com.magicscreencinema.persistence.declaration.ElementCollection;
 import com.magicscreencinema.persistence.declaration.Id;
 import com.magicscreencinema.persistence.declaration.ManyToOne;
+import com.magicscreencinema.persistence.declaration.RangeIndexed;
 
 import java.time.Duration;
 import java.time.LocalDateTime;
@@ -13,6 +14,7 @@ import java.util.UUID;
 public class Seance {
     @Id
     private UUID id;
+    @RangeIndexed
     private LocalDateTime startTime;
     private boolean isCancelled;
     private static final int ADVERTISEMENTS_TIME = 20;
@@ -3,6 +3,7 @@ package com.magicscreencinema.domain.model;
 import com.magicscreencinema.domain.validation.FieldValidator;
 import com.magicscreencinema.persistence.declaration.ElementCollection;
 import com.magicscreencinema.persistence.declaration.Id;
+import com.magicscreencinema.persistence.declaration.RangeIndexed;
 
 import java.time.LocalDateTime;
 import java.util.UUID;
@@ -11,6 +12,7 @@ import java.util.UUID;
 public class Shift {
     @Id
     private UUID id;
+    @RangeIndexed
     private LocalDateTime startTime;
     private LocalDateTime endTime;
 
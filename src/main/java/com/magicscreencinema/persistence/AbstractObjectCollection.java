@@ -0,0 +1,901 @@
+package com.magicscreencinema.persistence;
+
+import com.magicscreencinema.persistence.declaration.*;
+import com.magicscreencinema.persistence.exception.CouldNotPersistObjectException;
+import com.magicscreencinema.persistence.exception.CouldNotReadObjectException;
+import com.magicscreencinema.persistence.exception.InvalidCursorException;
+import com.magicscreencinema.persistence.exception.InvalidUpdateException;
+import com.magicscreencinema.persistence.exception.MissingIndexException;
+import com.magicscreencinema.persistence.exception.MissingVersionException;
+import com.magicscreencinema.persistence.exception.NotACollectionException;
+import com.magicscreencinema.persistence.exception.OptimisticLockException;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Entity (de)serialization and relation handling shared by all storage engines.
+ * Subclasses only decide where the serialized records live.
+ */
+abstract class AbstractObjectCollection<T> implements ObjectCollection<T> {
+    private static final byte CURSOR_VERSION = 1;
+    private static final int CURSOR_SIZE = 1 + 2 * Long.BYTES;
+    private static final int UPDATE_ATTEMPTS = 5;
+
+    protected final Class<T> objectClass;
+    protected final EntityMetadata metadata;
+    protected final String collectionName;
+    protected final JsonEntityCodec<T> jsonCodec;
+    protected final BinaryEntityCodec<T> binaryCodec;
+    protected final EntityCodec<T> codec;
+    protected final PrimaryIndex index = new PrimaryIndex();
+    protected final RecordCache cache;
+    final SecondaryIndexes secondaryIndexes;
+    /**
+     * held by a committing transaction from checking its unique values until they are written
+     */
+    final ReentrantLock uniqueLock = new ReentrantLock();
+
+    protected AbstractObjectCollection(Class<T> objectClass) {
+        this.objectClass = objectClass;
+        if (!objectClass.isAnnotationPresent(ElementCollection.class)) {
+            throw new NotACollectionException("The class " + objectClass.getName() + " is not annotated with @Collection");
+        }
+        this.metadata = EntityMetadata.of(objectClass);
+        collectionName = objectClass.getAnnotation(ElementCollection.class).name();
+        jsonCodec = new JsonEntityCodec<>(objectClass);
+        binaryCodec = new BinaryEntityCodec<>(objectClass, jsonCodec.gson());
+        codec = switch (PersistenceConfig.entityFormat(collectionName)) {
+            case JSON -> jsonCodec;
+            case BINARY -> binaryCodec;
+        };
+        cache = new RecordCache(PersistenceConfig.cacheCapacity(collectionName),
+                PersistenceConfig.cacheExpireAfterWriteMillis(collectionName));
+        secondaryIndexes = new SecondaryIndexes(this);
+    }
+
+    protected abstract void writeRecord(UUID id, byte[] record) throws IOException;
+
+    protected abstract Optional<byte[]> readRecord(UUID id) throws IOException;
+
+    protected abstract boolean removeRecord(UUID id) throws IOException;
+
+    /**
+     * opens the record for reading, by default over the bytes returned by readRecord
+     */
+    protected Optional<InputStream> openRecord(UUID id) throws IOException {
+        return readRecord(id).map(ByteArrayInputStream::new);
+    }
+
+    /**
+     * brings the primary index up to date with the storage if it was changed behind our back
+     */
+    protected abstract void refreshIndex();
+
+    /**
+     * writes the primary index file if it changed since it was last stored
+     */
+    abstract void persistIndex() throws IOException;
+
+    /**
+     * writes the primary index and the secondary indexes that changed since they were last stored
+     */
+    void persistIndexes() throws IOException {
+        persistIndex();
+        secondaryIndexes.store();
+    }
+
+    /**
+     * loads the secondary indexes, rebuilding them from the records when their files are missing
+     */
+    void openSecondaryIndexes() throws IOException {
+        secondaryIndexes.open();
+    }
+
+    /**
+     * called by storage engines after they rebuilt the primary index from the stored records
+     */
+    protected void indexRebuilt() throws IOException {
+        secondaryIndexes.primaryIndexRebuilt();
+    }
+
+    /**
+     * Called when writeRecord failed. Removes what the failed write left that is no record, the
+     * previous record of the id is kept, the write-ahead log still holds the new one.
+     */
+    protected void discardRecord(UUID id) {
+    }
+
+    /**
+     * file the record of the given id ends up in, made durable by write-ahead log checkpoints
+     */
+    abstract Path storagePath(UUID id);
+
+    /**
+     * Saves the object whatever was stored meanwhile, the last writer wins. A @Version field is
+     * incremented from the version the object has, use {@link #saveIfVersion} to detect conflicts.
+     */
+    @Override
+    public void save(T object) {
+        save(object, false);
+    }
+
+    private void save(T object, boolean checkVersion) {
+        if (object == null) return;
+        UUID id = metadata.extractId(object);
+
+        try {
+            PersistenceTransaction.execute(transaction -> {
+                stage(transaction, object, id, checkVersion);
+                return null;
+            });
+        } catch (IOException e) {
+            throw new CouldNotPersistObjectException("Could not persist object of class " + objectClass.getName(), e);
+        } finally {
+            PersistenceContext.removeFromContext(objectClass, id);
+        }
+    }
+
+    /**
+     * Saves the object only if the stored record still has the version the object was read with,
+     * and increments the version. A conflict is returned as a failed result holding an
+     * {@link OptimisticLockException} instead of being thrown; nothing waits for other writers
+     * except for the short commit of the record itself. Inside an enclosing transaction a
+     * conflict with another thread only shows when that transaction commits.
+     */
+    @Override
+    public BatchResult saveIfVersion(T object) {
+        if (!metadata.hasVersionField()) {
+            throw new MissingVersionException("No field with @Version annotation found in class " + objectClass.getName());
+        }
+        UUID id = metadata.extractId(object);
+        try {
+            save(object, true);
+            return BatchResult.applied(id);
+        } catch (OptimisticLockException e) {
+            return BatchResult.failed(id, e);
+        }
+    }
+
+    /**
+     * The object is encoded once, which also saves its relations and cascades, and compared with
+     * what is stored before its version is incremented, so an unchanged versioned object is not
+     * written again either. The new version of a changed one is patched into the record.
+     */
+    private void stage(PersistenceTransaction transaction, T object, UUID id, boolean checkVersion) throws IOException {
+        byte[] record = codec.encode(object);
+        if (isUnchanged(transaction, id, record)) return;
+        if (metadata.hasVersionField()) {
+            long version = stageVersion(transaction, object, id, checkVersion);
+            record = codec.patch(record, Map.of(metadata.versionField().name(), versionValue(version)));
+        }
+        secondaryIndexes.claim(transaction, object, id);
+        transaction.put(this, id, record);
+    }
+
+    /**
+     * Whether the record is the one cached for the id, so saving it would write nothing new.
+     * Records changed outside of the persistence layer are not noticed until the object itself
+     * changes, objects whose record is not cached are always written.
+     */
+    private boolean isUnchanged(PersistenceTransaction transaction, UUID id, byte[] record) {
+        Long fingerprint = cache.fingerprint(id);
+        return fingerprint != null
+                && fingerprint == Fingerprint.of(record)
+                && transaction.pending(this, id) == null
+                && existsById(id);
+    }
+
+    /**
+     * Increments the version the object has in memory. When checked, that version is compared with
+     * a record the same transaction already wrote, or else by the commit with the stored record.
+     * Unchecked, nothing stored is read.
+     */
+    private long stageVersion(PersistenceTransaction transaction, T object, UUID id, boolean check) throws IOException {
+        long expected = metadata.version(object);
+        if (check) {
+            PersistenceTransaction.PendingRecord pending = transaction.pending(this, id);
+            if (pending == null) {
+                transaction.expectVersion(this, id, expected);
+            } else {
+                long current = pending.record() == null ? 0 : versionOf(pending.record());
+                if (current != expected) throw versionConflict(id, expected, current);
+            }
+        }
+        metadata.setVersion(object, expected + 1);
+        transaction.onRollback(() -> metadata.setVersion(object, expected));
+        return expected + 1;
+    }
+
+    /**
+     * the version boxed as the type of the @Version field
+     */
+    private Object versionValue(long version) {
+        Class<?> versionType = metadata.versionField().type();
+        return versionType == int.class || versionType == Integer.class ? Math.toIntExact(version) : version;
+    }
+
+    /**
+     * called by the commit while it holds the record's lock
+     */
+    void checkVersion(UUID id, long expected) throws IOException {
+        Optional<byte[]> record = readCachedRecord(id);
+        long current = record.isEmpty() ? 0 : versionOf(record.get());
+        if (current != expected) throw versionConflict(id, expected, current);
+    }
+
+    /**
+     * called by the commit while it holds the record's lock
+     */
+    void checkRecord(UUID id, long fingerprint) throws IOException {
+        Long cached = cache.fingerprint(id);
+        if (cached != null && cached == fingerprint) return;
+        Optional<byte[]> record = readCachedRecord(id);
+        if (record.isEmpty() || Fingerprint.of(record.get()) != fingerprint) {
+            throw new OptimisticLockException("Object of class " + objectClass.getName() + " with id " + id + " was changed concurrently");
+        }
+    }
+
+    private long versionOf(byte[] record) throws IOException {
+        String versionName = metadata.versionField().name();
+        Object version = readFields(record, Set.of(versionName)).get(versionName);
+        return version == null ? 0 : ((Number) version).longValue();
+    }
+
+    private OptimisticLockException versionConflict(UUID id, long expected, long current) {
+        return new OptimisticLockException("Object of class " + objectClass.getName() + " with id " + id
+                + " was changed concurrently, expected version " + expected + " but found " + current);
+    }
+
+    /**
+     * Writes the record, then updates the cache and the secondary indexes. If the write fails the
+     * indexes keep describing the previous record, which stays in place, and the cache drops it.
+     */
+    void applyPut(UUID id, byte[] record) {
+        // a save racing with this write must not be skipped as unchanged against the old record
+        cache.invalidate(id);
+        try {
+            writeRecord(id, record);
+        } catch (IOException e) {
+            discardRecord(id);
+            throw new CouldNotPersistObjectException("Could not persist object of class " + objectClass.getName(), e);
+        }
+        cache.put(id, record);
+        try {
+            secondaryIndexes.update(id, record);
+        } catch (IOException e) {
+            removeFromSecondaryIndexes(id);
+            throw new CouldNotPersistObjectException("Could not index object of class " + objectClass.getName(), e);
+        }
+    }
+
+    void applyDelete(UUID id) throws IOException {
+        cache.invalidate(id);
+        secondaryIndexes.remove(id);
+        removeRecord(id);
+    }
+
+    private void removeFromSecondaryIndexes(UUID id) {
+        try {
+            secondaryIndexes.remove(id);
+        } catch (IOException _) {
+            // the index file was already deleted, the index is rebuilt when the collection is opened next time
+        }
+    }
+
+    /**
+     * Objects whose indexed field has the given value, looked up in the secondary index of that
+     * field. Enum values match by name, numbers after conversion to the type of the field, other
+     * values by their string form.
+     */
+    @Override
+    public List<T> findBy(String fieldName, Object value) {
+        SecondaryIndex secondaryIndex = secondaryIndexes.get(fieldName);
+        if (secondaryIndex == null) {
+            throw new MissingIndexException("Field " + fieldName + " of class " + objectClass.getName() + " is not annotated with @Indexed");
+        }
+        refreshIndex();
+        List<UUID> ids = new ArrayList<>(secondaryIndex.find(secondaryIndex.lookupKey(value)));
+        ids.sort(PrimaryIndex.ID_ORDER);
+        return new ArrayList<>(findAllById(ids).values());
+    }
+
+    @Override
+    public Query<T> query() {
+        return new Query<>(this);
+    }
+
+    /**
+     * Objects whose range indexed field lies in [from, to), streamed in key order. Only the keys
+     * inside the range are visited and only the matching records are read. A null bound leaves
+     * that side of the range open.
+     */
+    @Override
+    public Stream<T> findRange(String fieldName, Object from, Object to) {
+        RangeIndex rangeIndex = secondaryIndexes.range(fieldName);
+        if (rangeIndex == null) {
+            throw new MissingIndexException("Field " + fieldName + " of class " + objectClass.getName() + " is not annotated with @RangeIndexed");
+        }
+        refreshIndex();
+        return rangeIndex.range(from, to).map(this::findById).flatMap(Optional::stream);
+    }
+
+    @Override
+    public Optional<T> findById(UUID id) {
+        try {
+            PersistenceTransaction.PendingRecord pending = PersistenceTransaction.pendingRecord(this, id);
+            Optional<byte[]> record = pending != null ? Optional.ofNullable(pending.record()) : readCachedRecord(id);
+            return record.isEmpty() ? Optional.empty() : Optional.ofNullable(decode(record.get()));
+        } catch (IOException e) {
+            throw new CouldNotReadObjectException("Could not read object of class " + objectClass.getName() + " with id " + id, e);
+        } finally {
+            PersistenceContext.removeFromContext(objectClass, id);
+        }
+    }
+
+    /**
+     * Reads only the projected fields of the record, the entity is not created and its relations
+     * are not resolved.
+     */
+    @Override
+    public Optional<Map<String, Object>> findById(UUID id, Projection projection) {
+        Set<String> fieldNames = projection.resolve(objectClass);
+        try {
+            PersistenceTransaction.PendingRecord pending = PersistenceTransaction.pendingRecord(this, id);
+            Optional<byte[]> record = pending != null ? Optional.ofNullable(pending.record()) : readCachedRecord(id);
+            if (record.isEmpty()) return Optional.empty();
+            return Optional.of(projection.view(readFields(record.get(), fieldNames)));
+        } catch (IOException e) {
+            throw new CouldNotReadObjectException("Could not read object of class " + objectClass.getName() + " with id " + id, e);
+        }
+    }
+
+    /**
+     * Streams through every record in id order and reads only the projected fields, skipping the
+     * others without materializing them.
+     */
+    @Override
+    public List<Map<String, Object>> findAll(Projection projection) {
+        Set<String> fieldNames = projection.resolve(objectClass);
+        refreshIndex();
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (UUID id : index.ids()) {
+            try (InputStream record = openRecord(id).orElse(null)) {
+                if (record != null) results.add(projection.view(readFields(record, fieldNames)));
+            } catch (IOException e) {
+                throw new CouldNotReadObjectException("Could not read object of class " + objectClass.getName() + " with id " + id, e);
+            }
+        }
+        return results;
+    }
+
+    @Override
+    public CacheStats cacheStats() {
+        return cache.stats();
+    }
+
+    private Optional<byte[]> readCachedRecord(UUID id) throws IOException {
+        if (!cache.isEnabled()) return readRecord(id);
+        refreshIndex();
+        if (!index.contains(id)) {
+            cache.invalidate(id);
+            return Optional.empty();
+        }
+        byte[] cached = cache.get(id);
+        if (cached != null) return Optional.of(cached);
+
+        long generation = cache.generation();
+        Optional<byte[]> record = readRecord(id);
+        record.ifPresent(bytes -> cache.populate(id, bytes, generation));
+        return record;
+    }
+
+    @Override
+    public List<T> findAll(boolean flushContext) {
+        int parallelism = PersistenceConfig.scanParallelism(collectionName);
+        if (parallelism > 1) return findAllParallel(parallelism, flushContext);
+
+        List<T> results = new ArrayList<>();
+        new RecordIterator(flushContext).forEachRemaining(results::add);
+        return results;
+    }
+
+    /**
+     * Iterates the collection in id order, reading and deserializing one record at a time. No file
+     * stays open between two elements, and records deleted meanwhile are skipped.
+     */
+    @Override
+    public Iterator<T> iterator() {
+        return new RecordIterator(true);
+    }
+
+    @Override
+    public Stream<T> stream() {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(new RecordIterator(true),
+                Spliterator.ORDERED | Spliterator.DISTINCT | Spliterator.NONNULL), false);
+    }
+
+    /**
+     * Reads the records on the common fork-join pool. Every worker thread resolves references in
+     * its own persistence context, the stream keeps id order unless it is made unordered.
+     */
+    @Override
+    public Stream<T> parallelStream() {
+        refreshIndex();
+        return List.copyOf(index.ids()).parallelStream()
+                .map(id -> read(id, true))
+                .flatMap(Optional::stream);
+    }
+
+    @Override
+    public List<T> findAll() {
+        return findAll(true);
+    }
+
+    /**
+     * every object read as findAll reads them, split over scan.parallelism readers, or streamed one
+     * record at a time on the calling thread when that is 1
+     */
+    Stream<T> scan() {
+        int parallelism = PersistenceConfig.scanParallelism(collectionName);
+        return parallelism > 1 ? findAllParallel(parallelism, true).stream() : stream();
+    }
+
+    /**
+     * Splits the ids into one contiguous range per reader, reads the ranges on virtual threads and
+     * concatenates them, so the result has the same order as a sequential scan. Every reader
+     * resolves references in its own persistence context; when the context is kept, the objects
+     * read are registered in the context of the calling thread as a sequential scan leaves them.
+     */
+    private List<T> findAllParallel(int parallelism, boolean flushContext) {
+        refreshIndex();
+        List<UUID> ids = List.copyOf(index.ids());
+        int rangeSize = Math.max(1, (ids.size() + parallelism - 1) / parallelism);
+
+        List<Future<List<T>>> ranges = new ArrayList<>();
+        try (ExecutorService readers = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int from = 0; from < ids.size(); from += rangeSize) {
+                List<UUID> range = ids.subList(from, Math.min(ids.size(), from + rangeSize));
+                ranges.add(readers.submit(() -> readAll(range, flushContext)));
+            }
+        }
+
+        List<T> results = new ArrayList<>(ids.size());
+        for (Future<List<T>> range : ranges) {
+            try {
+                results.addAll(range.get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new CouldNotReadObjectException("Interrupted while reading collection " + collectionName, e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException cause) throw cause;
+                throw new CouldNotReadObjectException("Could not read collection " + collectionName, e.getCause());
+            }
+        }
+        if (!flushContext) results.forEach(PersistenceContext::registerInContext);
+        return results;
+    }
+
+    private List<T> readAll(List<UUID> ids, boolean flushContext) {
+        List<T> results = new ArrayList<>(ids.size());
+        for (UUID id : ids) {
+            read(id, flushContext).ifPresent(results::add);
+        }
+        return results;
+    }
+
+    @Override
+    public boolean existsById(UUID id) {
+        PersistenceTransaction.PendingRecord pending = PersistenceTransaction.pendingRecord(this, id);
+        if (pending != null) return pending.record() != null;
+        refreshIndex();
+        return index.contains(id);
+    }
+
+    @Override
+    public long count() {
+        refreshIndex();
+        return index.size();
+    }
+
+    @Override
+    public List<UUID> findAllIds() {
+        refreshIndex();
+        return List.copyOf(index.ids());
+    }
+
+    /**
+     * Keyset page: up to limit objects with ids after afterId in id order, or from the start when
+     * afterId is null. Only the returned records are read, whatever the size of the collection.
+     */
+    @Override
+    public List<T> findPage(UUID afterId, int limit) {
+        refreshIndex();
+        NavigableSet<UUID> ids = afterId == null ? index.ids() : index.ids().tailSet(afterId, false);
+        List<T> results = new ArrayList<>(Math.max(0, Math.min(limit, 1024)));
+        Iterator<UUID> iterator = ids.iterator();
+        while (results.size() < limit && iterator.hasNext()) {
+            read(iterator.next(), true).ifPresent(results::add);
+        }
+        return results;
+    }
+
+    /**
+     * Page after the given cursor, null starts at the beginning. The cursor returned with a page
+     * is only meaningful to this collection.
+     */
+    @Override
+    public Page<T> findPageByCursor(String cursor, int limit) {
+        UUID afterId = cursor == null ? null : decodeCursor(cursor);
+        List<T> items = findPage(afterId, limit);
+        if (items.isEmpty()) return new Page<>(items, null);
+
+        UUID lastId = metadata.extractId(items.getLast());
+        return new Page<>(items, hasIdAfter(lastId) ? encodeCursor(lastId) : null);
+    }
+
+    boolean hasIdAfter(UUID id) {
+        return index.ids().higher(id) != null;
+    }
+
+    String encodeCursor(UUID lastId) {
+        ByteBuffer cursor = ByteBuffer.allocate(CURSOR_SIZE);
+        cursor.put(CURSOR_VERSION).putLong(lastId.getMostSignificantBits()).putLong(lastId.getLeastSignificantBits());
+        return Base64.getUrlEncoder().withoutPadding().encodeToString(cursor.array());
+    }
+
+    UUID decodeCursor(String cursor) {
+        byte[] bytes;
+        try {
+            bytes = Base64.getUrlDecoder().decode(cursor);
+        } catch (IllegalArgumentException e) {
+            bytes = null;
+        }
+        if (bytes == null || bytes.length != CURSOR_SIZE || bytes[0] != CURSOR_VERSION) {
+            throw new InvalidCursorException("Invalid page cursor for collection " + collectionName + ": " + cursor);
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 1, CURSOR_SIZE - 1);
+        return new UUID(buffer.getLong(), buffer.getLong());
+    }
+
+    /**
+     * Saves all objects in one transaction, so every relation file is read and written once and
+     * the entity records are written in id order. An object that fails is rolled back on its own
+     * and reported in its result, the others are still saved.
+     */
+    @Override
+    public List<BatchResult> saveAll(Collection<? extends T> objects) {
+        List<BatchResult> results = new ArrayList<>(objects.size());
+        try {
+            PersistenceTransaction.execute(transaction -> {
+                for (T object : objects) {
+                    if (object == null) continue;
+                    UUID id = metadata.extractId(object);
+                    try {
+                        transaction.savepoint(t -> {
+                            stage(t, object, id, false);
+                            return null;
+                        });
+                        results.add(BatchResult.applied(id));
+                    } catch (IOException e) {
+                        results.add(BatchResult.failed(id, new CouldNotPersistObjectException("Could not persist object of class " + objectClass.getName() + " with id " + id, e)));
+                    } catch (RuntimeException e) {
+                        results.add(BatchResult.failed(id, e));
+                    } finally {
+                        PersistenceContext.removeFromContext(objectClass, id);
+                    }
+                }
+                return null;
+            });
+        } catch (IOException e) {
+            throw new CouldNotPersistObjectException("Could not persist objects of class " + objectClass.getName(), e);
+        }
+        return results;
+    }
+
+    /**
+     * Writes records encoded before, like the snapshots a write-behind collection keeps, in one
+     * transaction as saveAll does. Their relations were saved when they were encoded and their
+     * version was incremented then, so neither happens again.
+     */
+    List<BatchResult> saveAllRecords(Map<UUID, byte[]> records) {
+        List<BatchResult> results = new ArrayList<>(records.size());
+        try {
+            PersistenceTransaction.execute(transaction -> {
+                for (Map.Entry<UUID, byte[]> record : records.entrySet()) {
+                    UUID id = record.getKey();
+                    try {
+                        transaction.savepoint(t -> {
+                            if (!isUnchanged(t, id, record.getValue())) {
+                                secondaryIndexes.claimRecord(t, record.getValue(), id);
+                                t.put(this, id, record.getValue());
+                            }
+                            return null;
+                        });
+                        results.add(BatchResult.applied(id));
+                    } catch (IOException e) {
+                        results.add(BatchResult.failed(id, new CouldNotPersistObjectException("Could not persist object of class " + objectClass.getName() + " with id " + id, e)));
+                    } catch (RuntimeException e) {
+                        results.add(BatchResult.failed(id, e));
+                    }
+                }
+                return null;
+            });
+        } catch (IOException e) {
+            throw new CouldNotPersistObjectException("Could not persist objects of class " + objectClass.getName(), e);
+        }
+        return results;
+    }
+
+    /**
+     * Reads the records in id order and returns the objects that exist, in the order of the
+     * requested ids.
+     */
+    @Override
+    public Map<UUID, T> findAllById(Collection<UUID> ids) {
+        List<UUID> sorted = new ArrayList<>(new HashSet<>(ids));
+        sorted.sort(PrimaryIndex.ID_ORDER);
+        Map<UUID, T> found = new HashMap<>();
+        for (UUID id : sorted) {
+            findById(id).ifPresent(object -> found.put(id, object));
+        }
+
+        Map<UUID, T> results = new LinkedHashMap<>();
+        for (UUID id : ids) {
+            T object = found.get(id);
+            if (object != null) results.put(id, object);
+        }
+        return results;
+    }
+
+    /**
+     * Deletes all ids in one transaction. An id that does not exist is reported as not applied,
+     * an id whose cascade fails is rolled back on its own.
+     */
+    @Override
+    public List<BatchResult> deleteAllById(Collection<UUID> ids) {
+        List<BatchResult> results = new ArrayList<>(ids.size());
+        try {
+            PersistenceTransaction.execute(transaction -> {
+                for (UUID id : ids) {
+                    try {
+                        boolean existed = transaction.savepoint(t -> delete(t, id));
+                        results.add(existed ? BatchResult.applied(id) : BatchResult.skipped(id));
+                    } catch (IOException e) {
+                        results.add(BatchResult.failed(id, new CouldNotPersistObjectException("Could not delete object of class " + objectClass.getName() + " with id " + id, e)));
+                    } catch (RuntimeException e) {
+                        results.add(BatchResult.failed(id, e));
+                    }
+                }
+                return null;
+            });
+        } catch (IOException e) {
+            throw new CouldNotPersistObjectException("Could not delete objects of class " + objectClass.getName(), e);
+        }
+        return results;
+    }
+
+    /**
+     * Sets plain fields of the stored object to the given values, by field name, without loading
+     * it: only its record is rewritten, relations are neither read nor written and nothing
+     * cascades. A @Version field is incremented. Returns false when there is no object with the id.
+     * If the object is saved by someone else meanwhile, the update is applied again on top of it.
+     */
+    @Override
+    public boolean update(UUID id, Map<String, Object> values) {
+        checkUpdate(values);
+        return retryOnConflict(() -> PersistenceTransaction.execute(transaction -> patch(transaction, id, values)));
+    }
+
+    /**
+     * Sets the same field values on every object with one of the ids, in one transaction. Ids
+     * without an object are reported as not applied.
+     */
+    @Override
+    public List<BatchResult> updateAll(Collection<UUID> ids, Map<String, Object> values) {
+        checkUpdate(values);
+        return retryOnConflict(() -> PersistenceTransaction.execute(transaction -> {
+            List<BatchResult> results = new ArrayList<>(ids.size());
+            for (UUID id : ids) {
+                try {
+                    boolean existed = transaction.savepoint(t -> patch(t, id, values));
+                    results.add(existed ? BatchResult.applied(id) : BatchResult.skipped(id));
+                } catch (IOException e) {
+                    results.add(BatchResult.failed(id, new CouldNotPersistObjectException("Could not update object of class " + objectClass.getName() + " with id " + id, e)));
+                } catch (RuntimeException e) {
+                    results.add(BatchResult.failed(id, e));
+                }
+            }
+            return results;
+        }));
+    }
+
+    private void checkUpdate(Map<String, Object> values) {
+        for (Map.Entry<String, Object> value : values.entrySet()) {
+            EntityMetadata.FieldMetadata field = metadata.field(value.getKey());
+            if (field == null) {
+                throw new InvalidUpdateException("Class " + objectClass.getName() + " has no field " + value.getKey());
+            }
+            if (field == metadata.idField() || field == metadata.versionField() || field.isSingleReference() || field.isCollectionReference()) {
+                throw new InvalidUpdateException("Field " + field.name() + " of class " + objectClass.getName() + " can not be updated");
+            }
+            Class<?> type = MethodType.methodType(field.type()).wrap().returnType();
+            if (value.getValue() == null ? field.type().isPrimitive() : !type.isInstance(value.getValue())) {
+                throw new InvalidUpdateException("Value " + value.getValue() + " can not be assigned to field " + field.name()
+                        + " of class " + objectClass.getName());
+            }
+        }
+    }
+
+    /**
+     * Patches the record the transaction sees. Unless the transaction wrote the record itself,
+     * the commit checks that the stored record is still the one the patch was made from.
+     */
+    private boolean patch(PersistenceTransaction transaction, UUID id, Map<String, Object> values) throws IOException {
+        PersistenceTransaction.PendingRecord pending = transaction.pending(this, id);
+        Optional<byte[]> current = pending != null ? Optional.ofNullable(pending.record()) : readCachedRecord(id);
+        if (current.isEmpty()) return false;
+
+        Map<String, Object> changes = values;
+        if (metadata.hasVersionField()) {
+            changes = new HashMap<>(values);
+            changes.put(metadata.versionField().name(), versionValue(versionOf(current.get()) + 1));
+        }
+        if (pending == null) transaction.expectRecord(this, id, Fingerprint.of(current.get()));
+        byte[] record = formatOf(current.get()).patch(current.get(), changes);
+        secondaryIndexes.claimValues(transaction, values, id);
+        transaction.put(this, id, record);
+        return true;
+    }
+
+    @FunctionalInterface
+    private interface Attempt<R> {
+        R run() throws IOException;
+    }
+
+    /**
+     * Runs a top level update again when the record it was computed from changed before it
+     * committed. Nested in another transaction the conflict is left to that transaction.
+     */
+    private <R> R retryOnConflict(Attempt<R> attempt) {
+        boolean nested = PersistenceTransaction.current() != null;
+        for (int attempts = 1; ; attempts++) {
+            try {
+                return attempt.run();
+            } catch (OptimisticLockException e) {
+                if (nested || attempts == UPDATE_ATTEMPTS) throw e;
+            } catch (IOException e) {
+                throw new CouldNotPersistObjectException("Could not update object of class " + objectClass.getName(), e);
+            }
+        }
+    }
+
+    @Override
+    public boolean deleteById(UUID id) {
+        try {
+            return PersistenceTransaction.execute(transaction -> delete(transaction, id));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    private boolean delete(PersistenceTransaction transaction, UUID id) throws IOException {
+        for (EntityMetadata.FieldMetadata field : metadata.fields()) {
+            if (field.cascadeDelete()) handleCascade(field, id);
+        }
+        clearAllRelations(id);
+
+        boolean exists = existsById(id);
+        secondaryIndexes.release(transaction, id);
+        transaction.delete(this, id);
+        return exists;
+    }
+
+    protected T decode(byte[] record) throws IOException {
+        return formatOf(record).decode(new ByteArrayInputStream(record));
+    }
+
+    private EntityCodec<T> formatOf(byte[] record) {
+        return record.length > 0 && (record[0] & 0xFF) == BinaryEntityCodec.MAGIC ? binaryCodec : jsonCodec;
+    }
+
+    /**
+     * reads only the given fields of a record, in whichever format it was written in
+     */
+    Map<String, Object> readFields(byte[] record, Set<String> fieldNames) throws IOException {
+        return readFields(new ByteArrayInputStream(record), fieldNames);
+    }
+
+    private Map<String, Object> readFields(InputStream record, Set<String> fieldNames) throws IOException {
+        InputStream in = record.markSupported() ? record : new BufferedInputStream(record);
+        return formatOf(in).readFields(in, fieldNames);
+    }
+
+    /**
+     * Decodes a record in whichever format it was written in, so a collection keeps reading its
+     * old records after its format is changed.
+     */
+    protected T decode(InputStream record) throws IOException {
+        InputStream in = record.markSupported() ? record : new BufferedInputStream(record);
+        return formatOf(in).decode(in);
+    }
+
+    private EntityCodec<T> formatOf(InputStream record) throws IOException {
+        record.mark(1);
+        int first = record.read();
+        record.reset();
+        return first == BinaryEntityCodec.MAGIC ? binaryCodec : jsonCodec;
+    }
+
+    private Optional<T> read(UUID id, boolean flushContext) {
+        try (InputStream record = openRecord(id).orElse(null)) {
+            return record == null ? Optional.empty() : Optional.ofNullable(decode(record));
+        } catch (IOException e) {
+            throw new CouldNotReadObjectException("Could not read object of class " + objectClass.getName() + " with id " + id, e);
+        } finally {
+            if (flushContext) PersistenceContext.flush();
+        }
+    }
+
+    private final class RecordIterator implements Iterator<T> {
+        private final Iterator<UUID> ids;
+        private final boolean flushContext;
+        private T next;
+
+        private RecordIterator(boolean flushContext) {
+            refreshIndex();
+            this.ids = index.ids().iterator();
+            this.flushContext = flushContext;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (next == null && ids.hasNext()) {
+                next = read(ids.next(), flushContext).orElse(null);
+            }
+            return next != null;
+        }
+
+        @Override
+        public T next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            T result = next;
+            next = null;
+            return result;
+        }
+    }
+
+    private void handleCascade(EntityMetadata.FieldMetadata field, UUID id) throws IOException {
+        Class<?> fieldType = field.relatedType();
+        ObjectCollection<?> relatedCollection = ObjectCollectionRegistry.getCollection(fieldType);
+
+        ReferenceCollectionManager referenceManager = ReferenceCollectionManagerRegistry.getManager(objectClass, fieldType);
+        List<UUID> relatedIds = new ArrayList<>(referenceManager.getRelatedIds(id, false));
+        relatedIds.addAll(referenceManager.getRelatedIds(id, true));
+
+        relatedCollection.deleteAllById(relatedIds).forEach(BatchResult::throwIfFailed);
+    }
+
+    private void clearAllRelations(UUID id) throws IOException {
+        Set<Class<?>> registeredClasses = ObjectCollectionRegistry.getRegisteredClasses();
+        for (Class<?> clazz : registeredClasses) {
+            ReferenceCollectionManager manager = ReferenceCollectionManagerRegistry.getManager(objectClass, clazz);
+
+            manager.clearRelation(id, true);
+            manager.clearRelation(id, false);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.magicscreencinema.persistence;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Asynchronous view of an {@link ObjectCollection}, see {@link ObjectCollectionRegistry#getAsyncCollection}.
+ * Operations run on the I/O threads of the {@link StorageRoot} of the collection, shared by all
+ * collections in that root, so request threads do not wait for file writes and a slow disk only
+ * delays the collections stored on it.
+ * <p>
+ * Operations on the same id run one after another in the order they were submitted, a
+ * findByIdAsync sees every save and delete of the id submitted before it. Operations on
+ * different ids run in parallel. At most async.queue.capacity operations per root are pending at
+ * once, submitting more blocks the caller until one finishes.
+ * <p>
+ * Each operation runs in its own transaction on a writer thread and does not join a transaction
+ * open on the submitting thread.
+ */
+public final class AsyncObjectCollection<T> {
+    private final ObjectCollection<T> collection;
+    private final EntityMetadata metadata;
+    private final StorageRoot root;
+    private final Map<UUID, CompletableFuture<?>> lanes = new ConcurrentHashMap<>();
+
+    AsyncObjectCollection(Class<T> objectClass, ObjectCollection<T> collection, StorageRoot root) {
+        this.collection = collection;
+        this.metadata = EntityMetadata.of(objectClass);
+        this.root = root;
+    }
+
+    public CompletableFuture<Void> saveAsync(T object) {
+        UUID id = metadata.extractId(object);
+        return submit(id, () -> {
+            collection.save(object);
+            return null;
+        });
+    }
+
+    /**
+     * completes with whether an object was deleted
+     */
+    public CompletableFuture<Boolean> deleteAsync(UUID id) {
+        return submit(id, () -> collection.deleteById(id));
+    }
+
+    public CompletableFuture<Optional<T>> findByIdAsync(UUID id) {
+        return submit(id, () -> collection.findById(id));
+    }
+
+    /**
+     * the synchronous collection this view writes to
+     */
+    public ObjectCollection<T> collection() {
+        return collection;
+    }
+
+    /**
+     * runs the operation once the previous one on the same id has finished, however it finished
+     */
+    private <R> CompletableFuture<R> submit(UUID id, Callable<R> operation) {
+        root.pending().acquireUninterruptibly();
+        CompletableFuture<R> result = new CompletableFuture<>();
+        CompletableFuture<?> previous = lanes.put(id, result);
+        Runnable run = () -> {
+            try {
+                result.complete(operation.call());
+            } catch (Throwable e) {
+                result.completeExceptionally(e);
+            } finally {
+                lanes.remove(id, result);
+                root.pending().release();
+            }
+        };
+        if (previous == null) {
+            execute(run, result, id);
+        } else {
+            previous.whenComplete((ignored, error) -> execute(run, result, id));
+        }
+        return result;
+    }
+
+    private void execute(Runnable run, CompletableFuture<?> result, UUID id) {
+        try {
+            root.executor().execute(run);
+        } catch (RejectedExecutionException e) {
+            result.completeExceptionally(e);
+            lanes.remove(id, result);
+            root.pending().release();
+        }
+    }
+}
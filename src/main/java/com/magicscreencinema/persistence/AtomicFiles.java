@@ -0,0 +1,52 @@
+package com.magicscreencinema.persistence;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Files that are rewritten as a whole. The new content goes to a sibling temporary file, which is
+ * forced and then moved over the old file, so a crash leaves either the old or the new content
+ * but never a truncated file.
+ */
+final class AtomicFiles {
+    interface Content {
+        void writeTo(OutputStream out) throws IOException;
+    }
+
+    private AtomicFiles() {
+    }
+
+    /**
+     * replaces the file, the move itself is durable once the folder is forced, right away when
+     * forceFolder is set or later by whoever tracks the file, like a checkpoint of the log
+     */
+    static void replace(Path path, Content content, boolean forceFolder) throws IOException {
+        Files.createDirectories(path.getParent());
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temporary, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel));
+            content.writeTo(out);
+            out.flush();
+            channel.force(false);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        if (forceFolder) force(path.getParent());
+    }
+
+    /**
+     * fsyncs a file or a folder, folders make the files created, moved or deleted in them durable
+     */
+    static void force(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, Files.isDirectory(path) ? StandardOpenOption.READ : StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+    }
+}
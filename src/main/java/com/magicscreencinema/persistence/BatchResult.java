@@ -0,0 +1,30 @@
+package com.magicscreencinema.persistence;
+
+import java.util.UUID;
+
+/**
+ * Outcome of one item of a batch operation. applied is false with a null error when there was
+ * nothing to do, for example when deleting an id that does not exist.
+ */
+public record BatchResult(UUID id, boolean applied, RuntimeException error) {
+
+    static BatchResult applied(UUID id) {
+        return new BatchResult(id, true, null);
+    }
+
+    static BatchResult skipped(UUID id) {
+        return new BatchResult(id, false, null);
+    }
+
+    static BatchResult failed(UUID id, RuntimeException error) {
+        return new BatchResult(id, false, error);
+    }
+
+    public boolean failed() {
+        return error != null;
+    }
+
+    public void throwIfFailed() {
+        if (error != null) throw error;
+    }
+}
@@ -0,0 +1,478 @@
+package com.magicscreencinema.persistence;
+
+import com.google.gson.Gson;
+import com.magicscreencinema.persistence.exception.DeserializationException;
+
+import java.io.*;
+import java.lang.reflect.*;
+import java.nio.charset.StandardCharsets;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.*;
+
+/**
+ * Compact binary record format. UUIDs are stored as two longs, dates as epoch day, date times as
+ * epoch second and nanos, integers as zigzag varints, enums by name through a string table and
+ * ascending lists of distinct days of week as a bitmask. Values of any other type fall back to
+ * their json form, so every entity gson can store can be stored here too.
+ * <p>
+ * Layout: magic (byte), version (byte), string table (count, strings), field count, then per field
+ * the table index of its name, a tag and the value. Field names and enum constants are looked up
+ * by name, so fields and constants may be added, removed or reordered without breaking old records.
+ */
+class BinaryEntityCodec<T> implements EntityCodec<T> {
+    /**
+     * never the first byte of a json document, which is how the two formats are told apart
+     */
+    static final int MAGIC = 0xB7;
+    private static final int VERSION = 1;
+
+    private static final byte NULL = 0;
+    private static final byte TRUE = 1;
+    private static final byte FALSE = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte FLOAT = 6;
+    private static final byte STRING = 7;
+    private static final byte UUID_VALUE = 8;
+    private static final byte DATE = 9;
+    private static final byte DATE_TIME = 10;
+    private static final byte ENUM = 11;
+    private static final byte DAYS = 12;
+    private static final byte LIST = 13;
+    private static final byte REFERENCE = 14;
+    private static final byte JSON = 15;
+
+    private static final Set<Class<?>> PLAIN_COLLECTIONS = Set.of(
+            Collection.class, List.class, ArrayList.class, Set.class, HashSet.class, LinkedHashSet.class);
+
+    private final Class<T> objectClass;
+    private final Gson gson;
+    private final EntityMetadata metadata;
+    private final RelationMapper relations;
+
+    BinaryEntityCodec(Class<T> objectClass, Gson gson) {
+        this.objectClass = objectClass;
+        this.gson = gson;
+        this.metadata = EntityMetadata.of(objectClass);
+        this.relations = new RelationMapper(objectClass);
+    }
+
+    @Override
+    public byte[] encode(T entity) throws IOException {
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(body);
+
+        EntityMetadata entityMetadata = entity.getClass() == objectClass ? metadata : EntityMetadata.of(entity.getClass());
+        List<EntityMetadata.FieldMetadata> fields = entityMetadata.fields();
+        writeVarInt(out, fields.size());
+        for (EntityMetadata.FieldMetadata field : fields) {
+            writeVarInt(out, intern(strings, field.name()));
+            Object value = field.get(entity);
+            if (field.isSingleReference()) {
+                if (value != null) relations.writeSingleReference(field, entity, value);
+                out.writeByte(REFERENCE);
+            } else if (field.isCollectionReference()) {
+                if (value != null) relations.writeCollectionReference(field, entity, value);
+                out.writeByte(REFERENCE);
+            } else {
+                writeValue(out, strings, field.genericType(), value);
+            }
+        }
+
+        ByteArrayOutputStream record = new ByteArrayOutputStream(body.size() + 16 * strings.size() + 8);
+        DataOutputStream header = new DataOutputStream(record);
+        header.writeByte(MAGIC);
+        header.writeByte(VERSION);
+        writeVarInt(header, strings.size());
+        for (String string : strings.keySet()) {
+            writeString(header, string);
+        }
+        body.writeTo(record);
+        return record.toByteArray();
+    }
+
+    @Override
+    public T decode(InputStream record) throws IOException {
+        DataInputStream in = new DataInputStream(record);
+        String[] strings = readHeader(in);
+
+        T instance = metadata.newInstance();
+        Class<?> currentType = instance.getClass();
+        EntityMetadata.FieldMetadata idField = metadata.idField();
+        UUID instanceId = null;
+        List<EntityMetadata.FieldMetadata> relationFields = new ArrayList<>();
+
+        int fieldCount = readVarInt(in);
+        try {
+            for (int i = 0; i < fieldCount; i++) {
+                String name = strings[readVarInt(in)];
+                byte tag = in.readByte();
+                EntityMetadata.FieldMetadata field = metadata.field(name);
+                if (field == null) {
+                    skipValue(in, tag);
+                    continue;
+                }
+
+                if (tag == REFERENCE) {
+                    relationFields.add(field);
+                    continue;
+                }
+                Object value = readValue(in, strings, tag, field.genericType());
+                if (value == null && field.type().isPrimitive()) continue;
+                field.set(instance, value);
+
+                if (field == idField) {
+                    instanceId = (UUID) value;
+                    PersistenceContext.registerSubContext(currentType, instanceId, instance);
+                }
+            }
+
+            for (EntityMetadata.FieldMetadata field : relationFields) {
+                if (field.isSingleReference()) {
+                    relations.readSingleReference(field, instance, instanceId);
+                } else if (field.isCollectionReference()) {
+                    relations.readCollectionReference(field, instance, instanceId);
+                }
+            }
+        } catch (IllegalArgumentException e) {
+            throw new DeserializationException("Could not set field of class " + currentType.getName(), e);
+        }
+        return instance;
+    }
+
+    @Override
+    public Map<String, Object> readFields(InputStream record, Set<String> fieldNames) throws IOException {
+        DataInputStream in = new DataInputStream(record);
+        String[] strings = readHeader(in);
+        Map<String, Object> values = new HashMap<>();
+
+        int fieldCount = readVarInt(in);
+        for (int i = 0; i < fieldCount && values.size() < fieldNames.size(); i++) {
+            String name = strings[readVarInt(in)];
+            byte tag = in.readByte();
+            EntityMetadata.FieldMetadata field = fieldNames.contains(name) ? metadata.field(name) : null;
+            if (field == null) {
+                skipValue(in, tag);
+                continue;
+            }
+            values.put(name, readValue(in, strings, tag, field.genericType()));
+        }
+        return values;
+    }
+
+    /**
+     * Copies the bytes of every untouched value, keeping the string table indexes they refer to,
+     * and writes only the patched values anew. Fields missing from the record are appended.
+     */
+    @Override
+    public byte[] patch(byte[] record, Map<String, Object> values) throws IOException {
+        RecordInput input = new RecordInput(record);
+        DataInputStream in = new DataInputStream(input);
+        String[] stored = readHeader(in);
+        Map<String, Integer> strings = new LinkedHashMap<>();
+        for (String string : stored) {
+            intern(strings, string);
+        }
+
+        ByteArrayOutputStream body = new ByteArrayOutputStream(record.length);
+        DataOutputStream out = new DataOutputStream(body);
+        Set<String> remaining = new LinkedHashSet<>(values.keySet());
+        int fieldCount = readVarInt(in);
+        for (int i = 0; i < fieldCount; i++) {
+            int name = readVarInt(in);
+            int start = input.position();
+            skipValue(in, in.readByte());
+            writeVarInt(out, name);
+            if (remaining.remove(stored[name])) {
+                writeValue(out, strings, metadata.field(stored[name]).genericType(), values.get(stored[name]));
+            } else {
+                out.write(record, start, input.position() - start);
+            }
+        }
+        for (String name : remaining) {
+            writeVarInt(out, intern(strings, name));
+            writeValue(out, strings, metadata.field(name).genericType(), values.get(name));
+        }
+
+        ByteArrayOutputStream patched = new ByteArrayOutputStream(body.size() + record.length - input.position() + 16);
+        DataOutputStream header = new DataOutputStream(patched);
+        header.writeByte(MAGIC);
+        header.writeByte(VERSION);
+        writeVarInt(header, strings.size());
+        for (String string : strings.keySet()) {
+            writeString(header, string);
+        }
+        writeVarInt(header, fieldCount + remaining.size());
+        body.writeTo(patched);
+        return patched.toByteArray();
+    }
+
+    private static final class RecordInput extends ByteArrayInputStream {
+        RecordInput(byte[] record) {
+            super(record);
+        }
+
+        int position() {
+            return pos;
+        }
+    }
+
+    private String[] readHeader(DataInputStream in) throws IOException {
+        if (in.readUnsignedByte() != MAGIC || in.readUnsignedByte() != VERSION) {
+            throw new DeserializationException("Not a binary record of class " + objectClass.getName());
+        }
+        String[] strings = new String[readVarInt(in)];
+        for (int i = 0; i < strings.length; i++) {
+            strings[i] = readString(in);
+        }
+        return strings;
+    }
+
+    private void writeValue(DataOutputStream out, Map<String, Integer> strings, Type type, Object value) throws IOException {
+        switch (value) {
+            case null -> out.writeByte(NULL);
+            case Boolean b -> out.writeByte(b ? TRUE : FALSE);
+            case Integer i -> writeInt(out, i);
+            case Short s -> writeInt(out, s);
+            case Byte b -> writeInt(out, b);
+            case Character c -> writeInt(out, c);
+            case Long l -> {
+                out.writeByte(LONG);
+                writeVarLong(out, zigzag(l));
+            }
+            case Double d -> {
+                out.writeByte(DOUBLE);
+                out.writeDouble(d);
+            }
+            case Float f -> {
+                out.writeByte(FLOAT);
+                out.writeFloat(f);
+            }
+            case String s -> {
+                out.writeByte(STRING);
+                writeString(out, s);
+            }
+            case UUID id -> {
+                out.writeByte(UUID_VALUE);
+                out.writeLong(id.getMostSignificantBits());
+                out.writeLong(id.getLeastSignificantBits());
+            }
+            case LocalDate date -> {
+                out.writeByte(DATE);
+                writeVarLong(out, zigzag(date.toEpochDay()));
+            }
+            case LocalDateTime dateTime -> {
+                out.writeByte(DATE_TIME);
+                writeVarLong(out, zigzag(dateTime.toEpochSecond(ZoneOffset.UTC)));
+                writeVarInt(out, dateTime.getNano());
+            }
+            case Enum<?> constant -> {
+                out.writeByte(ENUM);
+                writeVarInt(out, intern(strings, constant.name()));
+            }
+            case Collection<?> collection when isPlainCollection(type) -> {
+                Type elementType = elementType(type);
+                if (elementType == DayOfWeek.class && isAscendingDistinctDays(collection)) {
+                    int mask = 0;
+                    for (Object day : collection) {
+                        mask |= 1 << ((DayOfWeek) day).ordinal();
+                    }
+                    out.writeByte(DAYS);
+                    out.writeByte(mask);
+                    return;
+                }
+                out.writeByte(LIST);
+                writeVarInt(out, collection.size());
+                for (Object element : collection) {
+                    writeValue(out, strings, elementType, element);
+                }
+            }
+            default -> {
+                out.writeByte(JSON);
+                writeString(out, gson.toJson(value, type == Object.class ? value.getClass() : type));
+            }
+        }
+    }
+
+    private Object readValue(DataInputStream in, String[] strings, byte tag, Type type) throws IOException {
+        Class<?> rawType = rawType(type);
+        return switch (tag) {
+            case NULL, REFERENCE -> null;
+            case TRUE -> true;
+            case FALSE -> false;
+            case INT -> toIntegral(unzigzag(readVarLong(in)), rawType);
+            case LONG -> toIntegral(unzigzag(readVarLong(in)), rawType == Object.class ? Long.class : rawType);
+            case DOUBLE -> toFloating(in.readDouble(), rawType);
+            case FLOAT -> toFloating(in.readFloat(), rawType == Object.class ? Float.class : rawType);
+            case STRING -> readString(in);
+            case UUID_VALUE -> new UUID(in.readLong(), in.readLong());
+            case DATE -> LocalDate.ofEpochDay(unzigzag(readVarLong(in)));
+            case DATE_TIME -> LocalDateTime.ofEpochSecond(unzigzag(readVarLong(in)), readVarInt(in), ZoneOffset.UTC);
+            case ENUM -> enumConstant(rawType, strings[readVarInt(in)]);
+            case DAYS -> {
+                int mask = in.readUnsignedByte();
+                Collection<Object> days = newCollection(rawType, Integer.bitCount(mask));
+                for (DayOfWeek day : DayOfWeek.values()) {
+                    if ((mask & 1 << day.ordinal()) != 0) days.add(day);
+                }
+                yield days;
+            }
+            case LIST -> {
+                int size = readVarInt(in);
+                Type elementType = elementType(type);
+                Collection<Object> elements = newCollection(rawType, size);
+                for (int i = 0; i < size; i++) {
+                    elements.add(readValue(in, strings, in.readByte(), elementType));
+                }
+                yield elements;
+            }
+            case JSON -> gson.fromJson(readString(in), type);
+            default -> throw new DeserializationException("Unknown value tag " + tag + " in record of class " + objectClass.getName());
+        };
+    }
+
+    /**
+     * moves past a value without materializing it
+     */
+    private void skipValue(DataInputStream in, byte tag) throws IOException {
+        switch (tag) {
+            case NULL, REFERENCE, TRUE, FALSE -> {
+            }
+            case INT, LONG, DATE -> readVarLong(in);
+            case DOUBLE -> in.skipNBytes(Double.BYTES);
+            case FLOAT -> in.skipNBytes(Float.BYTES);
+            case STRING, JSON -> in.skipNBytes(readVarInt(in));
+            case UUID_VALUE -> in.skipNBytes(2 * Long.BYTES);
+            case DATE_TIME -> {
+                readVarLong(in);
+                readVarInt(in);
+            }
+            case ENUM -> readVarInt(in);
+            case DAYS -> in.skipNBytes(1);
+            case LIST -> {
+                int size = readVarInt(in);
+                for (int i = 0; i < size; i++) {
+                    skipValue(in, in.readByte());
+                }
+            }
+            default -> throw new DeserializationException("Unknown value tag " + tag + " in record of class " + objectClass.getName());
+        }
+    }
+
+    private void writeInt(DataOutputStream out, int value) throws IOException {
+        out.writeByte(INT);
+        writeVarLong(out, zigzag(value));
+    }
+
+    private static Object toIntegral(long value, Class<?> type) {
+        if (type == long.class || type == Long.class) return value;
+        if (type == short.class || type == Short.class) return (short) value;
+        if (type == byte.class || type == Byte.class) return (byte) value;
+        if (type == char.class || type == Character.class) return (char) value;
+        if (type == double.class || type == Double.class) return (double) value;
+        if (type == float.class || type == Float.class) return (float) value;
+        return (int) value;
+    }
+
+    private static Object toFloating(double value, Class<?> type) {
+        if (type == float.class || type == Float.class) return (float) value;
+        return value;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object enumConstant(Class<?> type, String name) {
+        if (!type.isEnum()) return name;
+        try {
+            return Enum.valueOf((Class<? extends Enum>) type, name);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static boolean isPlainCollection(Type type) {
+        return PLAIN_COLLECTIONS.contains(rawType(type));
+    }
+
+    private static Collection<Object> newCollection(Class<?> type, int size) {
+        if (Set.class.isAssignableFrom(type)) return new LinkedHashSet<>();
+        return new ArrayList<>(size);
+    }
+
+    private static boolean isAscendingDistinctDays(Collection<?> days) {
+        int previous = -1;
+        for (Object day : days) {
+            if (!(day instanceof DayOfWeek dayOfWeek) || dayOfWeek.ordinal() <= previous) return false;
+            previous = dayOfWeek.ordinal();
+        }
+        return true;
+    }
+
+    private static Type elementType(Type type) {
+        if (type instanceof ParameterizedType parameterized) {
+            Type argument = parameterized.getActualTypeArguments()[0];
+            if (argument instanceof Class<?> || argument instanceof ParameterizedType) return argument;
+        }
+        return Object.class;
+    }
+
+    private static Class<?> rawType(Type type) {
+        if (type instanceof Class<?> clazz) return clazz;
+        if (type instanceof ParameterizedType parameterized) return (Class<?>) parameterized.getRawType();
+        return Object.class;
+    }
+
+    private static int intern(Map<String, Integer> strings, String string) {
+        return strings.computeIfAbsent(string, k -> strings.size());
+    }
+
+    private static void writeString(DataOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[readVarInt(in)];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+
+    private static long unzigzag(long value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static void writeVarInt(DataOutputStream out, int value) throws IOException {
+        writeVarLong(out, value & 0xFFFFFFFFL);
+    }
+
+    private static void writeVarLong(DataOutputStream out, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            out.writeByte((int) (value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte((int) value);
+    }
+
+    private static int readVarInt(DataInputStream in) throws IOException {
+        return (int) readVarLong(in);
+    }
+
+    private static long readVarLong(DataInputStream in) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return value;
+        }
+        throw new DeserializationException("Malformed varint in binary record");
+    }
+}
@@ -0,0 +1,12 @@
+package com.magicscreencinema.persistence;
+
+/**
+ * Counters of the record cache of a collection since it was opened.
+ */
+public record CacheStats(long hits, long misses, long evictions, int size) {
+
+    public double hitRate() {
+        long requests = hits + misses;
+        return requests == 0 ? 0 : (double) hits / requests;
+    }
+}
@@ -0,0 +1,93 @@
+package com.magicscreencinema.persistence;
+
+import com.magicscreencinema.persistence.exception.InvalidQueryException;
+
+import java.util.Objects;
+import java.util.UUID;
+
+/**
+ * Condition on one field of a {@link Query}. Values are compared the way the indexes compare them:
+ * numbers by value, enums by name, entities by id and everything else by its string form for
+ * equality and its natural order for ranges.
+ */
+public final class Condition {
+    enum Kind {
+        EQUAL, RANGE
+    }
+
+    final Kind kind;
+    final Object value;
+    final Object from;
+    final Object to;
+
+    private Condition(Kind kind, Object value, Object from, Object to) {
+        this.kind = kind;
+        this.value = value;
+        this.from = from;
+        this.to = to;
+    }
+
+    public static Condition eq(Object value) {
+        return new Condition(Kind.EQUAL, value, null, null);
+    }
+
+    /**
+     * from inclusive, to exclusive
+     */
+    public static Condition between(Object from, Object to) {
+        return new Condition(Kind.RANGE, null, Objects.requireNonNull(from), Objects.requireNonNull(to));
+    }
+
+    public static Condition atLeast(Object from) {
+        return new Condition(Kind.RANGE, null, Objects.requireNonNull(from), null);
+    }
+
+    public static Condition before(Object to) {
+        return new Condition(Kind.RANGE, null, null, Objects.requireNonNull(to));
+    }
+
+    boolean test(Object fieldValue) {
+        if (kind == Kind.EQUAL) return equal(fieldValue, value);
+        if (fieldValue == null) return false;
+        return (from == null || compare(from, fieldValue) <= 0) && (to == null || compare(fieldValue, to) < 0);
+    }
+
+    /**
+     * the value of an equality condition as an id, for lookups in relation files
+     */
+    UUID relatedId() {
+        Object normalized = normalize(value);
+        if (normalized instanceof UUID id) return id;
+        throw new InvalidQueryException("Relation fields can only be compared with an entity or its id, got " + value);
+    }
+
+    static Object normalize(Object value) {
+        if (value != null && PersistenceUtil.isElementCollection(value.getClass())) return PersistenceUtil.extractId(value);
+        return value;
+    }
+
+    private static boolean equal(Object a, Object b) {
+        a = normalize(a);
+        b = normalize(b);
+        if (a instanceof Number x && b instanceof Number y) return Double.compare(x.doubleValue(), y.doubleValue()) == 0;
+        return Objects.equals(SecondaryIndex.key(a), SecondaryIndex.key(b));
+    }
+
+    @SuppressWarnings("unchecked")
+    static int compare(Object a, Object b) {
+        if (a instanceof Number x && b instanceof Number y) return Double.compare(x.doubleValue(), y.doubleValue());
+        try {
+            return ((Comparable<Object>) a).compareTo(b);
+        } catch (ClassCastException e) {
+            throw new InvalidQueryException("Can not compare " + a + " with " + b);
+        }
+    }
+
+    @Override
+    public String toString() {
+        if (kind == Kind.EQUAL) return "= " + normalize(value);
+        if (to == null) return ">= " + from;
+        if (from == null) return "< " + to;
+        return "in [" + from + ", " + to + ")";
+    }
+}
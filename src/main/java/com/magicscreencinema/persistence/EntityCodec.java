@@ -0,0 +1,28 @@
+package com.magicscreencinema.persistence;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Turns an entity into the bytes of its record and back. Relation fields are saved and resolved
+ * through the relation files while encoding and decoding, never stored in the record.
+ */
+interface EntityCodec<T> {
+    byte[] encode(T entity) throws IOException;
+
+    T decode(InputStream record) throws IOException;
+
+    /**
+     * reads only the named plain fields of a record, without creating the entity or resolving
+     * any relation
+     */
+    Map<String, Object> readFields(InputStream record, Set<String> fieldNames) throws IOException;
+
+    /**
+     * the record with the named plain fields set to the given values and every other field copied
+     * as stored, without creating the entity or visiting any relation
+     */
+    byte[] patch(byte[] record, Map<String, Object> values) throws IOException;
+}
@@ -0,0 +1,12 @@
+package com.magicscreencinema.persistence;
+
+enum EntityFormat {
+    /**
+     * pretty printed json, readable and editable by hand
+     */
+    JSON,
+    /**
+     * compact tagged binary records, see {@link BinaryEntityCodec}
+     */
+    BINARY
+}
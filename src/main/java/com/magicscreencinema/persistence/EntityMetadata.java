@@ -0,0 +1,300 @@
+package com.magicscreencinema.persistence;
+
+import com.magicscreencinema.persistence.declaration.*;
+import com.magicscreencinema.persistence.exception.DeserializationException;
+import com.magicscreencinema.persistence.exception.InvalidIdTypeException;
+import com.magicscreencinema.persistence.exception.InvalidVersionTypeException;
+import com.magicscreencinema.persistence.exception.MissingIdException;
+import com.magicscreencinema.persistence.exception.MissingNoArgsConstructorException;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Type;
+import java.util.*;
+
+/**
+ * Everything the persistence layer needs to know about a class, worked out once per class: the
+ * persistent fields in declaration order from the top of the hierarchy down, their relation
+ * declarations, and method handle accessors bound to each field. Persistence paths read this
+ * instead of reflecting on every call.
+ */
+final class EntityMetadata {
+    private static final ClassValue<EntityMetadata> METADATA = new ClassValue<>() {
+        @Override
+        protected EntityMetadata computeValue(Class<?> type) {
+            return new EntityMetadata(type);
+        }
+    };
+
+    private static final Set<Class<?>> VERSION_TYPES = Set.of(long.class, Long.class, int.class, Integer.class);
+
+    enum RelationKind {
+        NONE, MANY_TO_ONE, ONE_TO_ONE, ONE_TO_MANY, MANY_TO_MANY
+    }
+
+    /**
+     * One persistent field. A single reference holds one entity, a collection reference a
+     * collection of them, relatedType is the entity class referred to.
+     */
+    static final class FieldMetadata {
+        private final Field field;
+        private final String name;
+        private final Class<?> type;
+        private final Type genericType;
+        private final RelationKind relation;
+        private final boolean singleReference;
+        private final boolean collectionReference;
+        private final Class<?> relatedType;
+        private final boolean owner;
+        private final boolean cascadeSave;
+        private final boolean cascadeDelete;
+        private final Fetch fetch;
+        private final MethodHandle getter;
+        private final MethodHandle setter;
+
+        private FieldMetadata(Field field) {
+            this.field = field;
+            this.name = field.getName();
+            this.type = field.getType();
+            this.genericType = field.getGenericType();
+            this.singleReference = PersistenceUtil.isElementCollection(type);
+            this.collectionReference = PersistenceUtil.isCollectionOfElementCollection(field);
+            this.relatedType = singleReference ? type : collectionReference ? PersistenceUtil.getGenericType(field) : null;
+            this.owner = field.isAnnotationPresent(Owner.class);
+
+            Cascade[] cascade = new Cascade[0];
+            Fetch fetchMode = Fetch.EAGER;
+            if (field.isAnnotationPresent(ManyToOne.class)) {
+                relation = RelationKind.MANY_TO_ONE;
+            } else if (field.isAnnotationPresent(OneToOne.class)) {
+                relation = RelationKind.ONE_TO_ONE;
+                cascade = field.getAnnotation(OneToOne.class).cascade();
+            } else if (field.isAnnotationPresent(OneToMany.class)) {
+                relation = RelationKind.ONE_TO_MANY;
+                cascade = field.getAnnotation(OneToMany.class).cascade();
+                fetchMode = field.getAnnotation(OneToMany.class).fetch();
+            } else if (field.isAnnotationPresent(ManyToMany.class)) {
+                relation = RelationKind.MANY_TO_MANY;
+                cascade = field.getAnnotation(ManyToMany.class).cascade();
+                fetchMode = field.getAnnotation(ManyToMany.class).fetch();
+            } else {
+                relation = RelationKind.NONE;
+            }
+            this.cascadeSave = Arrays.asList(cascade).contains(Cascade.SAVE);
+            this.cascadeDelete = Arrays.asList(cascade).contains(Cascade.DELETE);
+            this.fetch = fetchMode;
+
+            field.setAccessible(true);
+            try {
+                MethodHandles.Lookup lookup = MethodHandles.privateLookupIn(field.getDeclaringClass(), MethodHandles.lookup());
+                this.getter = lookup.unreflectGetter(field).asType(MethodType.methodType(Object.class, Object.class));
+                this.setter = lookup.unreflectSetter(field).asType(MethodType.methodType(void.class, Object.class, Object.class));
+            } catch (IllegalAccessException e) {
+                throw new IllegalStateException("Could not access field " + name + " of class " + field.getDeclaringClass().getName(), e);
+            }
+        }
+
+        Field field() {
+            return field;
+        }
+
+        String name() {
+            return name;
+        }
+
+        Class<?> type() {
+            return type;
+        }
+
+        Type genericType() {
+            return genericType;
+        }
+
+        RelationKind relation() {
+            return relation;
+        }
+
+        boolean isSingleReference() {
+            return singleReference;
+        }
+
+        boolean isCollectionReference() {
+            return collectionReference;
+        }
+
+        Class<?> relatedType() {
+            return relatedType;
+        }
+
+        boolean isOwner() {
+            return owner;
+        }
+
+        boolean cascadeSave() {
+            return cascadeSave;
+        }
+
+        boolean cascadeDelete() {
+            return cascadeDelete;
+        }
+
+        Fetch fetch() {
+            return fetch;
+        }
+
+        Object get(Object instance) {
+            try {
+                return (Object) getter.invokeExact(instance);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException("Could not read field " + name, e);
+            }
+        }
+
+        /**
+         * throws IllegalArgumentException when the value does not fit the field, like Field.set
+         */
+        void set(Object instance, Object value) {
+            if (value == null && type.isPrimitive()) {
+                throw new IllegalArgumentException("Can not set primitive field " + name + " to null");
+            }
+            try {
+                setter.invokeExact(instance, value);
+            } catch (ClassCastException e) {
+                throw new IllegalArgumentException("Can not set field " + name + " to a value of type " + value.getClass().getName(), e);
+            } catch (RuntimeException | Error e) {
+                throw e;
+            } catch (Throwable e) {
+                throw new IllegalStateException("Could not write field " + name, e);
+            }
+        }
+    }
+
+    private final Class<?> type;
+    private final List<FieldMetadata> fields;
+    private final Map<String, FieldMetadata> fieldsByName;
+    private final FieldMetadata idField;
+    private final FieldMetadata versionField;
+    private final Constructor<?> constructor;
+
+    private EntityMetadata(Class<?> type) {
+        this.type = type;
+        List<Class<?>> hierarchy = new ArrayList<>();
+        for (Class<?> current = type; current != null && current != Object.class; current = current.getSuperclass()) {
+            hierarchy.addFirst(current);
+        }
+
+        List<FieldMetadata> persistent = new ArrayList<>();
+        Map<String, FieldMetadata> byName = new HashMap<>();
+        FieldMetadata id = null;
+        FieldMetadata version = null;
+        for (Class<?> clazz : hierarchy) {
+            for (Field field : clazz.getDeclaredFields()) {
+                if (Modifier.isStatic(field.getModifiers()) || field.isSynthetic()) continue;
+                FieldMetadata metadata = new FieldMetadata(field);
+                persistent.add(metadata);
+                // a field shadows the fields of the same name higher up
+                byName.put(metadata.name(), metadata);
+                // like the field lookup, an @Id of a subclass wins over one higher up
+                if (field.isAnnotationPresent(Id.class) && (id == null || id.field().getDeclaringClass() != clazz)) id = metadata;
+                if (field.isAnnotationPresent(Version.class)) version = metadata;
+            }
+        }
+        this.fields = List.copyOf(persistent);
+        this.fieldsByName = Map.copyOf(byName);
+        this.idField = id;
+        this.versionField = version;
+        this.constructor = findConstructor(type);
+        if (version != null && !VERSION_TYPES.contains(version.type())) {
+            throw new InvalidVersionTypeException("Field annotated with @Version must be of type long or int in class " + type.getName());
+        }
+    }
+
+    static EntityMetadata of(Class<?> type) {
+        return METADATA.get(type);
+    }
+
+    Class<?> type() {
+        return type;
+    }
+
+    List<FieldMetadata> fields() {
+        return fields;
+    }
+
+    /**
+     * the persistent field of the given name, or null
+     */
+    FieldMetadata field(String name) {
+        return fieldsByName.get(name);
+    }
+
+    FieldMetadata idField() {
+        if (idField == null) {
+            throw new MissingIdException("No field with @Id annotation found in class " + type.getName());
+        }
+        return idField;
+    }
+
+    boolean hasIdField() {
+        return idField != null;
+    }
+
+    UUID extractId(Object entity) {
+        Object id = idField().get(entity);
+        if (id == null) {
+            throw new MissingIdException("The object of class " + entity.getClass().getName() + " has a null ID");
+        }
+        if (id instanceof UUID uuid) return uuid;
+        throw new InvalidIdTypeException("The ID field must be of type UUID in class " + entity.getClass().getName());
+    }
+
+    boolean hasVersionField() {
+        return versionField != null;
+    }
+
+    FieldMetadata versionField() {
+        return versionField;
+    }
+
+    /**
+     * the version the entity was read with, 0 for one that was never saved
+     */
+    long version(Object entity) {
+        Object version = versionField.get(entity);
+        return version == null ? 0 : ((Number) version).longValue();
+    }
+
+    void setVersion(Object entity, long version) {
+        Class<?> versionType = versionField.type();
+        versionField.set(entity, versionType == int.class || versionType == Integer.class ? (Object) Math.toIntExact(version) : (Object) version);
+    }
+
+    @SuppressWarnings("unchecked")
+    <T> T newInstance() {
+        if (constructor == null) {
+            throw new MissingNoArgsConstructorException(
+                    "Class " + type.getName() + " must have a public or accessible no-argument constructor");
+        }
+        try {
+            return (T) constructor.newInstance();
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            throw new DeserializationException("Could not create instance of " + type.getName(), e);
+        }
+    }
+
+    private static Constructor<?> findConstructor(Class<?> type) {
+        try {
+            Constructor<?> constructor = type.getDeclaredConstructor();
+            constructor.setAccessible(true);
+            return constructor;
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+}
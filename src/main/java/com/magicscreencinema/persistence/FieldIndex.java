@@ -0,0 +1,99 @@
+package com.magicscreencinema.persistence;
+
+import java.io.*;
+import java.lang.reflect.Field;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+
+/**
+ * Persistent index over one field of a collection, mapping field values to entity ids. Null
+ * values are not indexed.
+ * <p>
+ * The index file is only trusted as long as it exists: it is deleted before the first change after
+ * it was stored, so a crash before the next store leaves no file and the index is rebuilt from the
+ * records when the collection is opened.
+ */
+abstract class FieldIndex {
+    private final int magic;
+    private final int version;
+    private final Field field;
+    private final Path path;
+    private boolean stored;
+    private volatile boolean dirty;
+
+    FieldIndex(int magic, int version, Field field, Path path) {
+        this.magic = magic;
+        this.version = version;
+        this.field = field;
+        this.path = path;
+    }
+
+    String fieldName() {
+        return field.getName();
+    }
+
+    Field field() {
+        return field;
+    }
+
+    /**
+     * indexes the id under the given field value, null removes it
+     */
+    abstract void update(UUID id, Object value) throws IOException;
+
+    abstract void remove(UUID id) throws IOException;
+
+    abstract void clear() throws IOException;
+
+    protected abstract void readEntries(DataInputStream in) throws IOException;
+
+    protected abstract void writeEntries(DataOutputStream out) throws IOException;
+
+    /**
+     * Loads the index file. Returns false when it is missing or unreadable, in which case the
+     * index stays empty and has to be rebuilt.
+     */
+    synchronized boolean load() throws IOException {
+        clearEntries();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(path)))) {
+            if (in.readInt() != magic || in.readInt() != version) return false;
+            readEntries(in);
+            stored = true;
+            dirty = false;
+            return true;
+        } catch (NoSuchFileException | EOFException e) {
+            clearEntries();
+            return false;
+        }
+    }
+
+    synchronized void store() throws IOException {
+        if (!dirty) return;
+        Files.createDirectories(path.getParent());
+        Path temporary = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(temporary)))) {
+            out.writeInt(magic);
+            out.writeInt(version);
+            writeEntries(out);
+        }
+        Files.move(temporary, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        stored = true;
+        dirty = false;
+    }
+
+    /**
+     * to be called under the index lock before every change of the entries
+     */
+    protected void markChanged() throws IOException {
+        dirty = true;
+        if (stored) {
+            Files.deleteIfExists(path);
+            stored = false;
+        }
+    }
+
+    protected abstract void clearEntries();
+}
@@ -0,0 +1,43 @@
+package com.magicscreencinema.persistence;
+
+import java.nio.file.Path;
+import java.util.UUID;
+
+/**
+ * where the file of each entity is placed inside the folder of a file collection, configured with
+ * collection.&lt;name&gt;.layout=flat|sharded
+ */
+enum FileLayout {
+    /**
+     * every file directly in the collection folder
+     */
+    FLAT,
+    /**
+     * files spread over two levels of folders named after the first four hex digits of the id,
+     * ab/cd/abcd...json, so no folder holds more than a small share of a large collection
+     */
+    SHARDED;
+
+    Path resolve(Path collectionPath, UUID id, String extension) {
+        String name = id.toString();
+        return switch (this) {
+            case FLAT -> collectionPath.resolve(name + extension);
+            case SHARDED -> collectionPath.resolve(name.substring(0, 2)).resolve(name.substring(2, 4)).resolve(name + extension);
+        };
+    }
+
+    /**
+     * whether the folder name is one level of a sharded path, two lowercase hex digits
+     */
+    static boolean isShard(String name) {
+        return name.length() == 2 && isHexDigit(name.charAt(0)) && isHexDigit(name.charAt(1));
+    }
+
+    private static boolean isHexDigit(char c) {
+        return c >= '0' && c <= '9' || c >= 'a' && c <= 'f';
+    }
+
+    static FileLayout of(long ordinal) {
+        return values()[(int) ordinal];
+    }
+}
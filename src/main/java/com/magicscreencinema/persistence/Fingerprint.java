@@ -0,0 +1,59 @@
+package com.magicscreencinema.persistence;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 64 bit hashes of persisted state, compared to tell whether a save would write what is already
+ * stored. Mixes eight bytes at a time with the steps of MurmurHash3, so hashing a record costs
+ * little next to encoding it.
+ */
+final class Fingerprint {
+    private static final VarHandle LONGS = MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final long C1 = 0x87c37b91114253d5L;
+    private static final long C2 = 0x4cf5ad432745937fL;
+
+    private Fingerprint() {
+    }
+
+    static long of(byte[] bytes) {
+        long hash = bytes.length;
+        int i = 0;
+        for (; i + Long.BYTES <= bytes.length; i += Long.BYTES) {
+            hash = mix(hash, (long) LONGS.get(bytes, i));
+        }
+        long tail = 0;
+        for (int shift = 0; i < bytes.length; i++, shift += 8) {
+            tail |= (bytes[i] & 0xFFL) << shift;
+        }
+        return finish(mix(hash, tail));
+    }
+
+    static long of(List<UUID> ids) {
+        long hash = ids.size();
+        for (UUID id : ids) {
+            hash = mix(hash, id.getMostSignificantBits());
+            hash = mix(hash, id.getLeastSignificantBits());
+        }
+        return finish(hash);
+    }
+
+    private static long mix(long hash, long value) {
+        value *= C1;
+        value = Long.rotateLeft(value, 31);
+        value *= C2;
+        hash ^= value;
+        return Long.rotateLeft(hash, 27) * 5 + 0x52dce729;
+    }
+
+    private static long finish(long hash) {
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb93fe53f0953L;
+        return hash ^ (hash >>> 33);
+    }
+}
@@ -0,0 +1,236 @@
+package com.magicscreencinema.persistence;
+
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Base class of the json adapters generated at compile time by the persistence annotation
+ * processor, one per {@link com.magicscreencinema.persistence.declaration.ElementCollection} class,
+ * named after the class with an {@code _PersistenceAdapter} suffix. Generated adapters read and
+ * write plain fields directly and hand relation fields to the same relation handling as
+ * {@link ReferenceTypeAdapter}, so both produce the same records. Classes without a generated
+ * adapter are serialized through reflection.
+ */
+public abstract class GeneratedEntityAdapter<T> extends TypeAdapter<T> {
+    static final String SUFFIX = "_PersistenceAdapter";
+
+    private static final ClassValue<Class<?>> ADAPTER_CLASSES = new ClassValue<>() {
+        @Override
+        protected Class<?> computeValue(Class<?> type) {
+            String packageName = type.getPackageName();
+            String simpleName = type.getName().substring(packageName.isEmpty() ? 0 : packageName.length() + 1).replace('$', '_');
+            String adapterName = (packageName.isEmpty() ? "" : packageName + ".") + simpleName + SUFFIX;
+            try {
+                Class<?> adapterClass = Class.forName(adapterName, true, type.getClassLoader());
+                return GeneratedEntityAdapter.class.isAssignableFrom(adapterClass) ? adapterClass : null;
+            } catch (ClassNotFoundException e) {
+                return null;
+            }
+        }
+    };
+
+    private final Class<T> type;
+    private final EntityMetadata metadata;
+    private final RelationMapper relations;
+    private final Map<String, TypeAdapter<Object>> writeAdapters = new ConcurrentHashMap<>();
+    private final Map<String, TypeAdapter<Object>> readAdapters = new ConcurrentHashMap<>();
+    private Gson gson;
+    private TypeAdapter<T> reflective;
+
+    protected GeneratedEntityAdapter(Class<T> type) {
+        this.type = type;
+        this.metadata = EntityMetadata.of(type);
+        this.relations = new RelationMapper(type);
+    }
+
+    /**
+     * the generated adapter of the class bound to the given gson, or null when it has none
+     */
+    static <T> TypeAdapter<T> find(Gson gson, Class<T> type) {
+        Class<?> adapterClass = ADAPTER_CLASSES.get(type);
+        return adapterClass == null ? null : create(gson, adapterClass, type);
+    }
+
+    /**
+     * an instance of the given generated adapter class bound to the given gson
+     */
+    @SuppressWarnings("unchecked")
+    static <T> GeneratedEntityAdapter<T> create(Gson gson, Class<?> adapterClass, Class<T> type) {
+        try {
+            GeneratedEntityAdapter<T> adapter = (GeneratedEntityAdapter<T>) adapterClass.getConstructor().newInstance();
+            adapter.gson = gson;
+            adapter.reflective = new ReferenceTypeAdapter<>(gson, type);
+            return adapter;
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Could not create generated adapter " + adapterClass.getName(), e);
+        }
+    }
+
+    /**
+     * writes the name and value of every persistent field, in the order of the entity metadata
+     */
+    protected abstract void writeFields(JsonWriter writer, T entity) throws IOException;
+
+    /**
+     * reads the value of a plain field into the entity, returns false for a field it does not know
+     */
+    protected abstract boolean readField(JsonReader reader, T entity, String name) throws IOException;
+
+    protected T newInstance() {
+        return metadata.newInstance();
+    }
+
+    @Override
+    public final void write(JsonWriter writer, T entity) throws IOException {
+        if (entity == null) {
+            writer.nullValue();
+            return;
+        }
+        if (entity.getClass() != type) {
+            // subclasses have fields the generated code does not know about
+            reflective.write(writer, entity);
+            return;
+        }
+        writer.beginObject();
+        writeFields(writer, entity);
+        writer.endObject();
+    }
+
+    @Override
+    public final T read(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+
+        T instance = newInstance();
+        EntityMetadata.FieldMetadata idField = metadata.idField();
+        UUID instanceId = null;
+
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            EntityMetadata.FieldMetadata field = metadata.field(name);
+            if (field == null) {
+                reader.skipValue();
+            } else if (field.isSingleReference()) {
+                relations.readSingleReference(field, instance, instanceId);
+                reader.skipValue();
+            } else if (field.isCollectionReference()) {
+                relations.readCollectionReference(field, instance, instanceId);
+                reader.skipValue();
+            } else if (!readField(reader, instance, name)) {
+                reader.skipValue();
+            } else if (field == idField) {
+                instanceId = (UUID) field.get(instance);
+                PersistenceContext.registerSubContext(instance.getClass(), instanceId, instance);
+            }
+        }
+        reader.endObject();
+        return instance;
+    }
+
+    /**
+     * writes a value through the gson adapter of the field's declared type
+     */
+    protected final void writeValue(JsonWriter writer, String fieldName, Object value) throws IOException {
+        if (value == null) {
+            writer.nullValue();
+            return;
+        }
+        writeAdapters.computeIfAbsent(fieldName, k -> adapter(TypeToken.get(field(k).type()))).write(writer, value);
+    }
+
+    /**
+     * reads a value through the gson adapter of the field's generic type
+     */
+    protected final Object readValue(JsonReader reader, String fieldName) throws IOException {
+        return readAdapters.computeIfAbsent(fieldName, k -> adapter(TypeToken.get(field(k).genericType()))).read(reader);
+    }
+
+    /**
+     * for fields the generated code can not assign, such as final fields
+     */
+    protected final void setReflectively(T entity, String fieldName, Object value) {
+        field(fieldName).set(entity, value);
+    }
+
+    /**
+     * saves the relation held by the field and writes the placeholder stored in its place
+     */
+    protected final void writeReference(JsonWriter writer, String fieldName, T entity, Object value) throws IOException {
+        EntityMetadata.FieldMetadata field = field(fieldName);
+        if (value == null) {
+            writer.nullValue();
+        } else if (field.isSingleReference()) {
+            relations.writeSingleReference(field, entity, value);
+            writer.nullValue();
+        } else {
+            relations.writeCollectionReference(field, entity, value);
+            writer.beginArray();
+            writer.endArray();
+        }
+    }
+
+    protected static String readString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    protected static Integer readInteger(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextInt();
+    }
+
+    protected static Long readLong(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextLong();
+    }
+
+    protected static Double readDouble(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextDouble();
+    }
+
+    protected static Boolean readBoolean(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextBoolean();
+    }
+
+    private EntityMetadata.FieldMetadata field(String fieldName) {
+        EntityMetadata.FieldMetadata field = metadata.field(fieldName);
+        if (field == null) {
+            throw new IllegalStateException("Generated adapter of " + type.getName() + " is out of date, field " + fieldName + " does not exist");
+        }
+        return field;
+    }
+
+    @SuppressWarnings("unchecked")
+    private TypeAdapter<Object> adapter(TypeToken<?> typeToken) {
+        return (TypeAdapter<Object>) gson.getAdapter(typeToken);
+    }
+}
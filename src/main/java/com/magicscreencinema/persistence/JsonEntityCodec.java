@@ -0,0 +1,89 @@
+package com.magicscreencinema.persistence;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.gson.TypeAdapterFactory;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+class JsonEntityCodec<T> implements EntityCodec<T> {
+    private final Class<T> objectClass;
+    private final Gson gson;
+
+    JsonEntityCodec(Class<T> objectClass) {
+        this(objectClass, new ReferenceTypeAdapterFactory());
+    }
+
+    /**
+     * entities serialized through the adapters of the given factory
+     */
+    JsonEntityCodec(Class<T> objectClass, TypeAdapterFactory entityAdapters) {
+        this.objectClass = objectClass;
+        gson = new GsonBuilder().
+                registerTypeAdapterFactory(entityAdapters)
+                .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter())
+                .registerTypeAdapter(LocalDate.class, new LocalDateAdapter())
+                .serializeNulls()
+                .setPrettyPrinting()
+                .create();
+    }
+
+    Gson gson() {
+        return gson;
+    }
+
+    @Override
+    public byte[] encode(T entity) {
+        return gson.toJson(entity).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public T decode(InputStream record) {
+        return gson.fromJson(new InputStreamReader(record, StandardCharsets.UTF_8), objectClass);
+    }
+
+    /**
+     * Streams through the document and stops as soon as every wanted field was read.
+     */
+    @Override
+    public Map<String, Object> readFields(InputStream record, Set<String> fieldNames) throws IOException {
+        Map<String, Object> values = new HashMap<>();
+        JsonReader reader = gson.newJsonReader(new InputStreamReader(record, StandardCharsets.UTF_8));
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) return values;
+
+        reader.beginObject();
+        while (values.size() < fieldNames.size() && reader.hasNext()) {
+            String name = reader.nextName();
+            EntityMetadata.FieldMetadata field = fieldNames.contains(name) ? EntityMetadata.of(objectClass).field(name) : null;
+            if (field == null) {
+                reader.skipValue();
+                continue;
+            }
+            values.put(name, gson.getAdapter(TypeToken.get(field.genericType())).read(reader));
+        }
+        return values;
+    }
+
+    @Override
+    public byte[] patch(byte[] record, Map<String, Object> values) {
+        JsonObject document = JsonParser.parseString(new String(record, StandardCharsets.UTF_8)).getAsJsonObject();
+        EntityMetadata metadata = EntityMetadata.of(objectClass);
+        for (Map.Entry<String, Object> value : values.entrySet()) {
+            document.add(value.getKey(), gson.toJsonTree(value.getValue(), metadata.field(value.getKey()).genericType()));
+        }
+        return gson.toJson(document).getBytes(StandardCharsets.UTF_8);
+    }
+}
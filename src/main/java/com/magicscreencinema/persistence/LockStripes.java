@@ -0,0 +1,71 @@
+package com.magicscreencinema.persistence;
+
+import java.util.*;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Fixed sets of read-write locks that entity records, keyed by collection and id, and relation
+ * files, keyed by name, are hashed onto. A committing transaction write locks the stripes of
+ * everything it changes, readers of a single record or relation file read lock its stripe, so
+ * operations on unrelated entities only meet when their keys share a stripe.
+ * <p>
+ * Stripes are always taken in the order of their number, entity stripes before relation stripes,
+ * so transactions locking several of them can not deadlock.
+ */
+final class LockStripes {
+    private static final LockStripes ENTITIES = new LockStripes(0, PersistenceConfig.lockStripes());
+    private static final LockStripes RELATIONS = new LockStripes(ENTITIES.stripes.length, PersistenceConfig.lockStripes());
+
+    static final class Stripe extends ReentrantReadWriteLock {
+        private final int order;
+
+        private Stripe(int order) {
+            this.order = order;
+        }
+    }
+
+    private final Stripe[] stripes;
+
+    private LockStripes(int firstOrder, int count) {
+        int size = Integer.highestOneBit(Math.max(1, count - 1)) << 1;
+        this.stripes = new Stripe[size];
+        for (int i = 0; i < size; i++) {
+            stripes[i] = new Stripe(firstOrder + i);
+        }
+    }
+
+    static Stripe entity(String collectionName, UUID id) {
+        return ENTITIES.stripe(31 * collectionName.hashCode() + id.hashCode());
+    }
+
+    static Stripe relation(String relationName) {
+        return RELATIONS.stripe(relationName.hashCode());
+    }
+
+    /**
+     * write locks the distinct stripes in their global order, release them with {@link #unlockAll}
+     */
+    static List<Stripe> lockAll(Collection<Stripe> stripes) {
+        List<Stripe> ordered = new ArrayList<>(new HashSet<>(stripes));
+        ordered.sort(Comparator.comparingInt(stripe -> stripe.order));
+        for (int i = 0; i < ordered.size(); i++) {
+            try {
+                ordered.get(i).writeLock().lock();
+            } catch (RuntimeException | Error e) {
+                unlockAll(ordered.subList(0, i));
+                throw e;
+            }
+        }
+        return ordered;
+    }
+
+    static void unlockAll(List<Stripe> locked) {
+        for (int i = locked.size() - 1; i >= 0; i--) {
+            locked.get(i).writeLock().unlock();
+        }
+    }
+
+    private Stripe stripe(int hash) {
+        return stripes[(hash ^ (hash >>> 16)) & (stripes.length - 1)];
+    }
+}
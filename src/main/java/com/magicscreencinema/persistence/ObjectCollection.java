@@ -1,15 +1,36 @@
 package com.magicscreencinema.persistence;
 
 import java.io.IOException;
+import java.util.Collection;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.UUID;
+import java.util.stream.Stream;
 
-public interface ObjectCollection<T> {
+public interface ObjectCollection<T> extends Iterable<T> {
     void save(T object);
+    BatchResult saveIfVersion(T object);
     Optional<T> findById(UUID id);
     List<T> findAll(boolean flushContext);
     List<T> findAll();
+    Stream<T> stream();
+    Stream<T> parallelStream();
     boolean existsById(UUID id);
+    long count();
+    List<UUID> findAllIds();
+    List<T> findPage(UUID afterId, int limit);
+    Page<T> findPageByCursor(String cursor, int limit);
     boolean deleteById(UUID id) throws IOException;
+    List<BatchResult> saveAll(Collection<? extends T> objects);
+    Map<UUID, T> findAllById(Collection<UUID> ids);
+    List<BatchResult> deleteAllById(Collection<UUID> ids);
+    boolean update(UUID id, Map<String, Object> values);
+    List<BatchResult> updateAll(Collection<UUID> ids, Map<String, Object> values);
+    List<T> findBy(String fieldName, Object value);
+    Stream<T> findRange(String fieldName, Object from, Object to);
+    Query<T> query();
+    Optional<Map<String, Object>> findById(UUID id, Projection projection);
+    List<Map<String, Object>> findAll(Projection projection);
+    CacheStats cacheStats();
 }
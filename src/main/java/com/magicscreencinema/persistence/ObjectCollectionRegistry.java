@@ -6,34 +6,122 @@ import com.magicscreencinema.persistence.exception.MissingIdException;
 import com.magicscreencinema.persistence.exception.NotACollectionException;
 
 import java.io.IOException;
-import java.lang.reflect.Field;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 public class ObjectCollectionRegistry {
-    private static final Map<Class<?>, ObjectCollection<?>> collections = new HashMap<>();
+    private static final Map<Class<?>, ObjectCollection<?>> collections = new ConcurrentHashMap<>();
+    private static final Map<Class<?>, AsyncObjectCollection<?>> asyncCollections = new ConcurrentHashMap<>();
+    private static final ScheduledExecutorService INDEX_FLUSHER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "index-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
 
-    private static <T> SimpleObjectCollection<T> create(Class<T> clazz) {
-        return new SimpleObjectCollection<>(clazz);
+    static {
+        if (PersistenceConfig.walEnabled()) WriteAheadLog.open();
+        long interval = PersistenceConfig.indexFlushIntervalMillis();
+        INDEX_FLUSHER.scheduleWithFixedDelay(ObjectCollectionRegistry::persistIndexes, interval, interval, TimeUnit.MILLISECONDS);
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            flushWriteBehind();
+            persistIndexes();
+        }, "index-flush-on-shutdown"));
     }
 
+    private static <T> ObjectCollection<T> create(Class<T> clazz) {
+        AbstractObjectCollection<T> collection = open(clazz);
+        String collectionName = collection.collectionName;
+        return PersistenceConfig.writeBehind(collectionName)
+                ? new WriteBehindObjectCollection<>(clazz, collection, collectionName)
+                : collection;
+    }
+
+    private static <T> AbstractObjectCollection<T> open(Class<T> clazz) {
+        PersistenceUtil.isUUIDType(PersistenceUtil.findIdField(clazz));
+        createFolder(clazz);
+
+        String collectionName = clazz.getAnnotation(ElementCollection.class).name();
+        AbstractObjectCollection<T> collection = switch (PersistenceConfig.storageEngine(collectionName)) {
+            case FILE -> new SimpleObjectCollection<>(clazz);
+            case SEGMENT -> new SegmentObjectCollection<>(clazz);
+        };
+
+        try {
+            collection.openSecondaryIndexes();
+        } catch (IOException e) {
+            throw new RuntimeException("Could not open secondary indexes of collection: " + collectionName, e);
+        }
+
+        WriteAheadLog log = WriteAheadLog.current();
+        if (log != null) {
+            try {
+                log.replay(collection);
+            } catch (IOException e) {
+                throw new RuntimeException("Could not replay write-ahead log into collection: " + collectionName, e);
+            }
+        }
+        return collection;
+    }
+
+    /**
+     * the collection of the class, opened on first use. Once open, getting it is a single lock free
+     * map lookup, so it is cheap enough to call from cascade loops on any thread.
+     */
     public static <T> ObjectCollection<T> getCollection(Class<T> clazz) {
-        if (PersistenceUtil.isElementCollection(clazz)) {
-            Field idField = PersistenceUtil.findIdField(clazz);
-            PersistenceUtil.isUUIDType(idField);
-            addToDb(clazz);
-            ObjectCollection<?> collection = collections.computeIfAbsent(clazz, k -> create(clazz));
+        ObjectCollection<?> collection = collections.get(clazz);
+        if (collection != null) return (ObjectCollection<T>) collection;
 
-            return (ObjectCollection<T>) collection;
+        if (!PersistenceUtil.isElementCollection(clazz)) {
+            throw new NotACollectionException(clazz.getName() + " is not annotated with @ElementCollection");
         }
-        throw new NotACollectionException(clazz.getName() + " is not annotated with @ElementCollection");
+        return (ObjectCollection<T>) collections.computeIfAbsent(clazz, k -> create(clazz));
+    }
+
+    /**
+     * asynchronous view of the collection of the class, see {@link AsyncObjectCollection}
+     */
+    public static <T> AsyncObjectCollection<T> getAsyncCollection(Class<T> clazz) {
+        AsyncObjectCollection<?> collection = asyncCollections.get(clazz);
+        if (collection != null) return (AsyncObjectCollection<T>) collection;
+
+        ObjectCollection<T> synchronous = getCollection(clazz);
+        StorageRoot root = StorageRoot.of(clazz.getAnnotation(ElementCollection.class).name());
+        return (AsyncObjectCollection<T>) asyncCollections.computeIfAbsent(clazz, k -> new AsyncObjectCollection<>(clazz, synchronous, root));
+    }
+
+    /**
+     * Moves the files of the collection of the class that are stored in another layout than the
+     * one configured with collection.&lt;name&gt;.layout, see {@link FileLayout}. Files of both
+     * layouts are readable before and while this runs, it only has to be called once after
+     * changing the layout of a large collection.
+     *
+     * @return number of files moved, always 0 for collections not stored one file per entity
+     */
+    public static int migrateLayout(Class<?> clazz) throws IOException {
+        ObjectCollection<?> collection = getCollection(clazz);
+        if (collection instanceof WriteBehindObjectCollection<?> writeBehind) collection = writeBehind.delegate();
+        return collection instanceof SimpleObjectCollection<?> files ? files.migrateLayout() : 0;
     }
 
-    private static void addToDb(Class<?> clazz) {
+    /**
+     * Writes the pending saves of the collection of the class now, when it is in write-behind
+     * mode, instead of waiting for its next flush.
+     *
+     * @return result of every pending save, empty for collections that write right away
+     */
+    public static List<BatchResult> flush(Class<?> clazz) {
+        return getCollection(clazz) instanceof WriteBehindObjectCollection<?> writeBehind ? writeBehind.flush() : List.of();
+    }
+
+    private static void createFolder(Class<?> clazz) {
         ElementCollection coll = clazz.getAnnotation(ElementCollection.class);
         String collectionName = coll.name();
         Path folderPath = PersistenceConfig.resolveCollectionPath(collectionName);
@@ -46,6 +134,31 @@ public class ObjectCollectionRegistry {
         }
     }
 
+    /**
+     * writes the indexes of every open collection that changed since it was last stored
+     */
+    static void persistIndexes() {
+        for (ObjectCollection<?> collection : List.copyOf(collections.values())) {
+            if (collection instanceof WriteBehindObjectCollection<?> writeBehind) collection = writeBehind.delegate();
+            if (collection instanceof AbstractObjectCollection<?> objectCollection) {
+                try {
+                    objectCollection.persistIndexes();
+                } catch (IOException _) {
+                    // the index is rebuilt from the records when the collection is opened next time
+                }
+            }
+        }
+    }
+
+    /**
+     * writes the pending saves of every write-behind collection
+     */
+    static void flushWriteBehind() {
+        for (ObjectCollection<?> collection : List.copyOf(collections.values())) {
+            if (collection instanceof WriteBehindObjectCollection<?> writeBehind) writeBehind.flushQuietly();
+        }
+    }
+
     static Set<Class<?>> getRegisteredClasses() {
         return collections.keySet();
     }
@@ -0,0 +1,14 @@
+package com.magicscreencinema.persistence;
+
+import java.util.List;
+
+/**
+ * One page of a collection in id order. nextCursor is null on the last page and otherwise
+ * continues right after the last item, however the collection changed in between.
+ */
+public record Page<T>(List<T> items, String nextCursor) {
+
+    public boolean hasNext() {
+        return nextCursor != null;
+    }
+}
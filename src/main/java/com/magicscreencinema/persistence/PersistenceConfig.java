@@ -4,11 +4,17 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
 
 class PersistenceConfig {
+    private static final String ROOT_PREFIX = "storage.root.";
 
     private static Path DATABASE_PATH;
+    private static Map<String, Path> ROOT_PATHS;
+    private static Properties PROPERTIES;
 
     static {
         try {
@@ -27,11 +33,211 @@ class PersistenceConfig {
             props.load(in);
         }
 
+        PROPERTIES = props;
         DATABASE_PATH = Path.of(props.getProperty("database.path", "db")).toAbsolutePath();
+
+        ROOT_PATHS = new HashMap<>();
+        ROOT_PATHS.put(StorageRoot.DEFAULT, DATABASE_PATH);
+        for (String key : props.stringPropertyNames()) {
+            String rootName = key.startsWith(ROOT_PREFIX) ? key.substring(ROOT_PREFIX.length()) : "";
+            // keys with a dot after the root name are settings of the root, not its folder
+            if (!rootName.isEmpty() && !rootName.contains(".")) {
+                ROOT_PATHS.put(rootName, Path.of(props.getProperty(key).trim()).toAbsolutePath());
+            }
+        }
     }
 
+    /**
+     * Folder of the collection or relation file, in the storage root the name is mapped to with
+     * collection.&lt;name&gt;.root. Indexes of a collection are stored next to its folder.
+     */
     static Path resolveCollectionPath(String collectionName) {
-        return DATABASE_PATH.resolve(collectionName);
+        return resolveRootPath(collectionName).resolve(collectionName);
+    }
+
+    static Path resolveIndexPath(String collectionName) {
+        return resolveRootPath(collectionName).resolve(collectionName + ".idx");
+    }
+
+    static Path resolveSecondaryIndexPath(String collectionName, String fieldName) {
+        return resolveRootPath(collectionName).resolve(collectionName + "." + fieldName + ".sidx");
+    }
+
+    static Path resolveRangeIndexPath(String collectionName, String fieldName) {
+        return resolveRootPath(collectionName).resolve(collectionName + "." + fieldName + ".ridx");
+    }
+
+    /**
+     * name of the storage root of a collection or relation file, the default root in database.path
+     * unless collection.&lt;name&gt;.root names one configured with storage.root.&lt;root&gt;=path
+     */
+    static String storageRoot(String collectionName) {
+        String rootName = PROPERTIES.getProperty("collection." + collectionName + ".root", StorageRoot.DEFAULT).trim();
+        if (!ROOT_PATHS.containsKey(rootName)) {
+            throw new IllegalArgumentException("Unknown storage root " + rootName + " of collection " + collectionName);
+        }
+        return rootName;
+    }
+
+    private static Path resolveRootPath(String collectionName) {
+        return ROOT_PATHS.get(storageRoot(collectionName));
+    }
+
+    /**
+     * threads doing the asynchronous writes and write-behind flushes of the collections in a root,
+     * storage.root.&lt;root&gt;.io.threads overrides async.writer.threads
+     */
+    static int ioThreads(String rootName) {
+        String value = PROPERTIES.getProperty(ROOT_PREFIX + rootName + ".io.threads");
+        return value != null ? Integer.parseInt(value.trim()) : asyncWriterThreads();
+    }
+
+    /**
+     * the one write-ahead log of all roots, wal.log in the root named by wal.root, the default root
+     * unless set. Every commit waits for the fsync of this file, so it belongs on the fastest volume.
+     */
+    static Path resolveWriteAheadLogPath() {
+        String rootName = PROPERTIES.getProperty("wal.root", StorageRoot.DEFAULT).trim();
+        if (!ROOT_PATHS.containsKey(rootName)) {
+            throw new IllegalArgumentException("Unknown storage root " + rootName + " of the write-ahead log");
+        }
+        return ROOT_PATHS.get(rootName).resolve("wal.log");
+    }
+
+    static boolean walEnabled() {
+        return Boolean.parseBoolean(PROPERTIES.getProperty("wal.enabled", "false").trim());
+    }
+
+    /**
+     * size after which the write-ahead log is emptied once all appended transactions are applied
+     */
+    static long walCheckpointBytes() {
+        return Long.parseLong(PROPERTIES.getProperty("wal.checkpoint.bytes", "16777216").trim());
+    }
+
+    /**
+     * how long a primary index is trusted before the collection folder is checked for outside changes
+     */
+    static long indexStalenessCheckMillis() {
+        return Long.parseLong(PROPERTIES.getProperty("index.staleness.check.ms", "1000").trim());
+    }
+
+    static long indexFlushIntervalMillis() {
+        return Long.parseLong(PROPERTIES.getProperty("index.flush.interval.ms", "10000").trim());
+    }
+
+    /**
+     * number of locks entity records and relation files are spread over, rounded up to a power of two
+     */
+    static int lockStripes() {
+        return Integer.parseInt(PROPERTIES.getProperty("lock.stripes", "256").trim());
+    }
+
+    /**
+     * number of reader threads a findAll is split across, 1 reads on the calling thread
+     */
+    static int scanParallelism() {
+        return Integer.parseInt(PROPERTIES.getProperty("scan.parallelism", "1").trim());
     }
-}
 
+    /**
+     * reader threads a findAll of the collection is split across, scan.parallelism unless set for it
+     */
+    static int scanParallelism(String collectionName) {
+        return Integer.parseInt(collectionProperty(collectionName, "scan.parallelism", "1"));
+    }
+
+    /**
+     * threads running the operations of asynchronous collections, per storage root
+     */
+    static int asyncWriterThreads() {
+        return Integer.parseInt(PROPERTIES.getProperty("async.writer.threads",
+                String.valueOf(Runtime.getRuntime().availableProcessors())).trim());
+    }
+
+    /**
+     * operations of asynchronous collections of one storage root pending at once before submitting
+     * blocks the caller
+     */
+    static int asyncQueueCapacity() {
+        return Integer.parseInt(PROPERTIES.getProperty("async.queue.capacity", "1024").trim());
+    }
+
+    /**
+     * storage engine of a collection, configured with collection.&lt;name&gt;.storage=file|segment
+     */
+    static StorageEngine storageEngine(String collectionName) {
+        String value = PROPERTIES.getProperty("collection." + collectionName + ".storage", StorageEngine.FILE.name());
+        return StorageEngine.valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * record format of a collection, configured with collection.&lt;name&gt;.format=json|binary
+     */
+    static EntityFormat entityFormat(String collectionName) {
+        String value = PROPERTIES.getProperty("collection." + collectionName + ".format", EntityFormat.JSON.name());
+        return EntityFormat.valueOf(value.trim().toUpperCase(Locale.ROOT));
+    }
+
+    /**
+     * records kept in the cache of a collection, collection.&lt;name&gt;.cache.capacity overrides
+     * cache.capacity, 0 disables the cache
+     */
+    static int cacheCapacity(String collectionName) {
+        return Integer.parseInt(collectionProperty(collectionName, "cache.capacity", "0"));
+    }
+
+    /**
+     * placement of the files of a file collection, collection.&lt;name&gt;.layout overrides layout
+     */
+    static FileLayout fileLayout(String collectionName) {
+        return FileLayout.valueOf(collectionProperty(collectionName, "layout", FileLayout.FLAT.name()).toUpperCase(Locale.ROOT));
+    }
+
+    static long cacheExpireAfterWriteMillis(String collectionName) {
+        return Long.parseLong(collectionProperty(collectionName, "cache.expire.after.write.ms", "0"));
+    }
+
+    /**
+     * whether saves of a collection are collected in memory and written in batches, see
+     * {@link WriteBehindObjectCollection}
+     */
+    static boolean writeBehind(String collectionName) {
+        return Boolean.parseBoolean(collectionProperty(collectionName, "write.behind", "false"));
+    }
+
+    static long writeBehindFlushIntervalMillis(String collectionName) {
+        return Long.parseLong(collectionProperty(collectionName, "write.behind.flush.interval.ms", "1000"));
+    }
+
+    /**
+     * dirty objects of a write-behind collection that start a flush before the interval is over
+     */
+    static int writeBehindMaxDirty(String collectionName) {
+        return Integer.parseInt(collectionProperty(collectionName, "write.behind.max.dirty", "1000"));
+    }
+
+    /**
+     * flushes that may reject a dirty object of a write-behind collection before it is dropped
+     */
+    static int writeBehindMaxAttempts(String collectionName) {
+        return Integer.parseInt(collectionProperty(collectionName, "write.behind.max.attempts", "3"));
+    }
+
+    static long segmentMaxBytes() {
+        return Long.parseLong(PROPERTIES.getProperty("segment.max.bytes", "67108864").trim());
+    }
+
+    static double segmentCompactionThreshold() {
+        return Double.parseDouble(PROPERTIES.getProperty("segment.compaction.threshold", "0.5").trim());
+    }
+
+    static long segmentCompactionIntervalMillis() {
+        return Long.parseLong(PROPERTIES.getProperty("segment.compaction.interval.ms", "30000").trim());
+    }
+
+    private static String collectionProperty(String collectionName, String key, String defaultValue) {
+        String value = PROPERTIES.getProperty("collection." + collectionName + "." + key, PROPERTIES.getProperty(key, defaultValue));
+        return value.trim();
+    }
+}
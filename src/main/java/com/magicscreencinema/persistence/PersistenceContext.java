@@ -1,18 +1,21 @@
 package com.magicscreencinema.persistence;
 
-import java.lang.reflect.Field;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.UUID;
 
+/**
+ * Objects already loaded or being saved by the current operation, so that references between them
+ * resolve to the same instance. Every thread has its own context, which lets collections be read
+ * from several threads at once.
+ */
 class PersistenceContext {
-    private final static Map<Class<?>, Map<UUID, Object>> loadedObjects = new HashMap<>();
+    private final static ThreadLocal<Map<Class<?>, Map<UUID, Object>>> LOADED_OBJECTS = ThreadLocal.withInitial(HashMap::new);
+
     static void registerInContext(Object obj) {
         try {
-            Field idField = PersistenceUtil.findIdField(obj.getClass());
-            idField.setAccessible(true);
-            UUID id = (UUID) idField.get(obj);
-            loadedObjects
+            UUID id = (UUID) EntityMetadata.of(obj.getClass()).idField().get(obj);
+            LOADED_OBJECTS.get()
                     .computeIfAbsent(obj.getClass(), k -> new HashMap<>())
                     .put(id, obj);
         } catch (Exception ignored) {
@@ -20,16 +23,17 @@ class PersistenceContext {
     }
 
     static void registerSubContext(Class<?> clazz, UUID id, Object obj) {
-        loadedObjects
+        LOADED_OBJECTS.get()
                 .computeIfAbsent(clazz, k -> new HashMap<>())
                 .put(id, obj);
     }
 
     static Object getFromContext(Class<?> clazz, UUID id) {
-        return loadedObjects.getOrDefault(clazz, Map.of()).get(id);
+        return LOADED_OBJECTS.get().getOrDefault(clazz, Map.of()).get(id);
     }
 
     static void removeFromContext(Class<?> clazz, UUID id) {
+        Map<Class<?>, Map<UUID, Object>> loadedObjects = LOADED_OBJECTS.get();
         Map<UUID, Object> classMap = loadedObjects.get(clazz);
         if (classMap != null) {
             classMap.remove(id);
@@ -40,6 +44,6 @@ class PersistenceContext {
     }
 
     static void flush() {
-        loadedObjects.clear();
+        LOADED_OBJECTS.remove();
     }
 }
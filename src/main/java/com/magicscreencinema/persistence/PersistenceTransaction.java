@@ -0,0 +1,557 @@
+package com.magicscreencinema.persistence;
+
+import com.magicscreencinema.persistence.exception.CouldNotPersistObjectException;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Unit of work of one top level save or delete. Entity records and relation file changes made while
+ * it is open are only collected, nested saves and deletes join it, and everything is written to the
+ * write-ahead log as one record and applied to the materialized files when the outermost call ends.
+ * If the work throws, nothing is written. Once the record is durable the transaction is committed
+ * and no longer rolled back, changes that can not be applied are left to the log, see
+ * {@link WriteAheadLog}.
+ */
+final class PersistenceTransaction {
+    private static final ThreadLocal<PersistenceTransaction> CURRENT = new ThreadLocal<>();
+    private static final int APPLY_ATTEMPTS = 3;
+
+    private final Map<EntityKey, PendingRecord> entityWrites = new LinkedHashMap<>();
+    private final Map<ReferenceCollectionManager, RelationLines> relations = new LinkedHashMap<>();
+    private final Map<SecondaryIndex, UniqueClaims> uniqueClaims = new LinkedHashMap<>();
+    private final Map<EntityKey, Long> expectedVersions = new LinkedHashMap<>();
+    private final Map<EntityKey, Long> expectedRecords = new LinkedHashMap<>();
+    private final Deque<Runnable> undoLog = new ArrayDeque<>();
+    private final List<Runnable> rollbackActions = new ArrayList<>();
+    private int openSavepoints;
+    private boolean durable;
+
+    @FunctionalInterface
+    interface Work<R> {
+        R run(PersistenceTransaction transaction) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface Change {
+        void apply() throws IOException;
+    }
+
+    /**
+     * one change of the transaction, applied to the files and logged as the operation
+     */
+    private record Step(WriteAheadLog.Operation operation, Change change) {
+    }
+
+    /**
+     * record == null marks a pending delete
+     */
+    record PendingRecord(byte[] record) {
+    }
+
+    private record EntityKey(AbstractObjectCollection<?> collection, UUID id) {
+    }
+
+    /**
+     * values of a unique index taken or given up by the transaction, a null key gives up the id's value
+     */
+    private record UniqueClaims(AbstractObjectCollection<?> collection, Map<UUID, String> keysById, Map<String, UUID> idsByKey) {
+    }
+
+    /**
+     * records are applied collection by collection in id order, which is also file name order
+     */
+    private static final Comparator<Map.Entry<EntityKey, PendingRecord>> WRITE_ORDER = Comparator
+            .comparing((Map.Entry<EntityKey, PendingRecord> entry) -> entry.getKey().collection().collectionName)
+            .thenComparing(entry -> entry.getKey().id(), PrimaryIndex.ID_ORDER);
+
+    private PersistenceTransaction() {
+    }
+
+    static <R> R execute(Work<R> work) throws IOException {
+        PersistenceTransaction transaction = CURRENT.get();
+        if (transaction != null) {
+            return work.run(transaction);
+        }
+
+        transaction = new PersistenceTransaction();
+        CURRENT.set(transaction);
+        R result;
+        try {
+            result = work.run(transaction);
+            CURRENT.remove();
+            transaction.commit();
+        } catch (IOException | RuntimeException | Error e) {
+            if (!transaction.durable) transaction.rollBack();
+            throw e;
+        } finally {
+            CURRENT.remove();
+        }
+        return result;
+    }
+
+    /**
+     * transaction of the current thread, or null when there is none
+     */
+    static PersistenceTransaction current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * record of the given id written or deleted by the transaction of the current thread,
+     * or null when there is none
+     */
+    static PendingRecord pendingRecord(AbstractObjectCollection<?> collection, UUID id) {
+        PersistenceTransaction transaction = CURRENT.get();
+        return transaction == null ? null : transaction.entityWrites.get(new EntityKey(collection, id));
+    }
+
+    /**
+     * whether the transaction of the current thread changed lines of the relation file
+     */
+    static boolean changesRelations(ReferenceCollectionManager manager) {
+        PersistenceTransaction transaction = CURRENT.get();
+        if (transaction == null) return false;
+        RelationLines lines = transaction.relations.get(manager);
+        return lines != null && lines.isChanged();
+    }
+
+    /**
+     * relation lines as seen by the transaction of the current thread, or null when there is none
+     */
+    static List<String> pendingRelationLines(ReferenceCollectionManager manager) throws IOException {
+        PersistenceTransaction transaction = CURRENT.get();
+        return transaction == null ? null : transaction.relationLines(manager).lines();
+    }
+
+    void put(AbstractObjectCollection<?> collection, UUID id, byte[] record) {
+        write(new EntityKey(collection, id), new PendingRecord(record));
+    }
+
+    void delete(AbstractObjectCollection<?> collection, UUID id) {
+        write(new EntityKey(collection, id), new PendingRecord(null));
+    }
+
+    RelationLines relationLines(ReferenceCollectionManager manager) throws IOException {
+        RelationLines lines = relations.get(manager);
+        if (lines == null) {
+            long writes = manager.writes();
+            lines = new RelationLines(this, manager.readLines(), writes);
+            relations.put(manager, lines);
+        }
+        return lines;
+    }
+
+    PendingRecord pending(AbstractObjectCollection<?> collection, UUID id) {
+        return entityWrites.get(new EntityKey(collection, id));
+    }
+
+    /**
+     * id that claimed the key of a unique index in this transaction, or null
+     */
+    UUID claimant(SecondaryIndex index, String key) {
+        UniqueClaims claims = uniqueClaims.get(index);
+        return claims == null ? null : claims.idsByKey().get(key);
+    }
+
+    boolean hasClaim(SecondaryIndex index, UUID id) {
+        UniqueClaims claims = uniqueClaims.get(index);
+        return claims != null && claims.keysById().containsKey(id);
+    }
+
+    String claimedKey(SecondaryIndex index, UUID id) {
+        UniqueClaims claims = uniqueClaims.get(index);
+        return claims == null ? null : claims.keysById().get(id);
+    }
+
+    void claim(AbstractObjectCollection<?> collection, SecondaryIndex index, UUID id, String key) {
+        UniqueClaims claims = uniqueClaims.computeIfAbsent(index, k -> new UniqueClaims(collection, new HashMap<>(), new HashMap<>()));
+        boolean hadClaim = claims.keysById().containsKey(id);
+        String previous = claims.keysById().put(id, key);
+        if (previous != null) claims.idsByKey().remove(previous);
+        if (key != null) claims.idsByKey().put(key, id);
+        recordUndo(() -> {
+            if (key != null) claims.idsByKey().remove(key);
+            if (hadClaim) {
+                claims.keysById().put(id, previous);
+                if (previous != null) claims.idsByKey().put(previous, id);
+            } else {
+                claims.keysById().remove(id);
+            }
+        });
+    }
+
+    /**
+     * Has the commit check, under the record's lock, that the stored record of the id still has
+     * the given version. Only the first expectation per record counts, later saves of it in the
+     * same transaction are checked against the pending record instead.
+     */
+    void expectVersion(AbstractObjectCollection<?> collection, UUID id, long version) {
+        EntityKey key = new EntityKey(collection, id);
+        if (expectedVersions.putIfAbsent(key, version) == null) recordUndo(() -> expectedVersions.remove(key));
+    }
+
+    /**
+     * Has the commit check, under the record's lock, that the stored record of the id still has the
+     * given fingerprint, for writes computed from the stored record instead of from an object.
+     */
+    void expectRecord(AbstractObjectCollection<?> collection, UUID id, long fingerprint) {
+        EntityKey key = new EntityKey(collection, id);
+        if (expectedRecords.putIfAbsent(key, fingerprint) == null) recordUndo(() -> expectedRecords.remove(key));
+    }
+
+    /**
+     * undoes a change made to an entity object, when the item or the whole transaction fails
+     */
+    void onRollback(Runnable action) {
+        recordUndo(action);
+        rollbackActions.add(action);
+    }
+
+    /**
+     * Runs one item of a batch. If it throws, everything the item changed in this transaction is
+     * rolled back and the exception is rethrown, the changes of the other items are kept.
+     */
+    <R> R savepoint(Work<R> work) throws IOException {
+        int mark = undoLog.size();
+        openSavepoints++;
+        try {
+            return work.run(this);
+        } catch (IOException | RuntimeException e) {
+            while (undoLog.size() > mark) {
+                undoLog.pop().run();
+            }
+            throw e;
+        } finally {
+            if (--openSavepoints == 0) undoLog.clear();
+        }
+    }
+
+    private void write(EntityKey key, PendingRecord record) {
+        PendingRecord previous = entityWrites.remove(key);
+        entityWrites.put(key, record);
+        if (openSavepoints > 0) {
+            undoLog.push(() -> {
+                entityWrites.remove(key);
+                if (previous != null) entityWrites.put(key, previous);
+            });
+        }
+    }
+
+    private void recordUndo(Runnable undo) {
+        if (openSavepoints > 0) undoLog.push(undo);
+    }
+
+    private void commit() throws IOException {
+        List<WriteAheadLog.Operation> operations = new ArrayList<>();
+        for (Map.Entry<EntityKey, PendingRecord> entry : entityWrites.entrySet()) {
+            EntityKey key = entry.getKey();
+            operations.add(new WriteAheadLog.EntityOperation(key.collection().collectionName, key.id(), entry.getValue().record()));
+        }
+        Map<ReferenceCollectionManager, RelationLines> changedRelations = new LinkedHashMap<>();
+        for (Map.Entry<ReferenceCollectionManager, RelationLines> entry : relations.entrySet()) {
+            RelationLines lines = entry.getValue();
+            if (lines.isChanged()) {
+                changedRelations.put(entry.getKey(), lines);
+                operations.add(new WriteAheadLog.RelationOperation(entry.getKey().getName(), lines.removed(), lines.added()));
+            }
+        }
+        List<ReferenceCollectionManager> remembered = new ArrayList<>();
+        for (Map.Entry<ReferenceCollectionManager, RelationLines> entry : relations.entrySet()) {
+            if (!entry.getValue().fingerprints.isEmpty()) remembered.add(entry.getKey());
+        }
+        if (operations.isEmpty() && remembered.isEmpty()) return;
+
+        List<AbstractObjectCollection<?>> locked = lockUniqueCollections();
+        try {
+            Set<ReferenceCollectionManager> lockedRelations = new LinkedHashSet<>(changedRelations.keySet());
+            lockedRelations.addAll(remembered);
+            List<LockStripes.Stripe> stripes = LockStripes.lockAll(stripesOf(lockedRelations));
+            try {
+                validateVersions();
+                validateUniqueClaims();
+                Set<ReferenceCollectionManager> written = operations.isEmpty() ? Set.of() : apply(operations, changedRelations);
+                for (ReferenceCollectionManager manager : remembered) {
+                    RelationLines lines = relations.get(manager);
+                    manager.rememberAll(lines.fingerprints, written.contains(manager), lines.writes);
+                }
+            } finally {
+                LockStripes.unlockAll(stripes);
+            }
+        } finally {
+            locked.forEach(collection -> collection.uniqueLock.unlock());
+        }
+    }
+
+    /**
+     * the stripes of every record and relation file this transaction writes, so transactions
+     * touching different entities apply in parallel and the same entity is never applied twice at once
+     */
+    private List<LockStripes.Stripe> stripesOf(Collection<ReferenceCollectionManager> lockedRelations) {
+        List<LockStripes.Stripe> stripes = new ArrayList<>();
+        for (EntityKey key : entityWrites.keySet()) {
+            stripes.add(LockStripes.entity(key.collection().collectionName, key.id()));
+        }
+        for (ReferenceCollectionManager manager : lockedRelations) {
+            stripes.add(LockStripes.relation(manager.getName()));
+        }
+        return stripes;
+    }
+
+    /**
+     * Locks the collections this transaction claimed unique values in, in name order, so that no
+     * other transaction can take the same values between the check and the write.
+     */
+    private List<AbstractObjectCollection<?>> lockUniqueCollections() {
+        List<AbstractObjectCollection<?>> collections = new ArrayList<>();
+        for (UniqueClaims claims : uniqueClaims.values()) {
+            if (!collections.contains(claims.collection())) collections.add(claims.collection());
+        }
+        collections.sort(Comparator.comparing(collection -> collection.collectionName));
+        collections.forEach(collection -> collection.uniqueLock.lock());
+        return collections;
+    }
+
+    private void validateUniqueClaims() {
+        for (Map.Entry<SecondaryIndex, UniqueClaims> entry : uniqueClaims.entrySet()) {
+            SecondaryIndex index = entry.getKey();
+            AbstractObjectCollection<?> collection = entry.getValue().collection();
+            for (Map.Entry<UUID, String> claim : entry.getValue().keysById().entrySet()) {
+                if (claim.getValue() == null) continue;
+                collection.secondaryIndexes.checkUnique(this, index, claim.getValue(), claim.getKey());
+            }
+        }
+    }
+
+    private void validateVersions() throws IOException {
+        for (Map.Entry<EntityKey, Long> entry : expectedVersions.entrySet()) {
+            EntityKey key = entry.getKey();
+            key.collection().checkVersion(key.id(), entry.getValue());
+        }
+        for (Map.Entry<EntityKey, Long> entry : expectedRecords.entrySet()) {
+            EntityKey key = entry.getKey();
+            key.collection().checkRecord(key.id(), entry.getValue());
+        }
+    }
+
+    private void rollBack() {
+        for (int i = rollbackActions.size() - 1; i >= 0; i--) {
+            rollbackActions.get(i).run();
+        }
+    }
+
+    /**
+     * Returns the relation files that now hold exactly the lines of this transaction. Every change
+     * is tried even if an earlier one failed, failed ones are retried, and changes that still fail
+     * are handed to the log as unapplied before the failure is thrown.
+     */
+    private Set<ReferenceCollectionManager> apply(List<WriteAheadLog.Operation> operations,
+                                                  Map<ReferenceCollectionManager, RelationLines> changedRelations) throws IOException {
+        WriteAheadLog log = WriteAheadLog.current();
+        if (log != null) {
+            applyUnapplied(log, changedRelations.keySet());
+            log.append(operations);
+            durable = true;
+        }
+
+        Set<Path> touched = new HashSet<>();
+        Set<ReferenceCollectionManager> written = new HashSet<>();
+        List<Step> steps = new ArrayList<>();
+        List<Map.Entry<EntityKey, PendingRecord>> writes = new ArrayList<>(entityWrites.entrySet());
+        writes.sort(WRITE_ORDER);
+        for (Map.Entry<EntityKey, PendingRecord> entry : writes) {
+            AbstractObjectCollection<?> collection = entry.getKey().collection();
+            UUID id = entry.getKey().id();
+            byte[] record = entry.getValue().record();
+            steps.add(new Step(new WriteAheadLog.EntityOperation(collection.collectionName, id, record), () -> {
+                if (record == null) {
+                    collection.applyDelete(id);
+                } else {
+                    collection.applyPut(id, record);
+                }
+                touched.add(collection.storagePath(id));
+            }));
+        }
+        for (Map.Entry<ReferenceCollectionManager, RelationLines> entry : changedRelations.entrySet()) {
+            ReferenceCollectionManager manager = entry.getKey();
+            RelationLines lines = entry.getValue();
+            steps.add(new Step(new WriteAheadLog.RelationOperation(manager.getName(), lines.removed(), lines.added()), () -> {
+                if (manager.applyChanges(lines.base(), lines.lines())) written.add(manager);
+                touched.add(manager.getPath());
+            }));
+        }
+
+        Exception failure = null;
+        for (int attempt = 0; attempt < APPLY_ATTEMPTS && !steps.isEmpty(); attempt++) {
+            List<Step> failed = new ArrayList<>();
+            for (Step step : steps) {
+                try {
+                    step.change().apply();
+                } catch (IOException | RuntimeException e) {
+                    failed.add(step);
+                    failure = e;
+                }
+            }
+            steps = failed;
+        }
+        if (log != null) log.applied(touched, steps.stream().map(Step::operation).toList());
+        if (steps.isEmpty()) return written;
+
+        String message = log == null
+                ? "Could not apply " + steps.size() + " changes of a transaction"
+                : "Could not apply " + steps.size() + " changes of a committed transaction, they stay in the write-ahead log"
+                + " and are applied by the next write of the same records and relation files or when the database is opened again";
+        throw new CouldNotPersistObjectException(message, failure);
+    }
+
+    /**
+     * Applies the changes earlier transactions committed but could not apply to the records and
+     * relation files this transaction writes, under their stripes and before this transaction is
+     * logged, so they are not overtaken. If one still fails nothing of this transaction is written.
+     */
+    private void applyUnapplied(WriteAheadLog log, Set<ReferenceCollectionManager> changedRelations) throws IOException {
+        for (WriteAheadLog.Operation operation : log.unapplied()) {
+            switch (operation) {
+                case WriteAheadLog.EntityOperation entity -> {
+                    AbstractObjectCollection<?> collection = writtenCollection(entity);
+                    if (collection == null) continue;
+                    if (entity.record() == null) {
+                        collection.applyDelete(entity.id());
+                    } else {
+                        collection.applyPut(entity.id(), entity.record());
+                    }
+                    log.retried(operation, collection.storagePath(entity.id()));
+                }
+                case WriteAheadLog.RelationOperation relation -> {
+                    ReferenceCollectionManager manager = changedRelations.stream()
+                            .filter(candidate -> candidate.getName().equals(relation.relationName()))
+                            .findFirst().orElse(null);
+                    if (manager == null) continue;
+                    manager.applyDelta(relation.removed(), relation.added());
+                    log.retried(operation, manager.getPath());
+                }
+            }
+        }
+    }
+
+    private AbstractObjectCollection<?> writtenCollection(WriteAheadLog.EntityOperation operation) {
+        for (EntityKey key : entityWrites.keySet()) {
+            if (key.id().equals(operation.id()) && key.collection().collectionName.equals(operation.collectionName())) {
+                return key.collection();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Content of one relation file inside a transaction: the lines read from disk when the file was
+     * first touched and the lines after the changes of the transaction.
+     */
+    static final class RelationLines {
+        private final PersistenceTransaction transaction;
+        private final List<String> base;
+        private final List<String> lines;
+        private final Set<String> members;
+        private final long writes;
+        private final Map<ReferenceCollectionManager.RelationKey, Long> fingerprints = new HashMap<>();
+
+        private RelationLines(PersistenceTransaction transaction, List<String> base, long writes) {
+            this.transaction = transaction;
+            this.writes = writes;
+            this.base = List.copyOf(base);
+            this.lines = new ArrayList<>(base);
+            this.members = new HashSet<>(base);
+        }
+
+        List<String> base() {
+            return base;
+        }
+
+        List<String> lines() {
+            return Collections.unmodifiableList(lines);
+        }
+
+        boolean contains(String line) {
+            return members.contains(line);
+        }
+
+        void add(String line) {
+            if (!members.add(line)) return;
+            lines.add(line);
+            transaction.recordUndo(() -> {
+                lines.removeLast();
+                members.remove(line);
+            });
+        }
+
+        /**
+         * fingerprint of the related ids a relation field was saved with, kept by the manager on commit
+         */
+        void remember(ReferenceCollectionManager.RelationKey key, long fingerprint) {
+            Long previous = fingerprints.put(key, fingerprint);
+            transaction.recordUndo(() -> {
+                if (previous == null) fingerprints.remove(key);
+                else fingerprints.put(key, previous);
+            });
+        }
+
+        void replace(String oldLine, String newLine) {
+            replaceAll(Map.of(oldLine, newLine));
+        }
+
+        /**
+         * replaces every key line by its value in one pass, a replacement that is already present
+         * just removes the old line
+         */
+        void replaceAll(Map<String, String> replacements) {
+            if (replacements.isEmpty()) return;
+            List<String> previous = transaction.openSavepoints > 0 ? List.copyOf(lines) : null;
+            boolean changed = false;
+            ListIterator<String> iterator = lines.listIterator();
+            while (iterator.hasNext()) {
+                String line = iterator.next();
+                String replacement = replacements.get(line);
+                if (replacement == null || replacement.equals(line)) continue;
+                members.remove(line);
+                if (members.add(replacement)) {
+                    iterator.set(replacement);
+                } else {
+                    iterator.remove();
+                }
+                changed = true;
+            }
+            if (changed) transaction.recordUndo(() -> restore(previous));
+        }
+
+        void removeIf(Predicate<String> predicate) {
+            List<String> previous = transaction.openSavepoints > 0 ? List.copyOf(lines) : null;
+            if (lines.removeIf(predicate)) {
+                members.clear();
+                members.addAll(lines);
+                transaction.recordUndo(() -> restore(previous));
+            }
+        }
+
+        private void restore(List<String> previous) {
+            lines.clear();
+            lines.addAll(previous);
+            members.clear();
+            members.addAll(previous);
+        }
+
+        boolean isChanged() {
+            return !base.equals(lines);
+        }
+
+        List<String> removed() {
+            return base.stream().filter(line -> !members.contains(line)).distinct().toList();
+        }
+
+        List<String> added() {
+            Set<String> original = new HashSet<>(base);
+            return lines.stream().filter(line -> !original.contains(line)).toList();
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package com.magicscreencinema.persistence;
 
 import com.magicscreencinema.persistence.declaration.ElementCollection;
-import com.magicscreencinema.persistence.declaration.Id;
 import com.magicscreencinema.persistence.exception.InvalidIdTypeException;
 import com.magicscreencinema.persistence.exception.MissingIdException;
 
@@ -17,9 +16,7 @@ class PersistenceUtil {
             throw new MissingIdException("The provided entity is null");
         }
 
-        Class<?> clazz = entity.getClass();
-        Field idField = findIdField(clazz);
-        return extractId(entity, idField);
+        return EntityMetadata.of(entity.getClass()).extractId(entity);
     }
 
     public static UUID extractId(Object entity, Field idField) {
@@ -42,17 +39,7 @@ class PersistenceUtil {
     }
 
     public static Field findIdField(Class<?> objectClass) {
-        Class<?> current = objectClass;
-        while (current != null && current != Object.class) {
-            for (Field field : current.getDeclaredFields()) {
-                if (field.isAnnotationPresent(Id.class)) {
-                    field.setAccessible(true);
-                    return field;
-                }
-            }
-            current = current.getSuperclass();
-        }
-        throw new MissingIdException("No field with @Id annotation found in class " + objectClass.getName());
+        return EntityMetadata.of(objectClass).idField().field();
     }
 
     public static boolean isElementCollection(Class<?> clazz) {
@@ -89,4 +76,16 @@ class PersistenceUtil {
         return false;
     }
 
+    static <T> T createInstance(Class<T> type) {
+        return EntityMetadata.of(type).newInstance();
+    }
+
+    /**
+     * the persistent field of the given name, declared in the class or one of its superclasses,
+     * or null when there is none
+     */
+    static Field findFieldInHierarchy(Class<?> clazz, String fieldName) {
+        EntityMetadata.FieldMetadata field = EntityMetadata.of(clazz).field(fieldName);
+        return field == null ? null : field.field();
+    }
 }
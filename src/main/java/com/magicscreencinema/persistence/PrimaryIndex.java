@@ -0,0 +1,157 @@
+package com.magicscreencinema.persistence;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.function.Predicate;
+
+/**
+ * Sorted id to record location map of a collection, persisted in a compact binary file next to the
+ * collection folder so that opening a collection does not need to walk its records.
+ * <p>
+ * File layout: magic (int), version (int), two stamp longs describing the storage state the index
+ * matches, entry count (int), then per entry in id order: id (two longs), segment (long),
+ * offset (long), size (int).
+ */
+class PrimaryIndex {
+    private static final int MAGIC = 0x4D534349;
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 2 * Integer.BYTES + 2 * Long.BYTES + Integer.BYTES;
+    private static final int ENTRY_SIZE = 4 * Long.BYTES + Integer.BYTES;
+
+    /**
+     * unsigned order of the two halves, the same order as the textual form of the ids
+     */
+    static final Comparator<UUID> ID_ORDER = Comparator
+            .comparing(UUID::getMostSignificantBits, Long::compareUnsigned)
+            .thenComparing(UUID::getLeastSignificantBits, Long::compareUnsigned);
+
+    private final NavigableMap<UUID, RecordLocation> entries = new ConcurrentSkipListMap<>(ID_ORDER);
+    private volatile boolean dirty;
+
+    RecordLocation get(UUID id) {
+        return entries.get(id);
+    }
+
+    RecordLocation put(UUID id, RecordLocation location) {
+        dirty = true;
+        return entries.put(id, location);
+    }
+
+    RecordLocation remove(UUID id) {
+        RecordLocation previous = entries.remove(id);
+        if (previous != null) dirty = true;
+        return previous;
+    }
+
+    boolean contains(UUID id) {
+        return entries.containsKey(id);
+    }
+
+    int size() {
+        return entries.size();
+    }
+
+    /**
+     * ids in {@link #ID_ORDER}, weakly consistent with concurrent modifications
+     */
+    NavigableSet<UUID> ids() {
+        return Collections.unmodifiableNavigableSet(entries.navigableKeySet());
+    }
+
+    Collection<RecordLocation> locations() {
+        return Collections.unmodifiableCollection(entries.values());
+    }
+
+    void clear() {
+        entries.clear();
+        dirty = true;
+    }
+
+    /**
+     * Puts every entry of the rebuilt map, then removes the ids it lacks for which stale holds.
+     * Unlike clear followed by puts, a reader never misses an id that stays stored.
+     */
+    void replaceAll(Map<UUID, RecordLocation> rebuilt, Predicate<UUID> stale) {
+        entries.putAll(rebuilt);
+        entries.keySet().removeIf(id -> !rebuilt.containsKey(id) && stale.test(id));
+        dirty = true;
+    }
+
+    boolean isDirty() {
+        return dirty;
+    }
+
+    /**
+     * Loads the index file. Returns the two stamps stored with it, or null when the file is
+     * missing or unreadable, in which case the index stays empty and has to be rebuilt.
+     */
+    long[] load(Path path) throws IOException {
+        entries.clear();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_SIZE) return null;
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return null;
+
+            long[] stamps = {buffer.getLong(), buffer.getLong()};
+            int count = buffer.getInt();
+            if (buffer.remaining() != (long) count * ENTRY_SIZE) return null;
+
+            for (int i = 0; i < count; i++) {
+                UUID id = new UUID(buffer.getLong(), buffer.getLong());
+                entries.put(id, new RecordLocation(buffer.getLong(), buffer.getLong(), buffer.getInt()));
+            }
+            dirty = false;
+            return stamps;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Writes the index to a temporary file and moves it over the previous one, both forced before
+     * this returns.
+     */
+    void store(Path path, long firstStamp, long secondStamp) throws IOException {
+        store(path, snapshot(), firstStamp, secondStamp);
+    }
+
+    /**
+     * copy of the entries to {@link #store(Path, List, long, long)} later, taken together with the
+     * stamps by callers that have to stop writers while both are read
+     */
+    List<Map.Entry<UUID, RecordLocation>> snapshot() {
+        dirty = false;
+        return new ArrayList<>(entries.entrySet());
+    }
+
+    void store(Path path, List<Map.Entry<UUID, RecordLocation>> snapshot, long firstStamp, long secondStamp) throws IOException {
+        try {
+            AtomicFiles.replace(path, stream -> {
+                DataOutputStream out = new DataOutputStream(stream);
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeLong(firstStamp);
+                out.writeLong(secondStamp);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<UUID, RecordLocation> entry : snapshot) {
+                    RecordLocation location = entry.getValue();
+                    out.writeLong(entry.getKey().getMostSignificantBits());
+                    out.writeLong(entry.getKey().getLeastSignificantBits());
+                    out.writeLong(location.segmentId());
+                    out.writeLong(location.offset());
+                    out.writeInt(location.length());
+                }
+            }, true);
+        } catch (IOException e) {
+            dirty = true;
+            throw e;
+        }
+    }
+}
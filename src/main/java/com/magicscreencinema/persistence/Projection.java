@@ -0,0 +1,61 @@
+package com.magicscreencinema.persistence;
+
+import com.magicscreencinema.persistence.exception.InvalidQueryException;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+/**
+ * The plain fields to read from each record, for example
+ * {@code movies.findAll(Projection.of("name", "premiereDate"))}. Projected reads never create the
+ * entity and never touch relation files, so relation fields can not be projected.
+ */
+public final class Projection {
+    private final List<String> fieldNames;
+
+    private Projection(List<String> fieldNames) {
+        this.fieldNames = fieldNames;
+    }
+
+    public static Projection of(String... fieldNames) {
+        if (fieldNames.length == 0) throw new InvalidQueryException("A projection needs at least one field");
+        return new Projection(List.copyOf(new LinkedHashSet<>(Arrays.asList(fieldNames))));
+    }
+
+    public List<String> fieldNames() {
+        return fieldNames;
+    }
+
+    /**
+     * the field names, after checking that each of them is a plain field of the given class
+     */
+    Set<String> resolve(Class<?> objectClass) {
+        for (String fieldName : fieldNames) {
+            Field field = PersistenceUtil.findFieldInHierarchy(objectClass, fieldName);
+            if (field == null || Modifier.isStatic(field.getModifiers())) {
+                throw new InvalidQueryException("Class " + objectClass.getName() + " has no field " + fieldName);
+            }
+            if (PersistenceUtil.isElementCollection(field.getType()) || PersistenceUtil.isCollectionOfElementCollection(field)) {
+                throw new InvalidQueryException("Relation field " + fieldName + " of class " + objectClass.getName() + " can not be projected");
+            }
+        }
+        return new HashSet<>(fieldNames);
+    }
+
+    /**
+     * read-only map of the projected fields in projection order, null for fields the record lacks
+     */
+    Map<String, Object> view(Map<String, Object> values) {
+        Map<String, Object> view = new LinkedHashMap<>();
+        for (String fieldName : fieldNames) {
+            view.put(fieldName, values.get(fieldName));
+        }
+        return Collections.unmodifiableMap(view);
+    }
+
+    @Override
+    public String toString() {
+        return "Projection" + fieldNames;
+    }
+}
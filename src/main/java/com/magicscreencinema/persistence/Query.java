@@ -0,0 +1,239 @@
+package com.magicscreencinema.persistence;
+
+import com.magicscreencinema.persistence.declaration.*;
+import com.magicscreencinema.persistence.exception.CouldNotReadObjectException;
+import com.magicscreencinema.persistence.exception.InvalidQueryException;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Conjunction of field conditions over one collection, for example
+ * {@code seances.query().where("hall", eq(hallId)).and("startTime", between(from, to)).limit(10).list()}.
+ * <p>
+ * The planner reads the candidate ids from the most selective index that can answer one of the
+ * conditions: a hash index for {@link Indexed} fields, a range index for {@link RangeIndexed}
+ * fields or the relation file for {@link ManyToOne} and {@link OneToOne} fields. Only those
+ * records are read and the other conditions are checked on the objects. Without a usable index
+ * the collection is scanned as findAll reads it, split over collection.&lt;name&gt;.scan.parallelism
+ * readers. {@link #explain()} shows the chosen plan.
+ */
+public final class Query<T> {
+    private record Predicate(String fieldName, EntityMetadata.FieldMetadata field, Condition condition, boolean relation) {
+        boolean test(Object object) {
+            return condition.test(field.get(object));
+        }
+
+        @Override
+        public String toString() {
+            return fieldName + " " + condition;
+        }
+    }
+
+    /**
+     * ordered is true when the ids come in key order of the predicate's field
+     */
+    private record Access(String description, long estimate, Predicate predicate, boolean ordered, Supplier<Stream<UUID>> ids) {
+    }
+
+    private record Plan(Access access, boolean sort) {
+    }
+
+    private final AbstractObjectCollection<T> collection;
+    private final Supplier<Map<UUID, T>> unwritten;
+    private final List<Predicate> predicates = new ArrayList<>();
+    private EntityMetadata.FieldMetadata orderField;
+    private boolean descending;
+    private int limit = Integer.MAX_VALUE;
+
+    Query(AbstractObjectCollection<T> collection) {
+        this(collection, Map::of);
+    }
+
+    /**
+     * unwritten supplies the objects saved but not written yet, like the dirty objects of a
+     * write-behind collection, they replace the stored object of their id
+     */
+    Query(AbstractObjectCollection<T> collection, Supplier<Map<UUID, T>> unwritten) {
+        this.collection = collection;
+        this.unwritten = unwritten;
+    }
+
+    public Query<T> where(String fieldName, Condition condition) {
+        EntityMetadata.FieldMetadata field = field(fieldName);
+        boolean relation = isRelation(field);
+        if (relation && condition.kind != Condition.Kind.EQUAL) {
+            throw new InvalidQueryException("Relation field " + fieldName + " can only be compared for equality");
+        }
+        predicates.add(new Predicate(fieldName, field, condition, relation));
+        return this;
+    }
+
+    public Query<T> and(String fieldName, Condition condition) {
+        return where(fieldName, condition);
+    }
+
+    public Query<T> orderBy(String fieldName) {
+        return orderBy(fieldName, false);
+    }
+
+    public Query<T> orderByDescending(String fieldName) {
+        return orderBy(fieldName, true);
+    }
+
+    public Query<T> limit(int limit) {
+        if (limit < 0) throw new InvalidQueryException("Limit must not be negative: " + limit);
+        this.limit = limit;
+        return this;
+    }
+
+    public List<T> list() {
+        return stream().toList();
+    }
+
+    /**
+     * Runs the query. Results come in the requested order, otherwise in the order of the chosen
+     * index: key order for range indexes and id order for everything else.
+     */
+    public Stream<T> stream() {
+        Plan plan = plan();
+        Map<UUID, T> pending = unwritten.get();
+        Stream<T> results = plan.access() == null
+                ? collection.scan()
+                : plan.access().ids().get().map(collection::findById).flatMap(Optional::stream);
+        if (!pending.isEmpty()) {
+            results = Stream.concat(
+                    results.filter(object -> !pending.containsKey(collection.metadata.extractId(object))),
+                    pending.values().stream());
+        }
+
+        // the access condition is checked again, the index may have moved on since it was read
+        for (Predicate predicate : predicates) {
+            results = results.filter(predicate::test);
+        }
+        if (plan.sort()) {
+            results = results.sorted(comparator());
+        } else if (!pending.isEmpty()) {
+            results = results.sorted(accessOrder(plan.access()));
+        }
+        if (limit != Integer.MAX_VALUE) results = results.limit(limit);
+        return results;
+    }
+
+    /**
+     * the plan the query would run with, one step per line
+     */
+    public String explain() {
+        Plan plan = plan();
+        StringBuilder explanation = new StringBuilder();
+        if (plan.access() == null) {
+            explanation.append(PersistenceConfig.scanParallelism(collection.collectionName) > 1 ? "PARALLEL SCAN " : "SCAN ")
+                    .append(collection.collectionName).append(" (~").append(collection.count()).append(" rows)");
+        } else {
+            explanation.append(plan.access().description()).append(" (~").append(plan.access().estimate()).append(" rows)");
+        }
+        int pending = unwritten.get().size();
+        if (pending > 0) explanation.append("\nMERGE ").append(pending).append(" UNWRITTEN");
+        for (Predicate predicate : predicates) {
+            if (plan.access() == null || predicate != plan.access().predicate()) {
+                explanation.append("\nFILTER ").append(predicate);
+            }
+        }
+        if (plan.sort()) {
+            explanation.append("\nSORT ").append(orderField.name()).append(descending ? " DESC" : " ASC");
+        }
+        if (limit != Integer.MAX_VALUE) explanation.append("\nLIMIT ").append(limit);
+        return explanation.toString();
+    }
+
+    private Query<T> orderBy(String fieldName, boolean descending) {
+        EntityMetadata.FieldMetadata field = field(fieldName);
+        if (isRelation(field)) throw new InvalidQueryException("Can not order by relation field " + fieldName);
+        this.orderField = field;
+        this.descending = descending;
+        return this;
+    }
+
+    /**
+     * picks the access path with the fewest candidate ids, the estimate of a range is only counted
+     * up to the best estimate found so far
+     */
+    private Plan plan() {
+        collection.refreshIndex();
+        Access best = null;
+        for (Predicate predicate : predicates) {
+            Access candidate = access(predicate, best == null ? Long.MAX_VALUE : best.estimate());
+            if (candidate != null && (best == null || candidate.estimate() < best.estimate())) best = candidate;
+        }
+
+        boolean inIndexOrder = best != null && best.ordered() && !descending && best.predicate().field().equals(orderField);
+        return new Plan(best, orderField != null && !inIndexOrder);
+    }
+
+    private Access access(Predicate predicate, long bestEstimate) {
+        Condition condition = predicate.condition();
+        if (predicate.relation()) return relationAccess(predicate);
+
+        if (condition.kind == Condition.Kind.EQUAL) {
+            SecondaryIndex index = collection.secondaryIndexes.get(predicate.fieldName());
+            if (index == null || condition.value == null) return null;
+            List<UUID> ids = new ArrayList<>(index.find(index.lookupKey(Condition.normalize(condition.value))));
+            ids.sort(PrimaryIndex.ID_ORDER);
+            return new Access("HASH INDEX LOOKUP " + predicate, ids.size(), predicate, false, ids::stream);
+        }
+
+        RangeIndex index = collection.secondaryIndexes.range(predicate.fieldName());
+        if (index == null) return null;
+        long estimate = index.range(condition.from, condition.to).limit(bestEstimate).count();
+        return new Access("RANGE INDEX SCAN " + predicate, estimate, predicate, true,
+                () -> index.range(condition.from, condition.to));
+    }
+
+    private Access relationAccess(Predicate predicate) {
+        EntityMetadata.FieldMetadata field = predicate.field();
+        UUID relatedId = predicate.condition().relatedId();
+        ReferenceCollectionManager manager = ReferenceCollectionManagerRegistry.getManager(collection.objectClass, field.type());
+        // many-to-one and owning one-to-one relations are stored as "<this id>_<related id>"
+        boolean relatedIsOwner = field.relation() == EntityMetadata.RelationKind.ONE_TO_ONE && !field.isOwner();
+        List<UUID> ids;
+        try {
+            ids = new ArrayList<>(manager.getRelatedIds(relatedId, relatedIsOwner));
+        } catch (IOException e) {
+            throw new CouldNotReadObjectException("Could not read relations of field " + field.name(), e);
+        }
+        ids.sort(PrimaryIndex.ID_ORDER);
+        return new Access("RELATION LOOKUP " + predicate, ids.size(), predicate, false, ids::stream);
+    }
+
+    private Comparator<T> comparator() {
+        Comparator<Object> values = Condition::compare;
+        return Comparator.comparing(orderField::get, Comparator.nullsLast(descending ? values.reversed() : values));
+    }
+
+    /**
+     * the order the chosen access path returns stored objects in, used to merge the unwritten ones
+     */
+    private Comparator<T> accessOrder(Access access) {
+        Comparator<T> ids = Comparator.comparing(collection.metadata::extractId, PrimaryIndex.ID_ORDER);
+        if (access == null || !access.ordered()) return ids;
+        RangeIndex index = collection.secondaryIndexes.range(access.predicate().fieldName());
+        return Comparator.comparing((T object) -> access.predicate().field().get(object), index.valueOrder()).thenComparing(ids);
+    }
+
+    private EntityMetadata.FieldMetadata field(String fieldName) {
+        EntityMetadata.FieldMetadata field = collection.metadata.field(fieldName);
+        if (field == null) {
+            throw new InvalidQueryException("Class " + collection.objectClass.getName() + " has no field " + fieldName);
+        }
+        if (field.relation() == EntityMetadata.RelationKind.ONE_TO_MANY || field.relation() == EntityMetadata.RelationKind.MANY_TO_MANY) {
+            throw new InvalidQueryException("Collection relation field " + fieldName + " can not be queried");
+        }
+        return field;
+    }
+
+    private static boolean isRelation(EntityMetadata.FieldMetadata field) {
+        return field.relation() == EntityMetadata.RelationKind.MANY_TO_ONE || field.relation() == EntityMetadata.RelationKind.ONE_TO_ONE;
+    }
+}
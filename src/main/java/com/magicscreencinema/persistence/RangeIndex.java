@@ -0,0 +1,220 @@
+package com.magicscreencinema.persistence;
+
+import com.magicscreencinema.persistence.exception.IndexDeclarationException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ConcurrentSkipListSet;
+import java.util.stream.Stream;
+
+/**
+ * Ordered index of one {@link com.magicscreencinema.persistence.declaration.RangeIndexed} field,
+ * kept in a skip list so a range lookup only walks the keys inside the range. Ids with the same
+ * key are kept in id order.
+ * <p>
+ * File layout: magic (int), version (int), key kind (byte), key count (int), then per key in key
+ * order: key, id count (int), ids (two longs each).
+ */
+class RangeIndex extends FieldIndex {
+    private static final int MAGIC = 0x4D535249;
+    private static final int VERSION = 1;
+
+    private enum KeyKind {
+        INTEGRAL, DECIMAL, DATE, DATE_TIME, TIME, INSTANT
+    }
+
+    private final KeyKind kind;
+    private final ConcurrentSkipListMap<Comparable<Object>, Set<UUID>> idsByKey = new ConcurrentSkipListMap<>();
+    private final Map<UUID, Comparable<Object>> keysById = new ConcurrentHashMap<>();
+
+    RangeIndex(Field field, Path path) {
+        super(MAGIC, VERSION, field, path);
+        kind = kindOf(field);
+    }
+
+    private static KeyKind kindOf(Field field) {
+        Class<?> type = field.getType();
+        if (type == int.class || type == long.class || type == short.class || type == byte.class
+                || type == Integer.class || type == Long.class || type == Short.class || type == Byte.class) {
+            return KeyKind.INTEGRAL;
+        }
+        if (type == double.class || type == float.class || type == Double.class || type == Float.class) return KeyKind.DECIMAL;
+        if (type == LocalDate.class) return KeyKind.DATE;
+        if (type == LocalDateTime.class) return KeyKind.DATE_TIME;
+        if (type == LocalTime.class) return KeyKind.TIME;
+        if (type == Instant.class) return KeyKind.INSTANT;
+        throw new IndexDeclarationException("Field " + field.getName() + " of class " + field.getDeclaringClass().getName()
+                + " has type " + type.getName() + " which can not be range indexed, only numbers and dates can");
+    }
+
+    /**
+     * Ids whose key lies in [from, to) in key order, a null bound leaves that side open. Numeric
+     * bounds are converted to the type of the field.
+     */
+    Stream<UUID> range(Object from, Object to) {
+        Comparable<Object> lower = from == null ? null : key(from);
+        Comparable<Object> upper = to == null ? null : key(to);
+        NavigableMap<Comparable<Object>, Set<UUID>> keys;
+        if (lower != null && upper != null) {
+            if (lower.compareTo(upper) >= 0) return Stream.empty();
+            keys = idsByKey.subMap(lower, true, upper, false);
+        } else if (lower != null) {
+            keys = idsByKey.tailMap(lower, true);
+        } else if (upper != null) {
+            keys = idsByKey.headMap(upper, false);
+        } else {
+            keys = idsByKey;
+        }
+        return keys.values().stream().flatMap(Set::stream);
+    }
+
+    /**
+     * whether the value lies in [from, to) as {@link #range} compares it, null values never do
+     */
+    boolean inRange(Object value, Object from, Object to) {
+        if (value == null) return false;
+        Comparable<Object> key = key(value);
+        return (from == null || key.compareTo(key(from)) >= 0) && (to == null || key.compareTo(key(to)) < 0);
+    }
+
+    /**
+     * orders values as the keys of the index, nulls last
+     */
+    Comparator<Object> valueOrder() {
+        return Comparator.nullsLast(Comparator.comparing(this::key));
+    }
+
+    @Override
+    synchronized void update(UUID id, Object value) throws IOException {
+        Comparable<Object> key = value == null ? null : key(value);
+        Comparable<Object> previous = keysById.get(id);
+        if (Objects.equals(previous, key)) return;
+        markChanged();
+        unlink(id, previous);
+        if (key == null) {
+            keysById.remove(id);
+        } else {
+            keysById.put(id, key);
+            link(id, key);
+        }
+    }
+
+    @Override
+    synchronized void remove(UUID id) throws IOException {
+        if (!keysById.containsKey(id)) return;
+        markChanged();
+        unlink(id, keysById.remove(id));
+    }
+
+    @Override
+    synchronized void clear() throws IOException {
+        markChanged();
+        clearEntries();
+    }
+
+    @Override
+    protected void clearEntries() {
+        idsByKey.clear();
+        keysById.clear();
+    }
+
+    @Override
+    protected void readEntries(DataInputStream in) throws IOException {
+        if (in.readByte() != kind.ordinal()) throw new EOFException("Range index of another field type");
+        int keyCount = in.readInt();
+        for (int i = 0; i < keyCount; i++) {
+            Comparable<Object> key = readKey(in);
+            int idCount = in.readInt();
+            for (int j = 0; j < idCount; j++) {
+                UUID id = new UUID(in.readLong(), in.readLong());
+                keysById.put(id, key);
+                link(id, key);
+            }
+        }
+    }
+
+    @Override
+    protected void writeEntries(DataOutputStream out) throws IOException {
+        Map<Comparable<Object>, List<UUID>> snapshot = new LinkedHashMap<>();
+        idsByKey.forEach((key, ids) -> snapshot.put(key, List.copyOf(ids)));
+
+        out.writeByte(kind.ordinal());
+        out.writeInt(snapshot.size());
+        for (Map.Entry<Comparable<Object>, List<UUID>> entry : snapshot.entrySet()) {
+            writeKey(out, entry.getKey());
+            out.writeInt(entry.getValue().size());
+            for (UUID id : entry.getValue()) {
+                out.writeLong(id.getMostSignificantBits());
+                out.writeLong(id.getLeastSignificantBits());
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private Comparable<Object> key(Object value) {
+        Object key = switch (kind) {
+            case INTEGRAL -> value instanceof Number number ? number.longValue() : null;
+            case DECIMAL -> value instanceof Number number ? number.doubleValue() : null;
+            case DATE -> value instanceof LocalDate ? value : null;
+            case DATE_TIME -> value instanceof LocalDateTime ? value : null;
+            case TIME -> value instanceof LocalTime ? value : null;
+            case INSTANT -> value instanceof Instant ? value : null;
+        };
+        if (key == null) {
+            throw new IllegalArgumentException("Value " + value + " can not be compared with field " + fieldName());
+        }
+        return (Comparable<Object>) key;
+    }
+
+    private Comparable<Object> readKey(DataInputStream in) throws IOException {
+        return key(switch (kind) {
+            case INTEGRAL -> in.readLong();
+            case DECIMAL -> in.readDouble();
+            case DATE -> LocalDate.ofEpochDay(in.readLong());
+            case DATE_TIME -> LocalDateTime.of(LocalDate.ofEpochDay(in.readLong()), LocalTime.ofNanoOfDay(in.readLong()));
+            case TIME -> LocalTime.ofNanoOfDay(in.readLong());
+            case INSTANT -> Instant.ofEpochSecond(in.readLong(), in.readInt());
+        });
+    }
+
+    private void writeKey(DataOutputStream out, Object key) throws IOException {
+        switch (key) {
+            case Long value -> out.writeLong(value);
+            case Double value -> out.writeDouble(value);
+            case LocalDate value -> out.writeLong(value.toEpochDay());
+            case LocalDateTime value -> {
+                out.writeLong(value.toLocalDate().toEpochDay());
+                out.writeLong(value.toLocalTime().toNanoOfDay());
+            }
+            case LocalTime value -> out.writeLong(value.toNanoOfDay());
+            case Instant value -> {
+                out.writeLong(value.getEpochSecond());
+                out.writeInt(value.getNano());
+            }
+            default -> throw new IllegalStateException("Unexpected range key " + key);
+        }
+    }
+
+    private void link(UUID id, Comparable<Object> key) {
+        idsByKey.computeIfAbsent(key, k -> new ConcurrentSkipListSet<>(PrimaryIndex.ID_ORDER)).add(id);
+    }
+
+    private void unlink(UUID id, Comparable<Object> key) {
+        if (key == null) return;
+        Set<UUID> ids = idsByKey.get(key);
+        if (ids == null) return;
+        ids.remove(id);
+        if (ids.isEmpty()) idsByKey.remove(key);
+    }
+}
@@ -0,0 +1,118 @@
+package com.magicscreencinema.persistence;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Size bounded LRU cache of the serialized records of one collection, with optional expiry after
+ * write. Records are cached rather than objects: callers always get a freshly decoded instance they
+ * are free to modify, and relations are still resolved from the relation files, so a cached record
+ * never hides a relation change.
+ * <p>
+ * Every write bumps a generation. A record read from storage is only cached if no write happened
+ * while it was being read, so a slow reader can not put back a version that was just replaced.
+ * <p>
+ * The fingerprints saves compare against to skip unchanged objects are kept in the entries, so
+ * they are bounded by the capacity too: only objects whose record is cached are skipped.
+ */
+class RecordCache {
+    private final int capacity;
+    private final long expireAfterWriteNanos;
+    private final LinkedHashMap<UUID, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long generation;
+    private long hits;
+    private long misses;
+    private long evictions;
+
+    private static final class Entry {
+        private final byte[] record;
+        private final long writtenAt;
+        private Long fingerprint;
+
+        private Entry(byte[] record, long writtenAt) {
+            this.record = record;
+            this.writtenAt = writtenAt;
+        }
+    }
+
+    RecordCache(int capacity, long expireAfterWriteMillis) {
+        this.capacity = capacity;
+        this.expireAfterWriteNanos = expireAfterWriteMillis * 1_000_000;
+    }
+
+    boolean isEnabled() {
+        return capacity > 0;
+    }
+
+    synchronized byte[] get(UUID id) {
+        Entry entry = entries.get(id);
+        if (entry != null && isExpired(entry)) {
+            entries.remove(id);
+            entry = null;
+        }
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.record;
+    }
+
+    /**
+     * Fingerprint of the cached record of the id, or null when it is not cached. Hashed on first
+     * use, and neither counted as a hit nor as a miss.
+     */
+    synchronized Long fingerprint(UUID id) {
+        Entry entry = entries.get(id);
+        if (entry == null || isExpired(entry)) return null;
+        if (entry.fingerprint == null) entry.fingerprint = Fingerprint.of(entry.record);
+        return entry.fingerprint;
+    }
+
+    synchronized long generation() {
+        return generation;
+    }
+
+    /**
+     * caches a record read from storage, unless something was written since generation was taken
+     */
+    synchronized void populate(UUID id, byte[] record, long generation) {
+        if (this.generation == generation) insert(id, record);
+    }
+
+    synchronized void put(UUID id, byte[] record) {
+        generation++;
+        insert(id, record);
+    }
+
+    synchronized void invalidate(UUID id) {
+        generation++;
+        entries.remove(id);
+    }
+
+    synchronized void clear() {
+        generation++;
+        entries.clear();
+    }
+
+    synchronized CacheStats stats() {
+        return new CacheStats(hits, misses, evictions, entries.size());
+    }
+
+    private void insert(UUID id, byte[] record) {
+        if (!isEnabled()) return;
+        entries.put(id, new Entry(record, System.nanoTime()));
+        Iterator<Map.Entry<UUID, Entry>> eldest = entries.entrySet().iterator();
+        while (entries.size() > capacity) {
+            eldest.next();
+            eldest.remove();
+            evictions++;
+        }
+    }
+
+    private boolean isExpired(Entry entry) {
+        return expireAfterWriteNanos > 0 && System.nanoTime() - entry.writtenAt > expireAfterWriteNanos;
+    }
+}
@@ -0,0 +1,7 @@
+package com.magicscreencinema.persistence;
+
+/**
+ * position of a record inside a segment file
+ */
+record RecordLocation(long segmentId, long offset, int length) {
+}
@@ -1,61 +1,124 @@
 package com.magicscreencinema.persistence;
 
 import java.io.IOException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
 import java.nio.file.Path;
-import java.nio.file.StandardOpenOption;
-import java.util.List;
-import java.util.UUID;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.Lock;
 import java.util.function.Function;
 import java.util.function.Predicate;
 
+/**
+ * Relation file of two collections, one "ownerId_relatedId" line per relation. Changes are made
+ * inside the current {@link PersistenceTransaction}, which reads the file once and writes it once
+ * on commit, reads outside of a transaction go straight to the file. Reads and writes of the file
+ * hold its {@link LockStripes} stripe, so concurrent commits can not lose each other's lines.
+ * <p>
+ * The manager also remembers the fingerprint of the related ids each relation field was last
+ * saved with, as long as the file still holds exactly what that save wrote. Saving the same ids
+ * again then skips the relation file entirely. Every write of the file forgets all fingerprints,
+ * and a file changed outside of the persistence layer is noticed by its size and modification time.
+ */
 class ReferenceCollectionManager {
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private final String name;
     private final Path path;
+    private final Map<RelationKey, Long> fingerprints = new ConcurrentHashMap<>();
+    private volatile FileStamp stamp;
+    private volatile long writes;
+
+    /**
+     * relation field of one entity
+     */
+    record RelationKey(UUID id, String field) {
+    }
+
+    private record FileStamp(long size, long modified) {
+    }
 
     public ReferenceCollectionManager(String name) {
+        this.name = name;
         path = PersistenceConfig.resolveCollectionPath(name);
     }
 
+    String getName() {
+        return name;
+    }
+
+    Path getPath() {
+        return path;
+    }
+
     public void saveRelations(UUID ownerId, Iterable<UUID> relatedIds) throws IOException {
-        for (UUID relatedId : relatedIds) {
-            saveRelation(ownerId, relatedId);
-        }
+        PersistenceTransaction.execute(transaction -> {
+            PersistenceTransaction.RelationLines lines = transaction.relationLines(this);
+            for (UUID relatedId : relatedIds) {
+                lines.add(ownerId + "_" + relatedId);
+            }
+            return null;
+        });
     }
 
     public void saveRelationsInverse(Iterable<UUID> ownerIds, UUID relatedId) throws IOException {
-        for (UUID ownerId : ownerIds) {
-            saveRelation(ownerId, relatedId);
-        }
+        PersistenceTransaction.execute(transaction -> {
+            PersistenceTransaction.RelationLines lines = transaction.relationLines(this);
+            for (UUID ownerId : ownerIds) {
+                lines.add(ownerId + "_" + relatedId);
+            }
+            return null;
+        });
+    }
+
+    /**
+     * Relates every owner to relatedId: the first relation an owner already has is replaced,
+     * owners without one get a new line. Done in one pass over the file instead of one per owner.
+     */
+    public void replaceRelations(Collection<UUID> ownerIds, UUID relatedId) throws IOException {
+        PersistenceTransaction.execute(transaction -> {
+            PersistenceTransaction.RelationLines lines = transaction.relationLines(this);
+            Set<String> prefixes = new LinkedHashSet<>();
+            for (UUID ownerId : ownerIds) {
+                prefixes.add(ownerId + "_");
+            }
+
+            Map<String, String> replacements = new HashMap<>();
+            for (String line : lines.lines()) {
+                int separator = line.indexOf('_');
+                String prefix = line.substring(0, separator + 1);
+                if (prefixes.remove(prefix)) replacements.put(line, prefix + relatedId);
+            }
+            lines.replaceAll(replacements);
+            for (String prefix : prefixes) {
+                lines.add(prefix + relatedId);
+            }
+            return null;
+        });
     }
 
     public void saveRelation(UUID ownerId, UUID relatedId) throws IOException {
         String record = ownerId + "_" + relatedId;
-        if (existsById(ownerId, relatedId)) {
-            return;
-        }
-        Files.writeString(path, record + System.lineSeparator(), StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+        PersistenceTransaction.execute(transaction -> {
+            transaction.relationLines(this).add(record);
+            return null;
+        });
     }
 
     public void replaceRelation(UUID ownerId, UUID oldRelatedId, UUID newRelatedId) throws IOException {
-        if (!Files.exists(path)) {
-            return;
-        }
-        var lines = Files.readAllLines(path);
         String oldRecord = ownerId + "_" + oldRelatedId;
         String newRecord = ownerId + "_" + newRelatedId;
-
-        List<String> updatedLines = lines.stream()
-                .map(line -> line.equals(oldRecord) ? newRecord : line)
-                .toList();
-
-        Files.write(path, updatedLines, StandardOpenOption.TRUNCATE_EXISTING);
+        PersistenceTransaction.execute(transaction -> {
+            transaction.relationLines(this).replace(oldRecord, newRecord);
+            return null;
+        });
     }
 
     public List<UUID> getRelatedIds(UUID id, boolean isOwner) throws IOException {
-        if (!Files.exists(path)) {
-            return List.of();
-        }
-        var lines = Files.readAllLines(path);
+        var lines = currentLines();
         Predicate<String> filterPredicate = isOwner
                 ? line -> line.startsWith(id + "_")
                 : line -> line.endsWith("_" + id);
@@ -77,22 +140,153 @@ class ReferenceCollectionManager {
     }
 
     public void clearRelation(UUID id, boolean isOwner) throws IOException {
-        if (!Files.exists(path)) {
-            return;
-        }
-        var lines = Files.readAllLines(path);
-        var filteredLines = lines.stream()
-                .filter(getFilterPredicate(id, isOwner).negate())
-                .toList();
-        Files.write(path, filteredLines, StandardOpenOption.TRUNCATE_EXISTING);
+        PersistenceTransaction.execute(transaction -> {
+            transaction.relationLines(this).removeIf(getFilterPredicate(id, isOwner));
+            return null;
+        });
     }
 
     public boolean existsById(UUID ownerId, UUID relatedId) throws IOException {
-        if (!Files.exists(path)) {
+        String record = ownerId + "_" + relatedId;
+        return currentLines().contains(record);
+    }
+
+    /**
+     * Whether the relation field of the entity was last saved with related ids of this fingerprint
+     * and nothing changed the file since, neither the running transaction nor anyone else.
+     */
+    boolean isUnchanged(UUID id, String field, long fingerprint) throws IOException {
+        Long remembered = fingerprints.get(new RelationKey(id, field));
+        if (remembered == null || remembered != fingerprint) return false;
+        if (PersistenceTransaction.changesRelations(this)) return false;
+        FileStamp current = fileStamp();
+        if (current.equals(stamp)) return true;
+        observe(current);
+        return false;
+    }
+
+    /**
+     * has the transaction remember the fingerprint once it committed the relation field as saved
+     */
+    void remember(UUID id, String field, long fingerprint) throws IOException {
+        PersistenceTransaction.execute(transaction -> {
+            transaction.relationLines(this).remember(new RelationKey(id, field), fingerprint);
+            return null;
+        });
+    }
+
+    /**
+     * number of times the file was written through this manager, taken before reading its lines
+     */
+    long writes() {
+        return writes;
+    }
+
+    /**
+     * Called by a commit holding the write lock of the file. The fingerprints are kept if the file
+     * holds exactly the lines they were taken from: the commit wrote them itself, or it changed
+     * nothing and the file was not written since the transaction read it.
+     */
+    void rememberAll(Map<RelationKey, Long> committed, boolean written, long writesAtRead) throws IOException {
+        if (written || (writes == writesAtRead && Objects.equals(stamp, fileStamp()))) {
+            fingerprints.putAll(committed);
+        }
+    }
+
+    /**
+     * forgets every fingerprint when the file is not the one they were taken from
+     */
+    private void observe(FileStamp current) {
+        if (current.equals(stamp)) return;
+        fingerprints.clear();
+        stamp = current;
+    }
+
+    private FileStamp fileStamp() throws IOException {
+        try {
+            BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+            return new FileStamp(attributes.size(), attributes.lastModifiedTime().toMillis());
+        } catch (NoSuchFileException e) {
+            return new FileStamp(-1, 0);
+        }
+    }
+
+    List<String> readLines() throws IOException {
+        Lock lock = LockStripes.relation(name).readLock();
+        lock.lock();
+        try {
+            List<String> lines = Files.readAllLines(path);
+            observe(fileStamp());
+            return lines;
+        } catch (NoSuchFileException e) {
+            observe(fileStamp());
+            return List.of();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes the lines a transaction ended with. If the file changed since the transaction read it,
+     * only the lines the transaction removed and added are merged into the current content.
+     * Returns whether the file now holds exactly the given lines.
+     */
+    boolean applyChanges(List<String> base, List<String> lines) throws IOException {
+        Lock lock = LockStripes.relation(name).writeLock();
+        lock.lock();
+        try {
+            List<String> current = readLines();
+            if (current.equals(base)) {
+                write(current, lines);
+                return true;
+            }
+            Set<String> kept = new HashSet<>(lines);
+            Set<String> original = new HashSet<>(base);
+            List<String> removed = base.stream().filter(line -> !kept.contains(line)).toList();
+            List<String> added = lines.stream().filter(line -> !original.contains(line)).toList();
+            applyDelta(removed, added);
             return false;
+        } finally {
+            lock.unlock();
         }
-        var lines = Files.readAllLines(path);
-        String record = ownerId + "_" + relatedId;
-        return lines.stream().anyMatch(line -> line.equals(record));
+    }
+
+    /**
+     * removes and adds single lines, used for merging and for replaying the write-ahead log
+     */
+    void applyDelta(Collection<String> removed, Collection<String> added) throws IOException {
+        Lock lock = LockStripes.relation(name).writeLock();
+        lock.lock();
+        try {
+            List<String> current = readLines();
+            Set<String> removedLines = new HashSet<>(removed);
+            List<String> lines = new ArrayList<>(current.stream().filter(line -> !removedLines.contains(line)).toList());
+            Set<String> present = new HashSet<>(lines);
+            for (String line : added) {
+                if (present.add(line)) lines.add(line);
+            }
+            write(current, lines);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private List<String> currentLines() throws IOException {
+        List<String> pending = PersistenceTransaction.pendingRelationLines(this);
+        return pending != null ? pending : readLines();
+    }
+
+    private void write(List<String> current, List<String> lines) throws IOException {
+        if (current.equals(lines)) return;
+        fingerprints.clear();
+        writes++;
+        // the log only holds the changed lines, a torn rewrite would lose the others
+        AtomicFiles.replace(path, out -> {
+            for (String line : lines) {
+                out.write(line.getBytes(StandardCharsets.UTF_8));
+                out.write(LINE_SEPARATOR);
+            }
+        }, false);
+        stamp = fileStamp();
     }
 }
@@ -2,16 +2,27 @@ package com.magicscreencinema.persistence;
 
 import com.magicscreencinema.persistence.declaration.ElementCollection;
 
-import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 class ReferenceCollectionManagerRegistry {
-    private static final Map<String, ReferenceCollectionManager> managers = new HashMap<>();
+    private static final Map<String, ReferenceCollectionManager> managers = new ConcurrentHashMap<>();
+    private static final Map<ClassPair, ReferenceCollectionManager> managersByClasses = new ConcurrentHashMap<>();
+
+    private record ClassPair(Class<?> a, Class<?> b) {
+    }
 
     static ReferenceCollectionManager getManager(Class<?> a, Class<?> b) {
-        String collectionName =resolveReferenceCollectionName(a, b);
+        ReferenceCollectionManager manager = managersByClasses.get(new ClassPair(a, b));
+        if (manager != null) return manager;
+        return managersByClasses.computeIfAbsent(new ClassPair(a, b), pair -> getManager(resolveReferenceCollectionName(a, b)));
+    }
+
+    static ReferenceCollectionManager getManager(String collectionName) {
+        ReferenceCollectionManager manager = managers.get(collectionName);
+        if (manager != null) return manager;
         return managers.computeIfAbsent(
                 collectionName,
                 ReferenceCollectionManager::new
@@ -11,7 +11,8 @@ class ReferenceTypeAdapterFactory implements TypeAdapterFactory {
     public <T> TypeAdapter<T> create(Gson gson, TypeToken<T> typeToken) {
         Class<? super T> rawType = typeToken.getRawType();
         if (rawType.isAnnotationPresent(ElementCollection.class)) {
-            return (TypeAdapter<T>) new ReferenceTypeAdapter<>(gson, rawType);
+            TypeAdapter<T> generated = (TypeAdapter<T>) GeneratedEntityAdapter.find(gson, rawType);
+            return generated != null ? generated : (TypeAdapter<T>) new ReferenceTypeAdapter<>(gson, rawType);
         }
         return null;
     }
@@ -0,0 +1,299 @@
+package com.magicscreencinema.persistence;
+
+import com.magicscreencinema.persistence.EntityMetadata.FieldMetadata;
+import com.magicscreencinema.persistence.EntityMetadata.RelationKind;
+import com.magicscreencinema.persistence.declaration.*;
+import com.magicscreencinema.persistence.exception.*;
+
+import java.io.IOException;
+import java.util.*;
+
+/**
+ * Saves and resolves the relation fields of one entity class. Shared by every entity format,
+ * relation fields are never stored in the entity record itself but in the relation files.
+ */
+class RelationMapper {
+    private final Class<?> type;
+
+    RelationMapper(Class<?> type) {
+        this.type = type;
+    }
+
+    void writeSingleReference(FieldMetadata currentField, Object entityToSave, Object currentValue) throws IOException {
+        if (currentField.relation() == RelationKind.MANY_TO_ONE) {
+            saveManyToOneRelationship(currentField, entityToSave, currentValue);
+        } else if (currentField.relation() == RelationKind.ONE_TO_ONE) {
+            saveOneToOneRelationship(currentField, entityToSave, currentValue);
+        }
+    }
+
+    void writeCollectionReference(FieldMetadata field, Object entity, Object value)
+            throws IOException {
+
+        if (field.relation() == RelationKind.ONE_TO_MANY) {
+            saveOneToManyRelationship(field, entity, value);
+        } else if (field.relation() == RelationKind.MANY_TO_MANY) {
+            saveManyToManyRelationship(field, entity, value);
+        }
+    }
+
+    private void saveManyToManyRelationship(FieldMetadata field, Object entity, Object value)
+            throws IOException {
+        Collection<?> relatedEntities = (Collection<?>) value;
+        if (relatedEntities == null) return;
+
+        Class<?> genericType = field.relatedType();
+        ObjectCollection<?> collection = ObjectCollectionRegistry.getCollection(genericType);
+
+        boolean cascade = field.cascadeSave();
+        List<UUID> relatedIds = new ArrayList<>();
+        List<Object> toSave = new ArrayList<>();
+
+        PersistenceContext.registerInContext(entity);
+
+        for (Object item : relatedEntities) {
+            if (item == null) continue;
+
+            UUID relatedId = PersistenceUtil.extractId(item);
+            Object existingInContext = PersistenceContext.getFromContext(genericType, relatedId);
+
+            if (!collection.existsById(relatedId) && existingInContext == null && !cascade) {
+                throw new ReferenceIntegrityException("Referenced entity of type " + genericType.getName() + " with id " + relatedId + " does not exist.");
+            }
+            if (cascade && existingInContext == null) toSave.add(item);
+            relatedIds.add(relatedId);
+        }
+        saveChildren(collection, toSave);
+
+        ReferenceCollectionManager manager = ReferenceCollectionManagerRegistry.getManager(type, genericType);
+        UUID entityId = PersistenceUtil.extractId(entity);
+        long fingerprint = Fingerprint.of(relatedIds);
+        if (manager.isUnchanged(entityId, field.name(), fingerprint)) return;
+
+        if (field.isOwner()) {
+            manager.saveRelations(entityId, relatedIds);
+        } else {
+            manager.saveRelationsInverse(relatedIds, entityId);
+        }
+        manager.remember(entityId, field.name(), fingerprint);
+    }
+
+    private void saveOneToManyRelationship(FieldMetadata currentField, Object parent, Object currentFieldValue) throws IOException {
+        PersistenceContext.registerInContext(parent);
+
+        Class<?> childType = currentField.relatedType();
+        ObjectCollection<?> childCollection = ObjectCollectionRegistry.getCollection(childType);
+        Iterable<?> children = (Iterable<?>) currentFieldValue;
+
+        if (children == null) return;
+
+        List<UUID> childIds = new ArrayList<>();
+        List<Object> toSave = new ArrayList<>();
+        for (Object child : children) {
+            if (child == null) continue;
+
+            UUID childId = PersistenceUtil.extractId(child);
+
+            if (!childCollection.existsById(childId)) {
+                if (!currentField.cascadeSave())
+                    throw new ReferenceIntegrityException("Referenced entity of type " + childType.getName() + " with id " + childId + " does not exist.");
+                else toSave.add(child);
+            }
+            childIds.add(childId);
+        }
+        ReferenceCollectionManager manager = ReferenceCollectionManagerRegistry.getManager(type, childType);
+        UUID parentId = PersistenceUtil.extractId(parent);
+        long fingerprint = Fingerprint.of(childIds);
+        if (toSave.isEmpty() && manager.isUnchanged(parentId, currentField.name(), fingerprint)) return;
+
+        saveChildren(childCollection, toSave);
+        manager.replaceRelations(childIds, parentId);
+        manager.remember(parentId, currentField.name(), fingerprint);
+    }
+
+    private void saveManyToOneRelationship(FieldMetadata currentField, Object entityToSave, Object currentValue) throws IOException {
+        UUID id = PersistenceUtil.extractId(currentValue);
+        Class<?> currentFieldType = currentField.type();
+        ObjectCollection<?> collection = ObjectCollectionRegistry.getCollection(currentFieldType);
+
+        Object existing = PersistenceContext.getFromContext(currentFieldType, id);
+
+        if (!collection.existsById(id) && existing == null)
+            throw new ReferenceIntegrityException("Referenced entity of type " +
+                    currentField.type().getName() + " with id " + id + " does not exist.");
+
+        ReferenceCollectionManager manager = ReferenceCollectionManagerRegistry.getManager(type, currentFieldType);
+        UUID entityId = PersistenceUtil.extractId(entityToSave);
+        long fingerprint = Fingerprint.of(List.of(id));
+        if (manager.isUnchanged(entityId, currentField.name(), fingerprint)) return;
+
+        List<UUID> relatedIds = manager.getRelatedIds(entityId, true);
+
+        if (relatedIds.isEmpty())
+            manager.saveRelation(entityId, id);
+        else
+            manager.replaceRelation(entityId, relatedIds.getFirst(), id);
+        manager.remember(entityId, currentField.name(), fingerprint);
+    }
+
+    private void saveOneToOneRelationship(FieldMetadata currentField, Object entityToSave, Object currentValue)
+            throws IOException {
+        UUID idOfCurrentField = PersistenceUtil.extractId(currentValue);
+        UUID entityToSaveId = PersistenceUtil.extractId(entityToSave);
+        UUID ownerId;
+        UUID dependentId;
+
+        Class<?> currentFieldType = currentField.type();
+        ObjectCollection<?> collection = ObjectCollectionRegistry.getCollection(currentFieldType);
+        boolean isSave = currentField.cascadeSave();
+
+        PersistenceContext.registerInContext(entityToSave);
+        Object existingInContext = PersistenceContext.getFromContext(currentFieldType, idOfCurrentField);
+
+        if (!collection.existsById(idOfCurrentField) && existingInContext == null && !isSave) {
+            throw new ReferenceIntegrityException("Referenced entity of type " + currentFieldType.getName() +
+                    " with id " + idOfCurrentField + " does not exist.");
+        }
+
+        List<UUID> relatedIds;
+        ReferenceCollectionManager manager = ReferenceCollectionManagerRegistry.getManager(type, currentFieldType);
+        long fingerprint = Fingerprint.of(List.of(idOfCurrentField));
+        if (manager.isUnchanged(entityToSaveId, currentField.name(), fingerprint)) {
+            if (isSave) saveChild(collection, currentValue);
+            return;
+        }
+
+        if (currentField.isOwner()) {
+            ownerId = entityToSaveId;
+            dependentId = idOfCurrentField;
+            relatedIds = manager.getRelatedIds(entityToSaveId, true);
+        } else {
+            ownerId = idOfCurrentField;
+            dependentId = entityToSaveId;
+            relatedIds = manager.getRelatedIds(entityToSaveId, false);
+        }
+        if (isSave) saveChild(collection, currentValue);
+
+        if (relatedIds.isEmpty())
+            manager.saveRelation(ownerId, dependentId);
+        else
+            manager.replaceRelation(ownerId, relatedIds.getFirst(), dependentId);
+        manager.remember(entityToSaveId, currentField.name(), fingerprint);
+    }
+
+    private <C> void saveChild(ObjectCollection<C> collection, Object child) {
+        collection.save((C) child);
+    }
+
+    private <C> void saveChildren(ObjectCollection<C> collection, List<Object> children) {
+        if (children.isEmpty()) return;
+        collection.saveAll((List<C>) children).forEach(BatchResult::throwIfFailed);
+    }
+
+    void readCollectionReference(FieldMetadata field, Object instance, UUID id)
+            throws IOException {
+
+        if (field.relation() == RelationKind.ONE_TO_MANY) {
+            readOneToManyRelationship(field, instance, id);
+        } else if (field.relation() == RelationKind.MANY_TO_MANY) {
+            readManyToManyRelationship(field, instance, id);
+        } else {
+            throw new RelationshipDeclarationException(
+                    "Collection field " + field.name() +
+                            " must have OneToMany or ManyToMany annotation.");
+        }
+    }
+
+    void readSingleReference(FieldMetadata field, Object instance, UUID instanceId)
+            throws IOException {
+        if (field.relation() == RelationKind.MANY_TO_ONE) {
+            readManyToOneRelationship(field, instance, instanceId);
+        } else if (field.relation() == RelationKind.ONE_TO_ONE) {
+            readOneToOneRelationship(field, instance, instanceId, field.isOwner());
+        } else {
+            throw new RelationshipDeclarationException(
+                    "ElementCollection field " + field.name() +
+                            " must have ManyToOne or OneToOne annotation.");
+        }
+    }
+
+    private void readManyToOneRelationship(FieldMetadata field, Object instance, UUID instanceId) throws IOException {
+        readOneToOneRelationship(field, instance, instanceId, true);
+    }
+
+    private void readOneToManyRelationship(FieldMetadata field, Object instance, UUID instanceId)
+            throws IOException {
+        if (field.fetch() != Fetch.EAGER) {
+            field.set(instance, Collections.emptyList());
+            return;
+        }
+
+        Class<?> genericType = field.relatedType();
+        if (genericType == null) return;
+
+        ObjectCollection<?> collection = ObjectCollectionRegistry.getCollection(genericType);
+        List<Object> children = new ArrayList<>();
+
+        List<UUID> childrenIds = ReferenceCollectionManagerRegistry.getManager(type, genericType)
+                .getRelatedIds(instanceId, false);
+
+        children.addAll(collection.findAllById(childrenIds).values());
+
+        field.set(instance, children);
+    }
+
+    private void readManyToManyRelationship(FieldMetadata field, Object instance, UUID id) throws IOException {
+        List<Object> relatedEntities = new ArrayList<>();
+        if (field.fetch() != Fetch.EAGER) {
+            field.set(instance, relatedEntities);
+            return;
+        }
+
+        Class<?> genericType = field.relatedType();
+        ReferenceCollectionManager manager = ReferenceCollectionManagerRegistry.getManager(type, genericType);
+        List<UUID> relatedIds;
+
+        if (field.isOwner()) {
+            relatedIds = manager.getRelatedIds(id, true);
+        } else {
+            relatedIds = manager.getRelatedIds(id, false);
+        }
+
+        ObjectCollection<?> collection = ObjectCollectionRegistry.getCollection(genericType);
+
+        for (UUID relatedId : relatedIds) {
+            Object relatedEntity = PersistenceContext.getFromContext(genericType, relatedId);
+            if (relatedEntity == null) {
+                relatedEntity = collection.findById(relatedId).orElse(null);
+                if (relatedEntity != null) PersistenceContext.registerInContext(relatedEntity);
+            }
+            if (relatedEntity != null) relatedEntities.add(relatedEntity);
+        }
+
+        field.set(instance, relatedEntities);
+    }
+
+    private void readOneToOneRelationship(FieldMetadata field, Object instance, UUID instanceId, boolean isOwner)
+            throws IOException {
+        ReferenceCollectionManager manager = ReferenceCollectionManagerRegistry.getManager(type, field.type());
+        List<UUID> relatedIds = manager.getRelatedIds(instanceId, isOwner);
+        if (relatedIds.isEmpty()) {
+            field.set(instance, null);
+            return;
+        }
+
+        UUID refId = relatedIds.getFirst();
+        ObjectCollection<?> collection = ObjectCollectionRegistry.getCollection(field.type());
+        Object existing = PersistenceContext.getFromContext(field.type(), refId);
+
+        if (existing != null) {
+            field.set(instance, existing);
+            return;
+        }
+
+        Object found = collection.findById(refId).orElse(null);
+        if (found != null) PersistenceContext.registerInContext(found);
+
+        field.set(instance, found);
+    }
+}
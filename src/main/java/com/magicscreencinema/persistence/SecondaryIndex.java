@@ -0,0 +1,151 @@
+package com.magicscreencinema.persistence;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Hash index of one {@link com.magicscreencinema.persistence.declaration.Indexed} field, mapping
+ * the textual form of a value to the ids of the entities holding it.
+ * <p>
+ * File layout: magic (int), version (int), entry count (int), then per entry: id (two longs),
+ * key (utf).
+ */
+class SecondaryIndex extends FieldIndex {
+    private static final int MAGIC = 0x4D534953;
+    private static final int VERSION = 1;
+
+    private final boolean unique;
+    private final Map<String, Set<UUID>> idsByKey = new ConcurrentHashMap<>();
+    private final Map<UUID, String> keysById = new ConcurrentHashMap<>();
+
+    SecondaryIndex(Field field, boolean unique, Path path) {
+        super(MAGIC, VERSION, field, path);
+        this.unique = unique;
+    }
+
+    static String key(Object value) {
+        if (value == null) return null;
+        return value instanceof Enum<?> constant ? constant.name() : value.toString();
+    }
+
+    /**
+     * The key an equal value of the field is stored under. Numbers are converted to the type of
+     * the field first, so 10 and 10.0 both find an int field holding 10, as a scan matches them.
+     * A number the field can not hold exactly keeps its own form and finds nothing.
+     */
+    String lookupKey(Object value) {
+        if (!(value instanceof Number number)) return key(value);
+        Class<?> type = field().getType();
+        if (type == double.class || type == Double.class) return key(number.doubleValue());
+        if (type == float.class || type == Float.class) return key(number.floatValue());
+
+        long min;
+        long max;
+        if (type == long.class || type == Long.class) {
+            min = Long.MIN_VALUE;
+            max = Long.MAX_VALUE;
+        } else if (type == int.class || type == Integer.class) {
+            min = Integer.MIN_VALUE;
+            max = Integer.MAX_VALUE;
+        } else if (type == short.class || type == Short.class) {
+            min = Short.MIN_VALUE;
+            max = Short.MAX_VALUE;
+        } else if (type == byte.class || type == Byte.class) {
+            min = Byte.MIN_VALUE;
+            max = Byte.MAX_VALUE;
+        } else {
+            return key(value);
+        }
+        long integral;
+        if (number instanceof Long || number instanceof Integer || number instanceof Short || number instanceof Byte) {
+            integral = number.longValue();
+        } else {
+            double decimal = number.doubleValue();
+            if (decimal != Math.rint(decimal) || decimal < Long.MIN_VALUE || decimal >= Long.MAX_VALUE) return key(value);
+            integral = (long) decimal;
+        }
+        return integral < min || integral > max ? key(value) : key(integral);
+    }
+
+    boolean isUnique() {
+        return unique;
+    }
+
+    Set<UUID> find(String key) {
+        if (key == null) return Set.of();
+        Set<UUID> ids = idsByKey.get(key);
+        return ids == null ? Set.of() : Set.copyOf(ids);
+    }
+
+    String keyOf(UUID id) {
+        return keysById.get(id);
+    }
+
+    @Override
+    synchronized void update(UUID id, Object value) throws IOException {
+        String key = key(value);
+        String previous = keysById.get(id);
+        if (Objects.equals(previous, key)) return;
+        markChanged();
+        unlink(id, previous);
+        if (key == null) {
+            keysById.remove(id);
+        } else {
+            keysById.put(id, key);
+            idsByKey.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(id);
+        }
+    }
+
+    @Override
+    synchronized void remove(UUID id) throws IOException {
+        if (!keysById.containsKey(id)) return;
+        markChanged();
+        unlink(id, keysById.remove(id));
+    }
+
+    @Override
+    synchronized void clear() throws IOException {
+        markChanged();
+        clearEntries();
+    }
+
+    @Override
+    protected void clearEntries() {
+        idsByKey.clear();
+        keysById.clear();
+    }
+
+    @Override
+    protected void readEntries(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        for (int i = 0; i < count; i++) {
+            UUID id = new UUID(in.readLong(), in.readLong());
+            String key = in.readUTF();
+            keysById.put(id, key);
+            idsByKey.computeIfAbsent(key, k -> ConcurrentHashMap.newKeySet()).add(id);
+        }
+    }
+
+    @Override
+    protected void writeEntries(DataOutputStream out) throws IOException {
+        out.writeInt(keysById.size());
+        for (Map.Entry<UUID, String> entry : keysById.entrySet()) {
+            out.writeLong(entry.getKey().getMostSignificantBits());
+            out.writeLong(entry.getKey().getLeastSignificantBits());
+            out.writeUTF(entry.getValue());
+        }
+    }
+
+    private void unlink(UUID id, String key) {
+        if (key == null) return;
+        Set<UUID> ids = idsByKey.get(key);
+        if (ids == null) return;
+        ids.remove(id);
+        if (ids.isEmpty()) idsByKey.remove(key);
+    }
+}
@@ -0,0 +1,200 @@
+package com.magicscreencinema.persistence;
+
+import com.magicscreencinema.persistence.declaration.Indexed;
+import com.magicscreencinema.persistence.declaration.RangeIndexed;
+import com.magicscreencinema.persistence.exception.RelationshipDeclarationException;
+import com.magicscreencinema.persistence.exception.UniqueConstraintViolationException;
+
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.*;
+
+/**
+ * The {@link Indexed} and {@link RangeIndexed} fields of one collection. Indexes are kept up to date when records are
+ * applied, and unique values are claimed in the saving transaction and checked again when it
+ * commits, so duplicates are rejected without scanning the collection.
+ */
+class SecondaryIndexes {
+    private final AbstractObjectCollection<?> collection;
+    private final Map<String, SecondaryIndex> indexes = new LinkedHashMap<>();
+    private final Map<String, RangeIndex> rangeIndexes = new LinkedHashMap<>();
+    private final List<SecondaryIndex> uniqueIndexes = new ArrayList<>();
+    private final List<FieldIndex> allIndexes = new ArrayList<>();
+    private final Set<String> indexedFields = new HashSet<>();
+    private volatile boolean open;
+    private boolean stale;
+
+    SecondaryIndexes(AbstractObjectCollection<?> collection) {
+        this.collection = collection;
+        for (Class<?> current = collection.objectClass; current != null && current != Object.class; current = current.getSuperclass()) {
+            for (Field field : current.getDeclaredFields()) {
+                boolean indexed = field.isAnnotationPresent(Indexed.class);
+                boolean rangeIndexed = field.isAnnotationPresent(RangeIndexed.class);
+                if (!(indexed || rangeIndexed) || Modifier.isStatic(field.getModifiers())) continue;
+                if (PersistenceUtil.isElementCollection(field.getType()) || PersistenceUtil.isCollectionOfElementCollection(field)) {
+                    throw new RelationshipDeclarationException("Relation field " + field.getName() + " of class "
+                            + collection.objectClass.getName() + " can not be indexed");
+                }
+                if (!indexedFields.add(field.getName())) continue;
+                field.setAccessible(true);
+                if (indexed) addIndex(field);
+                if (rangeIndexed) addRangeIndex(field);
+            }
+        }
+    }
+
+    private void addIndex(Field field) {
+        boolean unique = field.getAnnotation(Indexed.class).unique();
+        SecondaryIndex index = new SecondaryIndex(field, unique,
+                PersistenceConfig.resolveSecondaryIndexPath(collection.collectionName, field.getName()));
+        indexes.put(field.getName(), index);
+        allIndexes.add(index);
+        if (unique) uniqueIndexes.add(index);
+    }
+
+    private void addRangeIndex(Field field) {
+        RangeIndex index = new RangeIndex(field, PersistenceConfig.resolveRangeIndexPath(collection.collectionName, field.getName()));
+        rangeIndexes.put(field.getName(), index);
+        allIndexes.add(index);
+    }
+
+    SecondaryIndex get(String fieldName) {
+        return indexes.get(fieldName);
+    }
+
+    RangeIndex range(String fieldName) {
+        return rangeIndexes.get(fieldName);
+    }
+
+    /**
+     * loads the index files, or rebuilds the indexes from the records when a file is missing or
+     * the primary index was rebuilt while the collection was being opened
+     */
+    synchronized void open() throws IOException {
+        if (open || allIndexes.isEmpty()) return;
+        boolean loaded = !stale;
+        for (FieldIndex index : allIndexes) {
+            loaded &= index.load();
+        }
+        if (!loaded) rebuild();
+        open = true;
+    }
+
+    /**
+     * called after the primary index was rebuilt because records changed behind the collection's back
+     */
+    synchronized void primaryIndexRebuilt() throws IOException {
+        if (allIndexes.isEmpty()) return;
+        if (open) {
+            rebuild();
+        } else {
+            stale = true;
+        }
+    }
+
+    void update(UUID id, byte[] record) throws IOException {
+        if (allIndexes.isEmpty()) return;
+        Map<String, Object> values = collection.readFields(record, indexedFields);
+        for (FieldIndex index : allIndexes) {
+            index.update(id, values.get(index.fieldName()));
+        }
+    }
+
+    void remove(UUID id) throws IOException {
+        for (FieldIndex index : allIndexes) {
+            index.remove(id);
+        }
+    }
+
+    void store() throws IOException {
+        if (!open) return;
+        for (FieldIndex index : allIndexes) {
+            index.store();
+        }
+    }
+
+    /**
+     * claims the unique values of an entity being saved, throws if another entity holds one of them
+     */
+    void claim(PersistenceTransaction transaction, Object entity, UUID id) {
+        for (SecondaryIndex index : uniqueIndexes) {
+            String key;
+            try {
+                key = SecondaryIndex.key(index.field().get(entity));
+            } catch (IllegalAccessException e) {
+                throw new RuntimeException("Could not access field " + index.fieldName(), e);
+            }
+            checkUnique(transaction, index, key, id);
+            transaction.claim(collection, index, id, key);
+        }
+    }
+
+    /**
+     * claims the unique values of a record encoded before, as {@link #claim} does for an entity
+     */
+    void claimRecord(PersistenceTransaction transaction, byte[] record, UUID id) throws IOException {
+        if (uniqueIndexes.isEmpty()) return;
+        Set<String> fieldNames = new HashSet<>();
+        for (SecondaryIndex index : uniqueIndexes) {
+            fieldNames.add(index.fieldName());
+        }
+        Map<String, Object> values = collection.readFields(record, fieldNames);
+        for (SecondaryIndex index : uniqueIndexes) {
+            String key = SecondaryIndex.key(values.get(index.fieldName()));
+            checkUnique(transaction, index, key, id);
+            transaction.claim(collection, index, id, key);
+        }
+    }
+
+    /**
+     * claims the unique values an update sets, values it leaves alone stay claimed as stored
+     */
+    void claimValues(PersistenceTransaction transaction, Map<String, Object> values, UUID id) {
+        for (SecondaryIndex index : uniqueIndexes) {
+            if (!values.containsKey(index.fieldName())) continue;
+            String key = SecondaryIndex.key(values.get(index.fieldName()));
+            checkUnique(transaction, index, key, id);
+            transaction.claim(collection, index, id, key);
+        }
+    }
+
+    /**
+     * gives up the unique values of an entity being deleted, so the same transaction can reuse them
+     */
+    void release(PersistenceTransaction transaction, UUID id) {
+        for (SecondaryIndex index : uniqueIndexes) {
+            transaction.claim(collection, index, id, null);
+        }
+    }
+
+    void checkUnique(PersistenceTransaction transaction, SecondaryIndex index, String key, UUID id) {
+        if (key == null) return;
+        UUID claimant = transaction.claimant(index, key);
+        if (claimant != null && !claimant.equals(id)) throw violation(index, key, claimant);
+
+        for (UUID owner : index.find(key)) {
+            if (owner.equals(id)) continue;
+            PersistenceTransaction.PendingRecord pending = transaction.pending(collection, owner);
+            if (pending != null && pending.record() == null) continue;
+            if (transaction.hasClaim(index, owner) && !key.equals(transaction.claimedKey(index, owner))) continue;
+            throw violation(index, key, owner);
+        }
+    }
+
+    private UniqueConstraintViolationException violation(SecondaryIndex index, String key, UUID owner) {
+        return new UniqueConstraintViolationException("Value " + key + " of unique field " + index.fieldName() + " in class "
+                + collection.objectClass.getName() + " is already used by object with id " + owner);
+    }
+
+    private void rebuild() throws IOException {
+        for (FieldIndex index : allIndexes) {
+            index.clear();
+        }
+        for (UUID id : collection.index.ids()) {
+            Optional<byte[]> record = collection.readRecord(id);
+            if (record.isPresent()) update(id, record.get());
+        }
+        stale = false;
+    }
+}
@@ -0,0 +1,348 @@
+package com.magicscreencinema.persistence;
+
+import com.magicscreencinema.persistence.exception.CouldNotReadObjectException;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Log-structured storage: every save appends a record to the active segment file of the collection,
+ * the primary index points at the latest record of each id and sealed segments whose records are
+ * mostly dead are rewritten by a background compactor.
+ * <p>
+ * Record layout: length (int), crc32 of the rest (int), type (byte), id (two longs), payload.
+ */
+class SegmentObjectCollection<T> extends AbstractObjectCollection<T> {
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+    private static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES + 1 + 2 * Long.BYTES;
+
+    private static final ScheduledExecutorService COMPACTOR = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "segment-compactor");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final Path collectionPath;
+    private final Path indexPath;
+    private final long maxSegmentBytes;
+    private final double compactionThreshold;
+    private final NavigableMap<Long, Segment> segments = new ConcurrentSkipListMap<>();
+    private final ReadWriteLock segmentLock = new ReentrantReadWriteLock();
+    private final Object appendLock = new Object();
+    private volatile Segment activeSegment;
+
+    public SegmentObjectCollection(Class<T> objectClass) {
+        super(objectClass);
+        collectionPath = PersistenceConfig.resolveCollectionPath(collectionName);
+        indexPath = PersistenceConfig.resolveIndexPath(collectionName);
+        maxSegmentBytes = PersistenceConfig.segmentMaxBytes();
+        compactionThreshold = PersistenceConfig.segmentCompactionThreshold();
+        try {
+            open();
+        } catch (IOException e) {
+            throw new CouldNotReadObjectException("Could not open segments of collection " + collectionName, e);
+        }
+        long interval = PersistenceConfig.segmentCompactionIntervalMillis();
+        COMPACTOR.scheduleWithFixedDelay(this::compact, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    protected void writeRecord(UUID id, byte[] record) throws IOException {
+        synchronized (appendLock) {
+            RecordLocation location = append(encode(PUT, id, record));
+            markDead(index.put(id, location));
+        }
+    }
+
+    @Override
+    protected Optional<byte[]> readRecord(UUID id) throws IOException {
+        segmentLock.readLock().lock();
+        try {
+            RecordLocation location = index.get(id);
+            if (location == null) return Optional.empty();
+
+            ByteBuffer record = read(segments.get(location.segmentId()), location);
+            byte[] payload = new byte[record.limit() - HEADER_SIZE];
+            record.position(HEADER_SIZE).get(payload);
+            return Optional.of(payload);
+        } finally {
+            segmentLock.readLock().unlock();
+        }
+    }
+
+    @Override
+    protected boolean removeRecord(UUID id) throws IOException {
+        synchronized (appendLock) {
+            RecordLocation previous = index.remove(id);
+            if (previous == null) return false;
+
+            markDead(previous);
+            byte[] deletedSegment = ByteBuffer.allocate(Long.BYTES).putLong(previous.segmentId()).array();
+            markDead(append(encode(DELETE, id, deletedSegment)));
+            return true;
+        }
+    }
+
+    @Override
+    Path storagePath(UUID id) {
+        RecordLocation location = index.get(id);
+        return location == null ? activeSegment.path : segmentPath(location.segmentId());
+    }
+
+    @Override
+    protected void refreshIndex() {
+    }
+
+    /**
+     * Stores the index together with the end of the active segment. Both are read under the append
+     * lock, so every record before that end is in the stored entries, the file is written after
+     * the lock is released. Records appended after the checkpoint are replayed on open, which is
+     * idempotent.
+     */
+    @Override
+    synchronized void persistIndex() throws IOException {
+        if (!index.isDirty()) return;
+        List<Map.Entry<UUID, RecordLocation>> snapshot;
+        long segmentId;
+        long end;
+        synchronized (appendLock) {
+            snapshot = index.snapshot();
+            segmentId = activeSegment.id;
+            end = activeSegment.size.get();
+        }
+        index.store(indexPath, snapshot, segmentId, end);
+    }
+
+    private void open() throws IOException {
+        Files.createDirectories(collectionPath);
+
+        List<Long> segmentIds = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(collectionPath, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+            for (Path path : stream) {
+                String name = path.getFileName().toString();
+                segmentIds.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())));
+            }
+        }
+        Collections.sort(segmentIds);
+
+        for (long segmentId : segmentIds) {
+            segments.put(segmentId, new Segment(segmentId, segmentPath(segmentId)));
+        }
+
+        long[] checkpoint = index.load(indexPath);
+        if (!isValidCheckpoint(checkpoint)) {
+            index.clear();
+            checkpoint = new long[]{segmentIds.isEmpty() ? 0 : segmentIds.getFirst(), 0};
+        }
+
+        for (Segment segment : segments.tailMap(checkpoint[0], true).values()) {
+            long start = segment.id == checkpoint[0] ? checkpoint[1] : 0;
+            long validEnd = scan(segment, start, (type, id, location, record) -> {
+                if (type == PUT) {
+                    index.put(id, location);
+                } else {
+                    index.remove(id);
+                }
+            });
+            if (segment == segments.lastEntry().getValue() && validEnd < segment.channel.size()) {
+                segment.channel.truncate(validEnd);
+            }
+        }
+
+        for (Segment segment : segments.values()) {
+            segment.size.set(segment.channel.size());
+            segment.deadBytes.set(segment.size.get());
+        }
+        for (RecordLocation location : index.locations()) {
+            segments.get(location.segmentId()).deadBytes.addAndGet(-location.length());
+        }
+
+        activeSegment = segments.isEmpty() ? createSegment(1) : segments.lastEntry().getValue();
+    }
+
+    private boolean isValidCheckpoint(long[] checkpoint) throws IOException {
+        if (checkpoint == null) return false;
+        Segment segment = segments.get(checkpoint[0]);
+        if (segment == null || segment.channel.size() < checkpoint[1]) return false;
+        return index.locations().stream().allMatch(location -> segments.containsKey(location.segmentId()));
+    }
+
+    private void compact() {
+        try {
+            for (Segment segment : List.copyOf(segments.values())) {
+                if (segment == activeSegment) continue;
+                if (segment.deadBytes.get() < segment.size.get() * compactionThreshold) continue;
+                compact(segment);
+            }
+        } catch (IOException | RuntimeException _) {
+            // the segment stays in place and is picked up again by the next run
+        }
+    }
+
+    /**
+     * Copies the live records of a sealed segment to the active one and deletes it. The copies do
+     * not go through the write-ahead log, so the segments they went to, the index pointing at them
+     * and the folder are forced before the only other copy is deleted.
+     */
+    private void compact(Segment segment) throws IOException {
+        long firstTarget = activeSegment.id;
+        scan(segment, 0, (type, id, location, record) -> {
+            synchronized (appendLock) {
+                if (type == PUT && location.equals(index.get(id))) {
+                    index.put(id, append(record));
+                } else if (type == DELETE && !index.contains(id)
+                        && segments.firstKey() < segment.id && segments.firstKey() <= record.getLong(HEADER_SIZE)) {
+                    // an older segment may still hold a put of this id, so the tombstone has to survive
+                    markDead(append(record));
+                }
+            }
+        });
+        for (Segment target : segments.tailMap(firstTarget, true).values()) {
+            target.channel.force(false);
+        }
+        AtomicFiles.force(collectionPath);
+        persistIndex();
+
+        segmentLock.writeLock().lock();
+        try {
+            segments.remove(segment.id);
+            segment.channel.close();
+            Files.deleteIfExists(segment.path);
+        } finally {
+            segmentLock.writeLock().unlock();
+        }
+    }
+
+    private RecordLocation append(ByteBuffer record) throws IOException {
+        int length = record.remaining();
+        Segment segment = activeSegment;
+        if (segment.size.get() > 0 && segment.size.get() + length > maxSegmentBytes) {
+            segment = createSegment(segment.id + 1);
+        }
+
+        long offset = segment.size.get();
+        writeFully(segment.channel, record.duplicate(), offset);
+        segment.size.addAndGet(length);
+        return new RecordLocation(segment.id, offset, length);
+    }
+
+    private Segment createSegment(long segmentId) throws IOException {
+        Files.createDirectories(collectionPath);
+        Segment segment = new Segment(segmentId, segmentPath(segmentId));
+        segments.put(segmentId, segment);
+        activeSegment = segment;
+        return segment;
+    }
+
+    private void markDead(RecordLocation location) {
+        if (location == null) return;
+        Segment segment = segments.get(location.segmentId());
+        if (segment != null) segment.deadBytes.addAndGet(location.length());
+    }
+
+    private long scan(Segment segment, long start, RecordVisitor visitor) throws IOException {
+        long size = segment.channel.size();
+        long position = start;
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+
+        while (position + HEADER_SIZE <= size) {
+            lengthBuffer.clear();
+            readFully(segment.channel, lengthBuffer, position);
+            int length = lengthBuffer.getInt(0);
+            if (length < HEADER_SIZE || position + length > size) break;
+
+            ByteBuffer record = ByteBuffer.allocate(length);
+            readFully(segment.channel, record, position);
+            record.flip();
+            if (record.getInt(Integer.BYTES) != checksum(record)) break;
+
+            UUID id = new UUID(record.getLong(9), record.getLong(17));
+            visitor.visit(record.get(8), id, new RecordLocation(segment.id, position, length), record);
+            position += length;
+        }
+        return position;
+    }
+
+    private ByteBuffer read(Segment segment, RecordLocation location) throws IOException {
+        ByteBuffer record = ByteBuffer.allocate(location.length());
+        readFully(segment.channel, record, location.offset());
+        record.flip();
+        if (record.getInt(Integer.BYTES) != checksum(record)) {
+            throw new IOException("Corrupted record in segment " + segment.path + " at offset " + location.offset());
+        }
+        return record;
+    }
+
+    private Path segmentPath(long segmentId) {
+        return collectionPath.resolve(String.format("%s%010d%s", SEGMENT_PREFIX, segmentId, SEGMENT_SUFFIX));
+    }
+
+    private static ByteBuffer encode(byte type, UUID id, byte[] payload) {
+        int length = HEADER_SIZE + payload.length;
+        ByteBuffer record = ByteBuffer.allocate(length)
+                .putInt(length)
+                .putInt(0)
+                .put(type)
+                .putLong(id.getMostSignificantBits())
+                .putLong(id.getLeastSignificantBits())
+                .put(payload)
+                .flip();
+        record.putInt(Integer.BYTES, checksum(record));
+        return record;
+    }
+
+    private static int checksum(ByteBuffer record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.duplicate().position(2 * Integer.BYTES));
+        return (int) crc.getValue();
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer, position + buffer.position());
+            if (read < 0) throw new IOException("Unexpected end of segment");
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+        }
+    }
+
+    @FunctionalInterface
+    private interface RecordVisitor {
+        void visit(byte type, UUID id, RecordLocation location, ByteBuffer record) throws IOException;
+    }
+
+    private static final class Segment {
+        private final long id;
+        private final Path path;
+        private final FileChannel channel;
+        private final AtomicLong size = new AtomicLong();
+        private final AtomicLong deadBytes = new AtomicLong();
+
+        private Segment(long id, Path path) throws IOException {
+            this.id = id;
+            this.path = path;
+            this.channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+    }
+}
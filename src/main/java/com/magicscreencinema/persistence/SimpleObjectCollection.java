@@ -1,169 +1,332 @@
 package com.magicscreencinema.persistence;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-import com.magicscreencinema.persistence.declaration.*;
-import com.magicscreencinema.persistence.exception.CouldNotPersistObjectException;
 import com.magicscreencinema.persistence.exception.CouldNotReadObjectException;
-import com.magicscreencinema.persistence.exception.NotACollectionException;
 
+import java.io.BufferedInputStream;
 import java.io.File;
 import java.io.IOException;
-import java.lang.reflect.Field;
-import java.nio.file.Files;
-import java.nio.file.Path;
-import java.time.LocalDate;
-import java.time.LocalDateTime;
+import java.io.InputStream;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
-class SimpleObjectCollection<T> implements ObjectCollection<T> {
-    private final Class<T> objectClass;
-    private final Field idField;
-    private final String collectionName;
-    private final Gson gson;
+/**
+ * One json file per entity. The primary index is stamped with the modification time of the
+ * collection folder, which changes whenever a file is created or removed there, so files added or
+ * deleted by anything else than this collection make the index stale and trigger a rebuild.
+ * <p>
+ * Files are placed by the {@link FileLayout} of the collection. The index remembers the layout
+ * each file was found in, in the segment of its location, so files of both layouts are read and a
+ * file in the other layout is moved to the configured one when it is next saved, or by
+ * {@link #migrateLayout()}. In the sharded layout only creating or removing a first level shard
+ * folder changes the stamp, files added by hand to an existing shard are indexed by the next
+ * rebuild. The shards are listed on up to scan.parallelism threads when the index is rebuilt.
+ */
+class SimpleObjectCollection<T> extends AbstractObjectCollection<T> {
+    private static final String FILE_EXTENSION = ".json";
+    private static final long NO_FOLDER = -1;
+
+    private final Path collectionPath;
+    private final Path indexPath;
+    private final FileLayout layout;
+    private final long stalenessCheckMillis;
+    private volatile long folderStamp = NO_FOLDER;
+    private volatile long lastCheck;
 
     public SimpleObjectCollection(Class<T> objectClass) {
-        this.objectClass = objectClass;
-        if (!objectClass.isAnnotationPresent(ElementCollection.class)) {
-            throw new NotACollectionException("The class " + objectClass.getName() + " is not annotated with @Collection");
+        super(objectClass);
+        collectionPath = PersistenceConfig.resolveCollectionPath(collectionName);
+        indexPath = PersistenceConfig.resolveIndexPath(collectionName);
+        layout = PersistenceConfig.fileLayout(collectionName);
+        stalenessCheckMillis = PersistenceConfig.indexStalenessCheckMillis();
+        try {
+            long[] stamps = index.load(indexPath);
+            if (stamps != null && stamps[0] == readFolderStamp()) {
+                folderStamp = stamps[0];
+                lastCheck = System.currentTimeMillis();
+            } else {
+                rebuildIndex();
+            }
+        } catch (IOException e) {
+            throw new CouldNotReadObjectException("Could not open index of collection " + collectionName, e);
         }
-        this.idField = PersistenceUtil.findIdField(objectClass);
-        collectionName = objectClass.getAnnotation(ElementCollection.class).name();
-        gson = new GsonBuilder().
-                registerTypeAdapterFactory(new ReferenceTypeAdapterFactory())
-                .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeAdapter())
-                .registerTypeAdapter(LocalDate.class, new LocalDateAdapter())
-                .serializeNulls()
-                .setPrettyPrinting()
-                .create();
     }
 
     @Override
-    public void save(T object) {
-        if (object == null) return;
-        UUID id = PersistenceUtil.extractId(object, idField);
-        String json = gson.toJson(object);
-
-        Path collectionPath = PersistenceConfig.resolveCollectionPath(collectionName);
-
-        Path objectPath = collectionPath.resolve(id + ".json");
+    protected void writeRecord(UUID id, byte[] record) throws IOException {
+        refreshIndex();
+        RecordLocation previous = index.get(id);
+        Path path = layout.resolve(collectionPath, id, FILE_EXTENSION);
         try {
-            Files.writeString(objectPath, json);
-        } catch (IOException e) {
+            Files.write(path, record);
+        } catch (NoSuchFileException e) {
+            // the folder is created when the collection is opened, recreate it if it was removed
+            // since, shard folders are created with their first file
+            Files.createDirectories(path.getParent());
+            Files.write(path, record);
+        }
+        boolean moved = previous != null && previous.segmentId() != layout.ordinal();
+        if (moved) Files.deleteIfExists(FileLayout.of(previous.segmentId()).resolve(collectionPath, id, FILE_EXTENSION));
+        index.put(id, new RecordLocation(layout.ordinal(), 0, record.length));
+        if (previous == null || moved) folderStamp = readFolderStamp();
+    }
+
+    @Override
+    protected void discardRecord(UUID id) {
+        // only files left empty are removed, a file still holding the previous record is kept
+        for (Path objectPath : Set.of(getObjectFilePath(id), layout.resolve(collectionPath, id, FILE_EXTENSION))) {
             try {
                 File file = objectPath.toFile();
-                if (file.exists()) {
+                if (file.isFile() && file.length() == 0) {
                     file.setWritable(true);
                     Files.deleteIfExists(objectPath);
                 }
             } catch (IOException _) {
             }
-            throw new CouldNotPersistObjectException("Could not persist object of class " + objectClass.getName(), e);
+        }
+        if (Files.notExists(getObjectFilePath(id))) index.remove(id);
+        folderStamp = readFolderStamp();
+    }
+
+    @Override
+    protected Optional<byte[]> readRecord(UUID id) throws IOException {
+        refreshIndex();
+        if (!index.contains(id)) return Optional.empty();
+        // files are rewritten in place, the stripe keeps a commit from truncating one while it is read
+        Lock lock = LockStripes.entity(collectionName, id).readLock();
+        lock.lock();
+        try {
+            return Optional.of(Files.readAllBytes(getObjectFilePath(id)));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
         } finally {
-            PersistenceContext.removeFromContext(objectClass, id);
+            lock.unlock();
         }
     }
 
     @Override
-    public Optional<T> findById(UUID id) {
-        Path objectPath = getObjectFilePath(id);
+    protected Optional<InputStream> openRecord(UUID id) throws IOException {
+        refreshIndex();
+        if (!index.contains(id)) return Optional.empty();
+        try {
+            return Optional.of(new BufferedInputStream(Files.newInputStream(getObjectFilePath(id))));
+        } catch (NoSuchFileException e) {
+            return Optional.empty();
+        }
+    }
+
+    @Override
+    protected boolean removeRecord(UUID id) throws IOException {
+        boolean deleted = Files.deleteIfExists(getObjectFilePath(id));
+        index.remove(id);
+        if (deleted) folderStamp = readFolderStamp();
+        return deleted;
+    }
+
+    @Override
+    Path storagePath(UUID id) {
+        return getObjectFilePath(id);
+    }
+
+    @Override
+    protected void refreshIndex() {
+        long now = System.currentTimeMillis();
+        if (stalenessCheckMillis > 0 && now - lastCheck < stalenessCheckMillis) return;
+        lastCheck = now;
 
-        if (Files.exists(objectPath)) {
+        if (readFolderStamp() != folderStamp) {
             try {
-                String json = Files.readString(objectPath);
-                return Optional.ofNullable(gson.fromJson(json, objectClass));
+                rebuildIndex();
             } catch (IOException e) {
-                throw new CouldNotReadObjectException("Could not read object of class " + objectClass.getName() + " with id " + id, e);
-            } finally {
-                PersistenceContext.removeFromContext(objectClass, id);
+                throw new CouldNotReadObjectException("Could not rebuild index of collection " + collectionName, e);
             }
         }
-        return Optional.empty();
     }
 
     @Override
-    public List<T> findAll(boolean flushContext) {
-        Path collectionPath = PersistenceConfig.resolveCollectionPath(collectionName);
-        File folder = collectionPath.toFile();
-
-        List<T> results = new ArrayList<>();
-        for (File file : Objects.requireNonNull(folder.listFiles())) {
-            if (file.isFile() && file.getName().endsWith(".json")) {
-                try {
-                    String json = Files.readString(file.toPath());
-                    T object = gson.fromJson(json, objectClass);
-                    results.add(object);
-                } catch (IOException e) {
-                    throw new CouldNotReadObjectException("Could not read object file " + file.getName(), e);
-                } finally {
-                    if (flushContext) PersistenceContext.flush();
-                }
+    synchronized void persistIndex() throws IOException {
+        if (index.isDirty()) index.store(indexPath, folderStamp, 0);
+    }
+
+    /**
+     * Moves every file stored in another layout than the configured one, and removes shard folders
+     * left empty when going back to the flat layout. Each file is moved under the lock of its
+     * record, taken before the monitor of a rebuild like a commit does, so the collection stays
+     * usable meanwhile.
+     *
+     * @return number of files moved
+     */
+    int migrateLayout() throws IOException {
+        refreshIndex();
+        int moved = 0;
+        for (UUID id : List.copyOf(index.ids())) {
+            Lock lock = LockStripes.entity(collectionName, id).writeLock();
+            lock.lock();
+            try {
+                if (moveToLayout(id)) moved++;
+            } finally {
+                lock.unlock();
             }
         }
-        return results;
+        if (layout == FileLayout.FLAT) removeEmptyShards();
+        synchronized (this) {
+            folderStamp = readFolderStamp();
+            index.store(indexPath, folderStamp, 0);
+        }
+        return moved;
     }
 
-    @Override
-    public List<T> findAll() {
-        return findAll(true);
+    private synchronized boolean moveToLayout(UUID id) throws IOException {
+        RecordLocation location = index.get(id);
+        if (location == null || location.segmentId() == layout.ordinal()) return false;
+
+        Path target = layout.resolve(collectionPath, id, FILE_EXTENSION);
+        Files.createDirectories(target.getParent());
+        try {
+            Files.move(getObjectFilePath(id), target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (NoSuchFileException e) {
+            // deleted by something else meanwhile, the next rebuild drops it from the index
+            return false;
+        }
+        index.put(id, new RecordLocation(layout.ordinal(), 0, location.length()));
+        folderStamp = readFolderStamp();
+        return true;
     }
 
-    @Override
-    public boolean existsById(UUID id) {
-        Path objectPath = getObjectFilePath(id);
-        return Files.exists(objectPath);
+    private void removeEmptyShards() throws IOException {
+        for (Path shard : listShards()) {
+            Files.walkFileTree(shard, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult postVisitDirectory(Path directory, IOException e) throws IOException {
+                    try {
+                        Files.deleteIfExists(directory);
+                    } catch (DirectoryNotEmptyException _) {
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
     }
 
-    @Override
-    public boolean deleteById(UUID id) {
-        Path objectPath = getObjectFilePath(id);
-        Field[] fields = objectClass.getDeclaredFields();
-        try {
-            for (Field field : fields) {
-                boolean isCascade = false;
-                if (field.isAnnotationPresent(OneToMany.class)) {
-                    isCascade = Arrays.stream(field.getAnnotation(OneToMany.class).cascade()).anyMatch(c -> c == Cascade.DELETE);
-                } else if (field.isAnnotationPresent(ManyToMany.class)) {
-                    isCascade = Arrays.stream(field.getAnnotation(ManyToMany.class).cascade()).anyMatch(c -> c == Cascade.DELETE);
-                } else if (field.isAnnotationPresent(OneToOne.class)) {
-                    isCascade = Arrays.stream(field.getAnnotation(OneToOne.class).cascade()).anyMatch(c -> c == Cascade.DELETE);
+    private synchronized void rebuildIndex() throws IOException {
+        long stamp = readFolderStamp();
+        // built aside and swapped in, readers keep using the current entries meanwhile
+        Map<UUID, RecordLocation> rebuilt = new ConcurrentHashMap<>();
+        cache.clear();
+        if (stamp != NO_FOLDER) {
+            Files.walkFileTree(collectionPath, EnumSet.noneOf(FileVisitOption.class), 1, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    indexFile(rebuilt, file, attributes, FileLayout.FLAT);
+                    return FileVisitResult.CONTINUE;
                 }
-                if (isCascade) handleCascade(field, id);
-            }
-            clearAllRelations(id);
-            return Files.deleteIfExists(objectPath);
-        } catch (IOException e) {
-            return false;
+            });
+            indexShards(rebuilt, listShards());
         }
+        index.replaceAll(rebuilt, id -> Files.notExists(getObjectFilePath(id)));
+        folderStamp = stamp;
+        indexRebuilt();
+        lastCheck = System.currentTimeMillis();
+        index.store(indexPath, folderStamp, 0);
     }
 
-    private void handleCascade(Field field, UUID id) throws IOException {
-        Class<?> fieldType = PersistenceUtil.getGenericType(field);
-        ObjectCollection<?> relatedCollection = ObjectCollectionRegistry.getCollection(fieldType);
+    private List<Path> listShards() throws IOException {
+        List<Path> shards = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(collectionPath,
+                path -> FileLayout.isShard(path.getFileName().toString()) && Files.isDirectory(path))) {
+            stream.forEach(shards::add);
+        } catch (NoSuchFileException _) {
+        }
+        return shards;
+    }
 
-        ReferenceCollectionManager referenceManager = ReferenceCollectionManagerRegistry.getManager(objectClass, fieldType);
-        List<UUID> relatedIds = new ArrayList<>(referenceManager.getRelatedIds(id, false));
-        relatedIds.addAll(referenceManager.getRelatedIds(id, true));
+    /**
+     * walks the first level shard folders, split over scan.parallelism virtual threads
+     */
+    private void indexShards(Map<UUID, RecordLocation> rebuilt, List<Path> shards) throws IOException {
+        int parallelism = Math.min(shards.size(), PersistenceConfig.scanParallelism());
+        if (parallelism <= 1) {
+            for (Path shard : shards) indexShard(rebuilt, shard);
+            return;
+        }
 
-        for (UUID relatedId : relatedIds) {
-            relatedCollection.deleteById(relatedId);
+        List<Future<?>> walks = new ArrayList<>();
+        try (ExecutorService walkers = Executors.newVirtualThreadPerTaskExecutor()) {
+            for (int first = 0; first < parallelism; first++) {
+                List<Path> group = new ArrayList<>();
+                for (int i = first; i < shards.size(); i += parallelism) group.add(shards.get(i));
+                walks.add(walkers.submit(() -> {
+                    for (Path shard : group) indexShard(rebuilt, shard);
+                    return null;
+                }));
+            }
+        }
+        for (Future<?> walk : walks) {
+            try {
+                walk.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while indexing collection " + collectionName, e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException cause) throw cause;
+                if (e.getCause() instanceof RuntimeException cause) throw cause;
+                throw new IOException("Could not index collection " + collectionName, e.getCause());
+            }
         }
     }
 
-    private void clearAllRelations(UUID id) throws IOException {
-        Set<Class<?>> registeredClasses = ObjectCollectionRegistry.getRegisteredClasses();
-        for (Class<?> clazz : registeredClasses) {
-            ReferenceCollectionManager manager = ReferenceCollectionManagerRegistry.getManager(objectClass, clazz);
+    private void indexShard(Map<UUID, RecordLocation> rebuilt, Path shard) throws IOException {
+        Files.walkFileTree(shard, EnumSet.noneOf(FileVisitOption.class), 2, new SimpleFileVisitor<>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                if (attributes.isRegularFile()) indexFile(rebuilt, file, attributes, FileLayout.SHARDED);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    /**
+     * indexes a file found in the given layout, if a record is found in both layouts the file in
+     * the configured one wins
+     */
+    private void indexFile(Map<UUID, RecordLocation> rebuilt, Path file, BasicFileAttributes attributes, FileLayout foundIn) {
+        UUID id = parseId(file.getFileName().toString());
+        if (id == null || !file.equals(foundIn.resolve(collectionPath, id, FILE_EXTENSION))) return;
+        if (foundIn != layout && rebuilt.containsKey(id)) return;
+        rebuilt.put(id, new RecordLocation(foundIn.ordinal(), 0, (int) attributes.size()));
+    }
+
+    private long readFolderStamp() {
+        try {
+            return Files.getLastModifiedTime(collectionPath).to(TimeUnit.NANOSECONDS);
+        } catch (IOException e) {
+            return NO_FOLDER;
+        }
+    }
 
-            manager.clearRelation(id, true);
-            manager.clearRelation(id, false);
+    private static UUID parseId(String fileName) {
+        if (!fileName.endsWith(FILE_EXTENSION)) return null;
+        try {
+            return UUID.fromString(fileName.substring(0, fileName.length() - FILE_EXTENSION.length()));
+        } catch (IllegalArgumentException e) {
+            return null;
         }
     }
 
-    private Path getObjectFilePath(Object id) {
-        String idStr = id.toString();
-        Path collectionPath = PersistenceConfig.resolveCollectionPath(collectionName);
-        return collectionPath.resolve(idStr + ".json");
+    /**
+     * file of the record in the layout it was indexed in, in the configured layout if it is new
+     */
+    private Path getObjectFilePath(UUID id) {
+        RecordLocation location = index.get(id);
+        FileLayout storedIn = location == null ? layout : FileLayout.of(location.segmentId());
+        return storedIn.resolve(collectionPath, id, FILE_EXTENSION);
     }
 
 }
@@ -0,0 +1,12 @@
+package com.magicscreencinema.persistence;
+
+enum StorageEngine {
+    /**
+     * one json file per entity
+     */
+    FILE,
+    /**
+     * records appended to rolling segment files
+     */
+    SEGMENT
+}
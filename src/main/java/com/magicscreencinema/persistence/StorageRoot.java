@@ -0,0 +1,53 @@
+package com.magicscreencinema.persistence;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Folder a group of collections and relation files is stored in, configured with
+ * storage.root.&lt;name&gt;=path and chosen per collection with collection.&lt;name&gt;.root. The
+ * folder of database.path is the root named default, it also holds the write-ahead log.
+ * <p>
+ * Every root has its own I/O threads and its own limit of pending asynchronous operations, so
+ * writes queued for a slow disk do not hold up collections stored on another one.
+ */
+final class StorageRoot {
+    static final String DEFAULT = "default";
+
+    private static final Map<String, StorageRoot> ROOTS = new ConcurrentHashMap<>();
+
+    private final ExecutorService executor;
+    private final Semaphore pending;
+
+    private StorageRoot(String name) {
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.executor = Executors.newFixedThreadPool(PersistenceConfig.ioThreads(name), runnable -> {
+            Thread thread = new Thread(runnable, "persistence-io-" + name + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.pending = new Semaphore(PersistenceConfig.asyncQueueCapacity());
+    }
+
+    /**
+     * root the collection or relation file of the given name is stored in
+     */
+    static StorageRoot of(String collectionName) {
+        return ROOTS.computeIfAbsent(PersistenceConfig.storageRoot(collectionName), StorageRoot::new);
+    }
+
+    ExecutorService executor() {
+        return executor;
+    }
+
+    /**
+     * permits of the asynchronous operations that may still be submitted without blocking
+     */
+    Semaphore pending() {
+        return pending;
+    }
+}
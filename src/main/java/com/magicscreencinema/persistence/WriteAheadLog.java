@@ -0,0 +1,431 @@
+package com.magicscreencinema.persistence;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of the database, one for all storage roots in the root named by wal.root. Every
+ * transaction is appended as one record and made durable before its changes are applied to the
+ * entity and relation files. Concurrent committers share fsyncs: the first thread to wait becomes
+ * the leader and forces everything written so far, the others wait for it instead of issuing their
+ * own.
+ * <p>
+ * Relation changes are replayed when the log is opened. Entity changes are replayed when their
+ * collection is opened, because only the collection knows how its records are stored.
+ * <p>
+ * A transaction is committed once its record is durable. Changes that could then not be applied
+ * are never aborted: they stay in the log as unapplied, are carried over by checkpoints, applied
+ * by the next transaction writing the same record or relation file and replayed on open.
+ * <p>
+ * Record layout: length (int), crc32 of the rest (int), sequence (long), kind (byte),
+ * operation count (int), operations.
+ */
+final class WriteAheadLog {
+    private static final byte COMMIT = 1;
+    private static final byte ABORT = 2;
+    private static final byte ENTITY_PUT = 1;
+    private static final byte ENTITY_DELETE = 2;
+    private static final byte RELATION = 3;
+    private static final int HEADER_SIZE = Integer.BYTES + Integer.BYTES;
+
+    private static volatile WriteAheadLog instance;
+
+    sealed interface Operation permits EntityOperation, RelationOperation {
+    }
+
+    /**
+     * record == null marks a delete
+     */
+    record EntityOperation(String collectionName, UUID id, byte[] record) implements Operation {
+    }
+
+    record RelationOperation(String relationName, List<String> removed, List<String> added) implements Operation {
+    }
+
+    private final Path path;
+    private final long checkpointBytes;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition syncDone = lock.newCondition();
+    private final Map<String, List<EntityOperation>> unreplayed = new HashMap<>();
+    private final List<Operation> unapplied = new ArrayList<>();
+    private final Set<Path> touchedSinceCheckpoint = new HashSet<>();
+    private FileChannel channel;
+    private long position;
+    private long nextSequence;
+    private long writtenSequence;
+    private long syncedSequence;
+    private boolean syncing;
+    private int inFlight;
+    private long syncs;
+
+    private WriteAheadLog(Path path, long checkpointBytes) {
+        this.path = path;
+        this.checkpointBytes = checkpointBytes;
+    }
+
+    static WriteAheadLog current() {
+        return instance;
+    }
+
+    /**
+     * opens the log of the database and replays the relation changes it still holds
+     */
+    static synchronized void open() {
+        if (instance != null) return;
+        Path path = PersistenceConfig.resolveWriteAheadLogPath();
+        try {
+            instance = open(path, PersistenceConfig.walCheckpointBytes());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not open write-ahead log " + path, e);
+        }
+    }
+
+    /**
+     * reads the log file, cuts off a torn or corrupted tail and replays the relation changes
+     */
+    static WriteAheadLog open(Path path, long checkpointBytes) throws IOException {
+        WriteAheadLog log = new WriteAheadLog(path, checkpointBytes);
+        log.recover();
+        return log;
+    }
+
+    /**
+     * applies the entity changes the log still holds for a collection that is being opened
+     */
+    void replay(AbstractObjectCollection<?> collection) throws IOException {
+        List<EntityOperation> operations;
+        lock.lock();
+        try {
+            operations = unreplayed.remove(collection.collectionName);
+        } finally {
+            lock.unlock();
+        }
+        if (operations == null) return;
+
+        Set<Path> touched = new HashSet<>();
+        for (EntityOperation operation : operations) {
+            if (operation.record() == null) {
+                collection.applyDelete(operation.id());
+            } else {
+                collection.applyPut(operation.id(), operation.record());
+            }
+            touched.add(collection.storagePath(operation.id()));
+        }
+        touched(touched);
+    }
+
+    /**
+     * appends a committed transaction and returns once it is durable
+     */
+    long append(List<Operation> operations) throws IOException {
+        long sequence;
+        lock.lock();
+        try {
+            sequence = ++nextSequence;
+            write(encode(sequence, COMMIT, operations));
+            inFlight++;
+        } finally {
+            lock.unlock();
+        }
+        try {
+            sync(sequence);
+        } catch (IOException e) {
+            aborted(sequence);
+            throw e;
+        }
+        return sequence;
+    }
+
+    /**
+     * called once the changes of an appended transaction reached the materialized files, except
+     * the failed ones, which are kept as unapplied
+     */
+    void applied(Collection<Path> touched, List<Operation> failed) {
+        lock.lock();
+        try {
+            unapplied.addAll(failed);
+            touchedSinceCheckpoint.addAll(touched);
+            inFlight--;
+            if (inFlight == 0 && position >= checkpointBytes) checkpoint();
+        } catch (IOException _) {
+            // the log keeps growing until the next checkpoint succeeds
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * changes of committed transactions that could not be applied yet, oldest first
+     */
+    List<Operation> unapplied() {
+        lock.lock();
+        try {
+            return unapplied.isEmpty() ? List.of() : List.copyOf(unapplied);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * called once an unapplied change was applied by a later transaction to the given file
+     */
+    void retried(Operation operation, Path touched) {
+        lock.lock();
+        try {
+            unapplied.removeIf(pending -> pending == operation);
+            touchedSinceCheckpoint.add(touched);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * files changed by replaying the log, forced by the next checkpoint before it drops the
+     * changes that were replayed into them
+     */
+    private void touched(Collection<Path> touched) {
+        lock.lock();
+        try {
+            touchedSinceCheckpoint.addAll(touched);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * called when an appended transaction could not be made durable, so that it is skipped on
+     * replay, its changes were not applied yet
+     */
+    private void aborted(long sequence) {
+        lock.lock();
+        try {
+            inFlight--;
+            write(encode(sequence, ABORT, List.of()));
+        } catch (IOException _) {
+            // nothing else can be done, replay will retry the transaction
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * fsyncs issued for commits so far, fewer than commits when concurrent commits shared them
+     */
+    long syncs() {
+        lock.lock();
+        try {
+            return syncs;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void write(ByteBuffer record) throws IOException {
+        if (channel == null || !channel.isOpen()) reopen();
+        while (record.hasRemaining()) {
+            position += channel.write(record, position);
+        }
+        writtenSequence = nextSequence;
+    }
+
+    private void sync(long sequence) throws IOException {
+        lock.lock();
+        try {
+            while (syncedSequence < sequence) {
+                if (syncing) {
+                    syncDone.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                long target = writtenSequence;
+                FileChannel syncChannel = channel;
+                syncs++;
+                lock.unlock();
+                try {
+                    syncChannel.force(false);
+                } finally {
+                    lock.lock();
+                    syncing = false;
+                    syncDone.signalAll();
+                }
+                syncedSequence = Math.max(syncedSequence, target);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Makes the files written since the last checkpoint durable and empties the log. Entity changes
+     * of collections that were not opened yet and unapplied changes are carried over into the new
+     * log.
+     */
+    private void checkpoint() throws IOException {
+        // the folders make files created or replaced by a move durable
+        Set<Path> folders = new HashSet<>();
+        for (Path touched : touchedSinceCheckpoint) {
+            try {
+                AtomicFiles.force(touched);
+            } catch (NoSuchFileException _) {
+            }
+            folders.add(touched.getParent());
+        }
+        for (Path folder : folders) {
+            try {
+                AtomicFiles.force(folder);
+            } catch (NoSuchFileException _) {
+            }
+        }
+        touchedSinceCheckpoint.clear();
+
+        channel.truncate(0);
+        position = 0;
+        List<Operation> carried = new ArrayList<>();
+        unreplayed.values().forEach(carried::addAll);
+        carried.addAll(unapplied);
+        if (!carried.isEmpty()) write(encode(++nextSequence, COMMIT, carried));
+        channel.force(false);
+        syncedSequence = writtenSequence;
+    }
+
+    private void reopen() throws IOException {
+        Files.createDirectories(path.getParent());
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        position = channel.size();
+    }
+
+    private void recover() throws IOException {
+        reopen();
+        Map<Long, List<Operation>> committed = new TreeMap<>();
+        long size = channel.size();
+        long offset = 0;
+        ByteBuffer lengthBuffer = ByteBuffer.allocate(Integer.BYTES);
+
+        while (offset + HEADER_SIZE <= size) {
+            lengthBuffer.clear();
+            channel.read(lengthBuffer, offset);
+            int length = lengthBuffer.getInt(0);
+            if (length < HEADER_SIZE || offset + length > size) break;
+
+            ByteBuffer record = ByteBuffer.allocate(length);
+            while (record.hasRemaining()) {
+                if (channel.read(record, offset + record.position()) < 0) break;
+            }
+            record.flip();
+            if (record.limit() != length || record.getInt(Integer.BYTES) != checksum(record)) break;
+
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(record.array(), HEADER_SIZE, length - HEADER_SIZE));
+            long sequence = in.readLong();
+            byte kind = in.readByte();
+            if (kind == COMMIT) {
+                committed.put(sequence, readOperations(in));
+            } else {
+                committed.remove(sequence);
+            }
+            nextSequence = Math.max(nextSequence, sequence);
+            offset += length;
+        }
+        if (offset < size) channel.truncate(offset);
+        position = offset;
+        writtenSequence = syncedSequence = nextSequence;
+
+        for (List<Operation> operations : committed.values()) {
+            for (Operation operation : operations) {
+                if (operation instanceof RelationOperation relation) {
+                    ReferenceCollectionManager manager = ReferenceCollectionManagerRegistry.getManager(relation.relationName());
+                    manager.applyDelta(relation.removed(), relation.added());
+                    touchedSinceCheckpoint.add(manager.getPath());
+                } else if (operation instanceof EntityOperation entity) {
+                    unreplayed.computeIfAbsent(entity.collectionName(), k -> new ArrayList<>()).add(entity);
+                }
+            }
+        }
+    }
+
+    private static List<Operation> readOperations(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<Operation> operations = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            byte type = in.readByte();
+            String name = in.readUTF();
+            if (type == RELATION) {
+                operations.add(new RelationOperation(name, readLines(in), readLines(in)));
+                continue;
+            }
+            UUID id = new UUID(in.readLong(), in.readLong());
+            byte[] record = null;
+            if (type == ENTITY_PUT) {
+                record = new byte[in.readInt()];
+                in.readFully(record);
+            }
+            operations.add(new EntityOperation(name, id, record));
+        }
+        return operations;
+    }
+
+    private static List<String> readLines(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        List<String> lines = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            lines.add(in.readUTF());
+        }
+        return lines;
+    }
+
+    private static ByteBuffer encode(long sequence, byte kind, List<Operation> operations) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeInt(0);
+        out.writeInt(0);
+        out.writeLong(sequence);
+        out.writeByte(kind);
+        out.writeInt(operations.size());
+        for (Operation operation : operations) {
+            switch (operation) {
+                case EntityOperation entity -> {
+                    out.writeByte(entity.record() == null ? ENTITY_DELETE : ENTITY_PUT);
+                    out.writeUTF(entity.collectionName());
+                    out.writeLong(entity.id().getMostSignificantBits());
+                    out.writeLong(entity.id().getLeastSignificantBits());
+                    if (entity.record() != null) {
+                        out.writeInt(entity.record().length);
+                        out.write(entity.record());
+                    }
+                }
+                case RelationOperation relation -> {
+                    out.writeByte(RELATION);
+                    out.writeUTF(relation.relationName());
+                    writeLines(out, relation.removed());
+                    writeLines(out, relation.added());
+                }
+            }
+        }
+
+        ByteBuffer record = ByteBuffer.wrap(bytes.toByteArray());
+        record.putInt(0, record.limit());
+        record.putInt(Integer.BYTES, checksum(record));
+        return record;
+    }
+
+    private static void writeLines(DataOutputStream out, List<String> lines) throws IOException {
+        out.writeInt(lines.size());
+        for (String line : lines) {
+            out.writeUTF(line);
+        }
+    }
+
+    private static int checksum(ByteBuffer record) {
+        CRC32 crc = new CRC32();
+        crc.update(record.duplicate().position(HEADER_SIZE));
+        return (int) crc.getValue();
+    }
+}
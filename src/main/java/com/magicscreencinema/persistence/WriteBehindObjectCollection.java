@@ -0,0 +1,613 @@
+package com.magicscreencinema.persistence;
+
+import com.magicscreencinema.persistence.exception.CouldNotPersistObjectException;
+import com.magicscreencinema.persistence.exception.CouldNotReadObjectException;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.stream.Stream;
+
+/**
+ * Collection in write-behind mode, enabled with collection.&lt;name&gt;.write.behind=true. A save
+ * encodes the object right away and only remembers its record as dirty, so changes made to the
+ * object after the save are not written. Encoding saves the relations of the object and their
+ * cascades at once, only its own record is written behind. Repeated saves of the same id replace
+ * each other, and the dirty records are written together every write.behind.flush.interval.ms, as
+ * soon as write.behind.max.dirty of them are waiting, and when the JVM shuts down. Flushes run on
+ * the I/O threads of the {@link StorageRoot} of the collection, so a slow disk does not delay the
+ * flushes of collections stored elsewhere.
+ * <p>
+ * Reads do not flush. They answer from the dirty records laid over the underlying collection: a
+ * dirty record replaces the stored object of its id and objects are decoded from it as copies, so
+ * scans, pages, lookups by index and queries see unflushed saves in the order they will have once
+ * written. saveAll, deletes, updates and saveIfVersion write through, so their results tell what
+ * was written. A save made while a transaction is running, as a cascade of another save, also
+ * writes through so it stays part of that transaction.
+ * <p>
+ * If the whole batch can not be written the objects stay dirty and are tried again with the next
+ * flush. An object rejected on its own, for example by a unique index, is tried again until it was
+ * rejected write.behind.max.attempts times, then it is dropped and no read sees it anymore. Each
+ * {@link #flush()} reports the rejected objects as failed, including the ones background flushes
+ * dropped since the last call.
+ */
+final class WriteBehindObjectCollection<T> implements ObjectCollection<T> {
+    private static final ScheduledExecutorService FLUSHER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "write-behind-flusher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private static final class Dirty {
+        private final UUID id;
+        private final byte[] record;
+        private final int rejections;
+
+        private Dirty(UUID id, byte[] record, int rejections) {
+            this.id = id;
+            this.record = record;
+            this.rejections = rejections;
+        }
+    }
+
+    private final AbstractObjectCollection<T> delegate;
+    private final EntityMetadata metadata;
+    private final StorageRoot root;
+    private final int maxDirty;
+    private final int maxAttempts;
+    private final Map<UUID, Dirty> dirty = new ConcurrentHashMap<>();
+    private final Deque<BatchResult> dropped = new ArrayDeque<>();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    WriteBehindObjectCollection(Class<T> objectClass, AbstractObjectCollection<T> delegate, String collectionName) {
+        this.delegate = delegate;
+        this.metadata = EntityMetadata.of(objectClass);
+        this.root = StorageRoot.of(collectionName);
+        this.maxDirty = PersistenceConfig.writeBehindMaxDirty(collectionName);
+        this.maxAttempts = PersistenceConfig.writeBehindMaxAttempts(collectionName);
+        long interval = PersistenceConfig.writeBehindFlushIntervalMillis(collectionName);
+        FLUSHER.scheduleWithFixedDelay(this::requestFlush, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    AbstractObjectCollection<T> delegate() {
+        return delegate;
+    }
+
+    /**
+     * writes every dirty record now, returns the result of each and of the records background
+     * flushes dropped since the last call
+     */
+    List<BatchResult> flush() {
+        flushLock.lock();
+        try {
+            List<BatchResult> results = new ArrayList<>(dropped);
+            results.addAll(writeDirty());
+            dropped.clear();
+            return results;
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private List<BatchResult> writeDirty() {
+        List<Dirty> batch = List.copyOf(dirty.values());
+        if (batch.isEmpty()) return List.of();
+
+        Map<UUID, byte[]> records = new LinkedHashMap<>();
+        batch.forEach(entry -> records.put(entry.id, entry.record));
+        List<BatchResult> results = delegate.saveAllRecords(records);
+        for (int i = 0; i < batch.size(); i++) {
+            Dirty entry = batch.get(i);
+            if (results.get(i).failed()) {
+                rejected(entry, results.get(i));
+            } else if (dirty.remove(entry.id, entry)) {
+                restoreOnRollback(entry);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Keeps a rejected record dirty for another try unless it was saved again meanwhile, or drops
+     * it once it was rejected maxAttempts times. Dropped results wait for the next flush() call,
+     * at most maxDirty of them.
+     */
+    private void rejected(Dirty entry, BatchResult result) {
+        if (entry.rejections + 1 >= maxAttempts) {
+            dirty.remove(entry.id, entry);
+            if (dropped.size() == maxDirty) dropped.removeFirst();
+            dropped.addLast(result);
+            return;
+        }
+        Dirty retry = new Dirty(entry.id, entry.record, entry.rejections + 1);
+        if (!dirty.replace(entry.id, entry, retry)) dirty.putIfAbsent(entry.id, retry);
+    }
+
+    /**
+     * flushes on an I/O thread of the root, unless a flush requested before has not started yet
+     */
+    private void requestFlush() {
+        if (!flushRequested.compareAndSet(false, true)) return;
+        try {
+            root.executor().execute(() -> {
+                flushRequested.set(false);
+                flushQuietly();
+            });
+        } catch (RejectedExecutionException _) {
+            flushRequested.set(false);
+        }
+    }
+
+    void flushQuietly() {
+        flushLock.lock();
+        try {
+            writeDirty();
+        } catch (RuntimeException _) {
+            // the objects stay dirty and are tried again by the next flush
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    @Override
+    public void save(T object) {
+        if (object == null || PersistenceTransaction.current() != null) {
+            writeThrough(object);
+            return;
+        }
+        UUID id = metadata.extractId(object);
+        dirty.put(id, new Dirty(id, snapshot(object, id), 0));
+        if (dirty.size() >= maxDirty) requestFlush();
+    }
+
+    /**
+     * Encodes the object as it is now, in a transaction of its own so its relations and cascades
+     * are saved together. A @Version field is incremented as a save increments it, the record is
+     * written later without incrementing it again.
+     */
+    private byte[] snapshot(T object, UUID id) {
+        long version = metadata.hasVersionField() ? metadata.version(object) : 0;
+        if (metadata.hasVersionField()) metadata.setVersion(object, version + 1);
+        try {
+            return PersistenceTransaction.execute(transaction -> delegate.codec.encode(object));
+        } catch (IOException e) {
+            if (metadata.hasVersionField()) metadata.setVersion(object, version);
+            throw new CouldNotPersistObjectException("Could not persist object of class " + metadata.type().getName() + " with id " + id, e);
+        } catch (RuntimeException e) {
+            if (metadata.hasVersionField()) metadata.setVersion(object, version);
+            throw e;
+        } finally {
+            PersistenceContext.removeFromContext(metadata.type(), id);
+        }
+    }
+
+    /**
+     * writes a dirty record that was taken out of the dirty ones
+     */
+    private void write(Dirty entry) {
+        delegate.saveAllRecords(Map.of(entry.id, entry.record)).getFirst().throwIfFailed();
+    }
+
+    /**
+     * written through as one batch, the dirty copies of the objects are superseded
+     */
+    @Override
+    public List<BatchResult> saveAll(Collection<? extends T> objects) {
+        flushLock.lock();
+        try {
+            for (T object : objects) {
+                if (object != null) restoreOnRollback(dirty.remove(metadata.extractId(object)));
+            }
+            return delegate.saveAll(objects);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * Saves the object right away, as part of the running transaction if there is one. Its dirty
+     * copy is superseded, it is put back if the transaction rolls back.
+     */
+    private void writeThrough(T object) {
+        if (object == null) {
+            delegate.save(null);
+            return;
+        }
+        UUID id = metadata.extractId(object);
+        flushLock.lock();
+        try {
+            restoreOnRollback(dirty.remove(id));
+            delegate.save(object);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * a dirty object written or discarded inside a transaction is dirty again if it rolls back
+     */
+    private void restoreOnRollback(Dirty entry) {
+        PersistenceTransaction transaction = PersistenceTransaction.current();
+        if (entry != null && transaction != null) transaction.onRollback(() -> dirty.putIfAbsent(entry.id, entry));
+    }
+
+    @Override
+    public BatchResult saveIfVersion(T object) {
+        UUID id = metadata.extractId(object);
+        flushLock.lock();
+        try {
+            Dirty previous = dirty.remove(id);
+            restoreOnRollback(previous);
+            if (previous != null) write(previous);
+            return delegate.saveIfVersion(object);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    @Override
+    public boolean deleteById(UUID id) throws IOException {
+        flushLock.lock();
+        try {
+            Dirty previous = dirty.remove(id);
+            restoreOnRollback(previous);
+            return delegate.deleteById(id) || previous != null;
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    @Override
+    public List<BatchResult> deleteAllById(Collection<UUID> ids) {
+        flushLock.lock();
+        try {
+            Set<UUID> wereDirty = new HashSet<>();
+            for (UUID id : ids) {
+                Dirty previous = dirty.remove(id);
+                restoreOnRollback(previous);
+                if (previous != null) wereDirty.add(id);
+            }
+            List<BatchResult> results = new ArrayList<>(delegate.deleteAllById(ids));
+            results.replaceAll(result -> !result.applied() && !result.failed() && wereDirty.contains(result.id())
+                    ? BatchResult.applied(result.id())
+                    : result);
+            return results;
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * writes the dirty record of the object first, so the update applies on top of it
+     */
+    @Override
+    public boolean update(UUID id, Map<String, Object> values) {
+        flushLock.lock();
+        try {
+            Dirty previous = dirty.remove(id);
+            restoreOnRollback(previous);
+            if (previous != null) write(previous);
+            return delegate.update(id, values);
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    /**
+     * writes the dirty records of the objects first, so the update applies on top of them. An
+     * object whose dirty record is rejected is not updated, it is reported as failed and treated
+     * as a flush treats it.
+     */
+    @Override
+    public List<BatchResult> updateAll(Collection<UUID> ids, Map<String, Object> values) {
+        flushLock.lock();
+        try {
+            Map<UUID, Dirty> previous = new LinkedHashMap<>();
+            for (UUID id : ids) {
+                Dirty entry = dirty.remove(id);
+                restoreOnRollback(entry);
+                if (entry != null) previous.put(id, entry);
+            }
+            Map<UUID, byte[]> records = new LinkedHashMap<>();
+            previous.forEach((id, entry) -> records.put(id, entry.record));
+            Map<UUID, BatchResult> failed = new HashMap<>();
+            for (BatchResult result : delegate.saveAllRecords(records)) {
+                if (!result.failed()) continue;
+                rejected(previous.get(result.id()), result);
+                failed.put(result.id(), result);
+            }
+
+            List<UUID> written = ids.stream().filter(id -> !failed.containsKey(id)).toList();
+            Iterator<BatchResult> updated = delegate.updateAll(written, values).iterator();
+            List<BatchResult> results = new ArrayList<>(ids.size());
+            for (UUID id : ids) {
+                results.add(failed.containsKey(id) ? failed.get(id) : updated.next());
+            }
+            return results;
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    @Override
+    public Optional<T> findById(UUID id) {
+        Dirty entry = dirty.get(id);
+        if (entry == null) return delegate.findById(id);
+        try {
+            return Optional.of(decode(entry));
+        } finally {
+            PersistenceContext.removeFromContext(metadata.type(), id);
+        }
+    }
+
+    @Override
+    public boolean existsById(UUID id) {
+        return dirty.containsKey(id) || delegate.existsById(id);
+    }
+
+    @Override
+    public List<T> findAll(boolean flushContext) {
+        Map<UUID, Dirty> pending = Map.copyOf(dirty);
+        if (pending.isEmpty()) return delegate.findAll(flushContext);
+        return overlay(delegate.findAll(flushContext), pending.values(), Integer.MAX_VALUE, flushContext);
+    }
+
+    @Override
+    public List<T> findAll() {
+        return findAll(true);
+    }
+
+    /**
+     * streams the ids of the stored and the dirty objects in id order and reads each one when it
+     * is reached
+     */
+    @Override
+    public Stream<T> stream() {
+        Map<UUID, Dirty> pending = Map.copyOf(dirty);
+        if (pending.isEmpty()) return delegate.stream();
+        return ids(pending).stream().map(id -> read(id, pending)).flatMap(Optional::stream);
+    }
+
+    @Override
+    public Stream<T> parallelStream() {
+        Map<UUID, Dirty> pending = Map.copyOf(dirty);
+        if (pending.isEmpty()) return delegate.parallelStream();
+        return ids(pending).parallelStream().map(id -> read(id, pending)).flatMap(Optional::stream);
+    }
+
+    @Override
+    public Iterator<T> iterator() {
+        return stream().iterator();
+    }
+
+    @Override
+    public long count() {
+        return delegate.count() + dirty.keySet().stream().filter(id -> !delegate.existsById(id)).count();
+    }
+
+    @Override
+    public List<UUID> findAllIds() {
+        return ids(Map.copyOf(dirty));
+    }
+
+    @Override
+    public List<T> findPage(UUID afterId, int limit) {
+        return findPage(afterId, limit, Map.copyOf(dirty));
+    }
+
+    private List<T> findPage(UUID afterId, int limit, Map<UUID, Dirty> pending) {
+        List<T> stored = delegate.findPage(afterId, limit);
+        if (pending.isEmpty()) return stored;
+        List<Dirty> after = pending.values().stream()
+                .filter(entry -> afterId == null || PrimaryIndex.ID_ORDER.compare(entry.id, afterId) > 0)
+                .toList();
+        return overlay(stored, after, limit, true);
+    }
+
+    @Override
+    public Page<T> findPageByCursor(String cursor, int limit) {
+        Map<UUID, Dirty> pending = Map.copyOf(dirty);
+        if (pending.isEmpty()) return delegate.findPageByCursor(cursor, limit);
+
+        UUID afterId = cursor == null ? null : delegate.decodeCursor(cursor);
+        List<T> items = findPage(afterId, limit, pending);
+        if (items.isEmpty()) return new Page<>(items, null);
+
+        UUID lastId = metadata.extractId(items.getLast());
+        boolean hasNext = delegate.hasIdAfter(lastId)
+                || pending.keySet().stream().anyMatch(id -> PrimaryIndex.ID_ORDER.compare(id, lastId) > 0);
+        return new Page<>(items, hasNext ? delegate.encodeCursor(lastId) : null);
+    }
+
+    @Override
+    public Map<UUID, T> findAllById(Collection<UUID> ids) {
+        Map<UUID, Dirty> pending = Map.copyOf(dirty);
+        Map<UUID, T> stored = delegate.findAllById(ids.stream().filter(id -> !pending.containsKey(id)).toList());
+        if (pending.isEmpty()) return stored;
+
+        Map<UUID, T> results = new LinkedHashMap<>();
+        for (UUID id : ids) {
+            Dirty entry = pending.get(id);
+            T object = entry == null ? stored.get(id) : decode(entry);
+            if (object != null) results.put(id, object);
+            if (entry != null) PersistenceContext.removeFromContext(metadata.type(), id);
+        }
+        return results;
+    }
+
+    /**
+     * dirty records match by the key the index would store for them
+     */
+    @Override
+    public List<T> findBy(String fieldName, Object value) {
+        List<T> stored = delegate.findBy(fieldName, value);
+        Map<UUID, Dirty> pending = Map.copyOf(dirty);
+        if (pending.isEmpty()) return stored;
+
+        String key = delegate.secondaryIndexes.get(fieldName).lookupKey(value);
+        List<Dirty> matches = new ArrayList<>();
+        for (Dirty entry : pending.values()) {
+            if (Objects.equals(SecondaryIndex.key(readField(entry, fieldName)), key)) matches.add(entry);
+        }
+        List<T> results = new ArrayList<>(stored.stream().filter(object -> !pending.containsKey(metadata.extractId(object))).toList());
+        return overlay(results, matches, Integer.MAX_VALUE, true);
+    }
+
+    /**
+     * With dirty records waiting, the range is collected and sorted by key before it is
+     * streamed, otherwise it streams from the index as in the underlying collection.
+     */
+    @Override
+    public Stream<T> findRange(String fieldName, Object from, Object to) {
+        Stream<T> stored = delegate.findRange(fieldName, from, to);
+        Map<UUID, Dirty> pending = Map.copyOf(dirty);
+        if (pending.isEmpty()) return stored;
+
+        RangeIndex index = delegate.secondaryIndexes.range(fieldName);
+        List<T> results = new ArrayList<>(stored.filter(object -> !pending.containsKey(metadata.extractId(object))).toList());
+        for (Dirty entry : pending.values()) {
+            if (!index.inRange(readField(entry, fieldName), from, to)) continue;
+            results.add(decode(entry));
+            PersistenceContext.removeFromContext(metadata.type(), entry.id);
+        }
+        EntityMetadata.FieldMetadata field = metadata.field(fieldName);
+        results.sort(Comparator.comparing((T object) -> field.get(object), index.valueOrder())
+                .thenComparing(metadata::extractId, PrimaryIndex.ID_ORDER));
+        return results.stream();
+    }
+
+    /**
+     * the dirty records are decoded each time the query runs, so it sees saves made after it was
+     * created
+     */
+    @Override
+    public Query<T> query() {
+        return new Query<>(delegate, this::unwritten);
+    }
+
+    @Override
+    public Optional<Map<String, Object>> findById(UUID id, Projection projection) {
+        Dirty entry = dirty.get(id);
+        if (entry == null) return delegate.findById(id, projection);
+        try {
+            return Optional.of(projection.view(delegate.readFields(entry.record, projection.resolve(metadata.type()))));
+        } catch (IOException e) {
+            throw new CouldNotReadObjectException("Could not read object of class " + metadata.type().getName() + " with id " + id, e);
+        }
+    }
+
+    /**
+     * with dirty records waiting, the records are read one id at a time instead of in one pass
+     */
+    @Override
+    public List<Map<String, Object>> findAll(Projection projection) {
+        Map<UUID, Dirty> pending = Map.copyOf(dirty);
+        if (pending.isEmpty()) return delegate.findAll(projection);
+
+        Set<String> fieldNames = projection.resolve(metadata.type());
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (UUID id : ids(pending)) {
+            Dirty entry = pending.get(id);
+            if (entry == null) {
+                delegate.findById(id, projection).ifPresent(results::add);
+                continue;
+            }
+            try {
+                results.add(projection.view(delegate.readFields(entry.record, fieldNames)));
+            } catch (IOException e) {
+                throw new CouldNotReadObjectException("Could not read object of class " + metadata.type().getName() + " with id " + id, e);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * the stored and the dirty ids in id order
+     */
+    private List<UUID> ids(Map<UUID, Dirty> pending) {
+        if (pending.isEmpty()) return delegate.findAllIds();
+        NavigableSet<UUID> ids = new TreeSet<>(PrimaryIndex.ID_ORDER);
+        ids.addAll(delegate.findAllIds());
+        ids.addAll(pending.keySet());
+        return List.copyOf(ids);
+    }
+
+    private Optional<T> read(UUID id, Map<UUID, Dirty> pending) {
+        Dirty entry = pending.get(id);
+        if (entry == null) return delegate.findById(id);
+        try {
+            return Optional.of(decode(entry));
+        } finally {
+            PersistenceContext.removeFromContext(metadata.type(), id);
+        }
+    }
+
+    /**
+     * The stored objects in id order with the dirty records laid over them: a dirty record
+     * replaces the stored object of its id and adds one not stored yet. Only the first limit are
+     * kept and only the dirty records among them are decoded.
+     */
+    @SuppressWarnings("unchecked")
+    private List<T> overlay(List<T> stored, Collection<Dirty> entries, int limit, boolean flushContext) {
+        NavigableMap<UUID, Object> merged = new TreeMap<>(PrimaryIndex.ID_ORDER);
+        for (T object : stored) {
+            merged.put(metadata.extractId(object), object);
+        }
+        for (Dirty entry : entries) {
+            merged.put(entry.id, entry);
+        }
+
+        List<T> results = new ArrayList<>(Math.min(merged.size(), limit));
+        for (Object value : merged.values()) {
+            if (results.size() == limit) break;
+            if (value instanceof Dirty entry) {
+                results.add(decode(entry));
+                if (flushContext) PersistenceContext.flush();
+            } else {
+                results.add((T) value);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * every dirty object decoded, by id
+     */
+    private Map<UUID, T> unwritten() {
+        Map<UUID, T> objects = new LinkedHashMap<>();
+        for (Dirty entry : List.copyOf(dirty.values())) {
+            objects.put(entry.id, decode(entry));
+            PersistenceContext.removeFromContext(metadata.type(), entry.id);
+        }
+        return objects;
+    }
+
+    private T decode(Dirty entry) {
+        try {
+            return delegate.decode(new ByteArrayInputStream(entry.record));
+        } catch (IOException e) {
+            throw new CouldNotReadObjectException("Could not read object of class " + metadata.type().getName() + " with id " + entry.id, e);
+        }
+    }
+
+    private Object readField(Dirty entry, String fieldName) {
+        try {
+            return delegate.readFields(entry.record, Set.of(fieldName)).get(fieldName);
+        } catch (IOException e) {
+            throw new CouldNotReadObjectException("Could not read object of class " + metadata.type().getName() + " with id " + entry.id, e);
+        }
+    }
+
+    @Override
+    public CacheStats cacheStats() {
+        return delegate.cacheStats();
+    }
+}
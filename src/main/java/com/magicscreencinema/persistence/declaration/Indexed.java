@@ -0,0 +1,12 @@
+package com.magicscreencinema.persistence.declaration;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Indexed {
+    boolean unique() default false;
+}
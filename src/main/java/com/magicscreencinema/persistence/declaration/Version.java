@@ -0,0 +1,18 @@
+package com.magicscreencinema.persistence.declaration;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * Version of an entity, a long or int field. Every save increments it, saveIfVersion first checks
+ * that the stored record still has the version the entity was read with, so concurrent edits of
+ * the same entity are detected instead of overwriting each other. Records written before the
+ * field existed read as version 0.
+ */
+@Target(ElementType.FIELD)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface Version {
+
+}
@@ -0,0 +1,7 @@
+package com.magicscreencinema.persistence.exception;
+
+public class IndexDeclarationException extends RuntimeException {
+    public IndexDeclarationException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,7 @@
+package com.magicscreencinema.persistence.exception;
+
+public class InvalidUpdateException extends RuntimeException {
+    public InvalidUpdateException(String message) {
+        super(message);
+    }
+}
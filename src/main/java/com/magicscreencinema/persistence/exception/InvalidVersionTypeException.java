@@ -0,0 +1,7 @@
+package com.magicscreencinema.persistence.exception;
+
+public class InvalidVersionTypeException extends RuntimeException {
+    public InvalidVersionTypeException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,7 @@
+package com.magicscreencinema.persistence.exception;
+
+public class MissingIndexException extends RuntimeException {
+    public MissingIndexException(String message) {
+        super(message);
+    }
+}
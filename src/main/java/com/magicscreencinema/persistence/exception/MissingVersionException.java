@@ -0,0 +1,7 @@
+package com.magicscreencinema.persistence.exception;
+
+public class MissingVersionException extends RuntimeException {
+    public MissingVersionException(String message) {
+        super(message);
+    }
+}
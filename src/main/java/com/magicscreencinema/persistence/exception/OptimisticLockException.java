@@ -0,0 +1,7 @@
+package com.magicscreencinema.persistence.exception;
+
+public class OptimisticLockException extends RuntimeException {
+    public OptimisticLockException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,7 @@
+package com.magicscreencinema.persistence.exception;
+
+public class UniqueConstraintViolationException extends RuntimeException {
+    public UniqueConstraintViolationException(String message) {
+        super(message);
+    }
+}
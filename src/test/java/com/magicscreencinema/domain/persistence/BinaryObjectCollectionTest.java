@@ -0,0 +1,111 @@
+package com.magicscreencinema.domain.persistence;
+
+import com.magicscreencinema.domain.persistence.testmodel.BinaryPerson;
+import com.magicscreencinema.persistence.ObjectCollection;
+import com.magicscreencinema.persistence.ObjectCollectionRegistry;
+import com.magicscreencinema.persistence.Projection;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class BinaryObjectCollectionTest {
+    @Test
+    public void save_WithBinaryFormat_ShouldReadBackEveryField() {
+        UUID uuid = UUID.randomUUID();
+        LocalDateTime registeredAt = LocalDateTime.of(2024, 3, 1, 18, 30, 15, 123_000_000);
+        BinaryPerson person = new BinaryPerson(uuid, "Test", 20, 1.85,
+                List.of(DayOfWeek.MONDAY, DayOfWeek.FRIDAY), LocalDate.of(2004, 5, 17), registeredAt);
+
+        ObjectCollection<BinaryPerson> collection = ObjectCollectionRegistry.getCollection(BinaryPerson.class);
+        collection.save(person);
+
+        BinaryPerson loaded = collection.findById(uuid).orElseThrow();
+        assertEquals(uuid, loaded.getId());
+        assertEquals("Test", loaded.getName());
+        assertEquals(20, loaded.getAge());
+        assertEquals(1.85, loaded.getHeight());
+        assertEquals(List.of(DayOfWeek.MONDAY, DayOfWeek.FRIDAY), loaded.getDays());
+        assertEquals(LocalDate.of(2004, 5, 17), loaded.getBirthDate());
+        assertEquals(registeredAt, loaded.getRegisteredAt());
+    }
+
+    @Test
+    public void update_WithBinaryFormat_ShouldChangeOnlyGivenFields() {
+        UUID uuid = UUID.randomUUID();
+        BinaryPerson person = new BinaryPerson(uuid, "Test", 20, 1.85,
+                List.of(DayOfWeek.MONDAY), LocalDate.of(2004, 5, 17), LocalDateTime.of(2024, 3, 1, 18, 30));
+
+        ObjectCollection<BinaryPerson> collection = ObjectCollectionRegistry.getCollection(BinaryPerson.class);
+        collection.save(person);
+
+        assertTrue(collection.update(uuid, Map.of("name", "Updated", "days", List.of(DayOfWeek.SUNDAY))));
+
+        BinaryPerson loaded = collection.findById(uuid).orElseThrow();
+        assertEquals("Updated", loaded.getName());
+        assertEquals(List.of(DayOfWeek.SUNDAY), loaded.getDays());
+        assertEquals(20, loaded.getAge());
+        assertEquals(1.85, loaded.getHeight());
+        assertEquals(LocalDate.of(2004, 5, 17), loaded.getBirthDate());
+    }
+
+    @Test
+    public void save_WithBinaryFormat_ShouldWriteSmallerRecordThanJson() throws IOException {
+        UUID uuid = UUID.randomUUID();
+        BinaryPerson person = new BinaryPerson(uuid, "Test", 20, 1.85,
+                List.of(DayOfWeek.MONDAY), LocalDate.of(2004, 5, 17), LocalDateTime.of(2024, 3, 1, 18, 30));
+
+        ObjectCollection<BinaryPerson> collection = ObjectCollectionRegistry.getCollection(BinaryPerson.class);
+        collection.save(person);
+
+        byte[] record = Files.readAllBytes(Path.of("db-test/person-binary", uuid + ".json"));
+        assertTrue(record[0] != '{');
+        assertTrue(record.length < 120);
+    }
+
+    @Test
+    public void findById_WhenRecordIsJson_ShouldStillReadIt() throws IOException {
+        UUID uuid = UUID.randomUUID();
+        Files.createDirectories(Path.of("db-test/person-binary"));
+        Files.writeString(Path.of("db-test/person-binary", uuid + ".json"), """
+                {
+                  "id": "%s",
+                  "name": "Legacy",
+                  "age": 30,
+                  "days": ["SUNDAY"],
+                  "birthDate": "1994-01-02"
+                }""".formatted(uuid));
+
+        ObjectCollection<BinaryPerson> collection = ObjectCollectionRegistry.getCollection(BinaryPerson.class);
+
+        BinaryPerson loaded = collection.findById(uuid).orElseThrow();
+        assertEquals("Legacy", loaded.getName());
+        assertEquals(30, loaded.getAge());
+        assertEquals(List.of(DayOfWeek.SUNDAY), loaded.getDays());
+        assertEquals(LocalDate.of(1994, 1, 2), loaded.getBirthDate());
+    }
+
+    @Test
+    public void findById_WithProjection_ShouldSkipOtherFields() {
+        UUID uuid = UUID.randomUUID();
+        BinaryPerson person = new BinaryPerson(uuid, "Test", 20, 1.85,
+                List.of(DayOfWeek.TUESDAY), LocalDate.of(2004, 5, 17), LocalDateTime.of(2024, 3, 1, 18, 30));
+
+        ObjectCollection<BinaryPerson> collection = ObjectCollectionRegistry.getCollection(BinaryPerson.class);
+        collection.save(person);
+
+        Map<String, Object> projected = collection.findById(uuid, Projection.of("registeredAt", "age")).orElseThrow();
+        assertEquals(List.of("registeredAt", "age"), List.copyOf(projected.keySet()));
+        assertEquals(LocalDateTime.of(2024, 3, 1, 18, 30), projected.get("registeredAt"));
+        assertEquals(20, projected.get("age"));
+    }
+}
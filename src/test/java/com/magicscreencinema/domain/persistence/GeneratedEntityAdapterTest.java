@@ -0,0 +1,230 @@
+package com.magicscreencinema.domain.persistence;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.magicscreencinema.domain.enums.HallTypeEnum;
+import com.magicscreencinema.domain.enums.ReservationStatusEnum;
+import com.magicscreencinema.domain.model.Hall;
+import com.magicscreencinema.domain.model.Reservation;
+import com.magicscreencinema.domain.model.Seat;
+import com.magicscreencinema.persistence.GeneratedEntityAdapter;
+import com.magicscreencinema.persistence.ObjectCollection;
+import com.magicscreencinema.persistence.ObjectCollectionRegistry;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.processing.Processor;
+import javax.tools.DiagnosticCollector;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.*;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Runs the annotation processor of persistence-processor on Hall, Seat and Reservation and
+ * compiles the adapters it generates. A JVM with the adapters on its class path and one without
+ * them then write and read the same database. The processor is compiled from its sources, so this
+ * runs without the generated-adapters profile, the JVM without the adapters uses reflection only
+ * then.
+ */
+public class GeneratedEntityAdapterTest {
+    private static final List<Class<?>> ENTITIES = List.of(Hall.class, Seat.class, Reservation.class);
+    private static final String SUFFIX = "_PersistenceAdapter";
+    private static Path adapterClasses;
+
+    private final SeparateDatabase database;
+
+    public GeneratedEntityAdapterTest() throws IOException {
+        database = new SeparateDatabase(Map.of());
+    }
+
+    @Test
+    public void processor_ShouldGenerateAdapterForEveryEntity() throws Exception {
+        try (URLClassLoader loader = new URLClassLoader(new URL[]{generateAdapters().toUri().toURL()}, getClass().getClassLoader())) {
+            for (Class<?> entity : ENTITIES) {
+                assertTrue(GeneratedEntityAdapter.class.isAssignableFrom(loader.loadClass(entity.getName() + SUFFIX)));
+            }
+        }
+    }
+
+    /**
+     * reading the records back and saving them again through reflection leaves them as they were,
+     * apart from the version of the hall, which every save increments
+     */
+    @Test
+    public void write_WithGeneratedAdapters_ShouldWriteSameRecordsAsReflection() throws Exception {
+        List<String> written = database.run(List.of(generateAdapters()), GeneratedEntityAdapterTest.class, "write");
+        Map<Path, String> records = records();
+
+        database.run(GeneratedEntityAdapterTest.class, "resave", written.get(1), written.get(2));
+
+        assertEquals("generated", written.getFirst());
+        assertEquals(records, records());
+    }
+
+    @Test
+    public void read_WithRecordsAndRelationsWrittenByGeneratedAdapters_ShouldMatchReflection() throws Exception {
+        List<String> written = database.run(List.of(generateAdapters()), GeneratedEntityAdapterTest.class, "write");
+        List<String> read = database.run(GeneratedEntityAdapterTest.class, "read", written.get(1), written.get(2));
+
+        assertEquals("generated", written.getFirst());
+        assertEquals(written.subList(3, written.size()), read.subList(1, read.size()));
+    }
+
+    @Test
+    public void read_WithRecordsAndRelationsWrittenByReflection_ShouldMatchGeneratedAdapters() throws Exception {
+        List<String> written = database.run(GeneratedEntityAdapterTest.class, "write");
+        List<String> read = database.run(List.of(generateAdapters()), GeneratedEntityAdapterTest.class, "read", written.get(1), written.get(2));
+
+        assertEquals("generated", read.getFirst());
+        assertEquals(written.subList(3, written.size()), read.subList(1, read.size()));
+    }
+
+    /**
+     * Prints whether the adapters are on the class path, then runs the step given as arguments:
+     * write saves a hall with its seats and a reservation and prints their ids, read prints them
+     * as loaded and resave loads and saves them again. Write and read print the same description,
+     * the seats of the hall are described through the reservation, which fetches them eagerly.
+     */
+    public static void main(String[] args) throws Exception {
+        ObjectCollection<Hall> halls = ObjectCollectionRegistry.getCollection(Hall.class);
+        ObjectCollection<Reservation> reservations = ObjectCollectionRegistry.getCollection(Reservation.class);
+        System.out.println(adaptersOnClassPath() ? "generated" : "reflective");
+
+        switch (args[0]) {
+            case "write" -> {
+                Hall hall = new Hall(new Random().nextInt(1, 1000), HallTypeEnum.THREE_D, 4, 12, new ArrayList<>());
+                hall.setSeats(List.of(new Seat(1, 1, hall), new Seat(2, 1, hall), new Seat(1, 2, hall)));
+                Reservation reservation = new Reservation(LocalDateTime.now().plusDays(1), ReservationStatusEnum.PENDING, null, hall.getSeats());
+                halls.save(hall);
+                reservations.save(reservation);
+                System.out.println(hall.getId());
+                System.out.println(reservation.getReservationNumber());
+                describe(hall, reservation);
+            }
+            case "read" -> describe(halls.findById(UUID.fromString(args[1])).orElseThrow(),
+                    reservations.findById(UUID.fromString(args[2])).orElseThrow());
+            case "resave" -> {
+                Hall hall = halls.findById(UUID.fromString(args[1])).orElseThrow();
+                Reservation reservation = reservations.findById(UUID.fromString(args[2])).orElseThrow();
+                // the seats of a hall are fetched lazily, the reservation holds all of them
+                hall.setSeats(reservation.getSeats());
+                halls.save(hall);
+                reservations.save(reservation);
+            }
+            default -> throw new IllegalArgumentException("Unknown step " + args[0]);
+        }
+        System.out.flush();
+        Runtime.getRuntime().halt(0);
+    }
+
+    private static boolean adaptersOnClassPath() {
+        try {
+            Class.forName(Hall.class.getName() + SUFFIX);
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    private static void describe(Hall hall, Reservation reservation) {
+        System.out.println(hall.getHallNumber() + " " + hall.getHallType() + " " + hall.getMaxRow() + " " + hall.getRowWidth());
+        for (Seat seat : reservation.getSeats().stream().sorted(Comparator.comparing(Seat::getId)).toList()) {
+            System.out.println(seat.getId() + " " + seat.getSeatNumber() + " " + seat.getRow() + " " + seat.getHall().getId());
+        }
+        System.out.println(reservation.getReservationTime() + " " + reservation.getStatus() + " " + ids(reservation.getSeats()));
+    }
+
+    private static String ids(List<Seat> seats) {
+        return seats.stream().map(Seat::getId).sorted().map(UUID::toString).collect(Collectors.joining(","));
+    }
+
+    /**
+     * the records and relation files of the database by their path, records without their
+     * version, the indexes depend on when they were flushed
+     */
+    private Map<Path, String> records() throws IOException {
+        Map<Path, String> records = new HashMap<>();
+        try (Stream<Path> paths = Files.walk(database.path())) {
+            for (Path path : paths.filter(Files::isRegularFile).filter(path -> !path.toString().endsWith(".idx")).toList()) {
+                String content = Files.readString(path);
+                if (path.toString().endsWith(".json")) {
+                    JsonObject record = JsonParser.parseString(content).getAsJsonObject();
+                    record.remove("version");
+                    content = record.toString();
+                }
+                records.put(database.path().relativize(path), content);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * compiles the processor, generates the adapters of the entities from their class files and
+     * compiles them into a folder, once for all tests
+     */
+    private static synchronized Path generateAdapters() throws Exception {
+        if (adapterClasses != null) return adapterClasses;
+
+        Path work = Files.createTempDirectory("persistence-processor");
+        Path processorClasses = Files.createDirectories(work.resolve("processor"));
+        Path sources = Files.createDirectories(work.resolve("generated-sources"));
+        Path classes = Files.createDirectories(work.resolve("classes"));
+        String classPath = System.getProperty("java.class.path");
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+
+        try (StandardJavaFileManager files = compiler.getStandardFileManager(null, null, null)) {
+            List<Path> processorSources;
+            try (Stream<Path> walk = Files.walk(Path.of(System.getProperty("basedir", "."), "persistence-processor", "src", "main", "java"))) {
+                processorSources = walk.filter(path -> path.toString().endsWith(".java")).toList();
+            }
+            compile(compiler, files, List.of("-d", processorClasses.toString()), List.of(), processorSources, null);
+
+            URLClassLoader processorLoader = new URLClassLoader(new URL[]{processorClasses.toUri().toURL()}, GeneratedEntityAdapterTest.class.getClassLoader());
+            Processor processor = (Processor) processorLoader.loadClass("com.magicscreencinema.processor.PersistenceAdapterProcessor")
+                    .getConstructor().newInstance();
+            List<String> options = new ArrayList<>(previewOptions());
+            options.addAll(List.of("-proc:only", "-classpath", classPath, "-s", sources.toString()));
+            compile(compiler, files, options, ENTITIES.stream().map(Class::getName).toList(), List.of(), processor);
+
+            List<Path> generated;
+            try (Stream<Path> walk = Files.walk(sources)) {
+                generated = walk.filter(path -> path.toString().endsWith(".java")).toList();
+            }
+            options = new ArrayList<>(previewOptions());
+            options.addAll(List.of("-proc:none", "-classpath", classPath, "-d", classes.toString()));
+            compile(compiler, files, options, List.of(), generated, null);
+        }
+
+        adapterClasses = classes;
+        return classes;
+    }
+
+    private static void compile(JavaCompiler compiler, StandardJavaFileManager files, List<String> options,
+                                List<String> classNames, List<Path> sources, Processor processor) throws IOException {
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        JavaCompiler.CompilationTask task = compiler.getTask(null, files, diagnostics, options,
+                classNames.isEmpty() ? null : classNames, files.getJavaFileObjectsFromPaths(sources));
+        if (processor != null) task.setProcessors(List.of(processor));
+        assertTrue(task.call(), diagnostics.getDiagnostics().toString());
+    }
+
+    /**
+     * classes compiled with preview features enabled are only read with them enabled
+     */
+    private static List<String> previewOptions() {
+        if (!ManagementFactory.getRuntimeMXBean().getInputArguments().contains("--enable-preview")) return List.of();
+        return List.of("--enable-preview", "--release", String.valueOf(Runtime.version().feature()));
+    }
+}
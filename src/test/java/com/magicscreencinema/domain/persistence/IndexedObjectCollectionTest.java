@@ -0,0 +1,191 @@
+package com.magicscreencinema.domain.persistence;
+
+import com.magicscreencinema.domain.enums.AgeRestrictionEnum;
+import com.magicscreencinema.domain.model.Customer;
+import com.magicscreencinema.domain.model.Movie;
+import com.magicscreencinema.domain.persistence.testmodel.IndexedPerson;
+import com.magicscreencinema.persistence.BatchResult;
+import com.magicscreencinema.persistence.ObjectCollection;
+import com.magicscreencinema.persistence.ObjectCollectionRegistry;
+import com.magicscreencinema.persistence.exception.MissingIndexException;
+import com.magicscreencinema.persistence.exception.UniqueConstraintViolationException;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
+
+import static com.magicscreencinema.persistence.Condition.*;
+import static org.junit.jupiter.api.Assertions.*;
+
+public class IndexedObjectCollectionTest {
+    @Test
+    public void findBy_WithIndexedField_ShouldReturnMatchingObjects() {
+        String name = "Name-" + UUID.randomUUID();
+        IndexedPerson first = new IndexedPerson(UUID.randomUUID(), name, UUID.randomUUID() + "@mail.com");
+        IndexedPerson second = new IndexedPerson(UUID.randomUUID(), name, UUID.randomUUID() + "@mail.com");
+        IndexedPerson other = new IndexedPerson(UUID.randomUUID(), "Other", UUID.randomUUID() + "@mail.com");
+
+        ObjectCollection<IndexedPerson> collection = ObjectCollectionRegistry.getCollection(IndexedPerson.class);
+        collection.saveAll(List.of(first, second, other));
+
+        List<UUID> found = collection.findBy("name", name).stream().map(IndexedPerson::getId).toList();
+        assertEquals(2, found.size());
+        assertTrue(found.containsAll(List.of(first.getId(), second.getId())));
+        assertEquals(other.getId(), collection.findBy("email", other.getEmail()).getFirst().getId());
+    }
+
+    @Test
+    public void save_WithDuplicateUniqueValue_ShouldThrowAndKeepExistingObject() {
+        String email = UUID.randomUUID() + "@mail.com";
+        IndexedPerson existing = new IndexedPerson(UUID.randomUUID(), "Existing", email);
+        IndexedPerson duplicate = new IndexedPerson(UUID.randomUUID(), "Duplicate", email);
+
+        ObjectCollection<IndexedPerson> collection = ObjectCollectionRegistry.getCollection(IndexedPerson.class);
+        collection.save(existing);
+
+        assertThrows(UniqueConstraintViolationException.class, () -> collection.save(duplicate));
+        assertFalse(collection.existsById(duplicate.getId()));
+        assertEquals(List.of(existing.getId()), collection.findBy("email", email).stream().map(IndexedPerson::getId).toList());
+    }
+
+    @Test
+    public void save_WhenUniqueValueWasReleased_ShouldAllowIt() {
+        String email = UUID.randomUUID() + "@mail.com";
+        IndexedPerson person = new IndexedPerson(UUID.randomUUID(), "Person", email);
+
+        ObjectCollection<IndexedPerson> collection = ObjectCollectionRegistry.getCollection(IndexedPerson.class);
+        collection.save(person);
+        collection.save(person);
+
+        person.setEmail(UUID.randomUUID() + "@mail.com");
+        collection.save(person);
+        IndexedPerson other = new IndexedPerson(UUID.randomUUID(), "Other", email);
+        collection.save(other);
+
+        assertEquals(List.of(other.getId()), collection.findBy("email", email).stream().map(IndexedPerson::getId).toList());
+        assertTrue(collection.findBy("email", "missing@mail.com").isEmpty());
+    }
+
+    @Test
+    public void findBy_WithFieldNotIndexed_ShouldThrow() {
+        ObjectCollection<IndexedPerson> collection = ObjectCollectionRegistry.getCollection(IndexedPerson.class);
+        assertThrows(MissingIndexException.class, () -> collection.findBy("id", UUID.randomUUID()));
+    }
+
+    @Test
+    public void findRange_WithRangeIndexedField_ShouldStreamObjectsInKeyOrder() {
+        String name = "Range-" + UUID.randomUUID();
+        LocalDateTime start = LocalDateTime.of(2030, 1, 1, 10, 0);
+        IndexedPerson late = new IndexedPerson(UUID.randomUUID(), name, UUID.randomUUID() + "@mail.com", start.plusHours(2));
+        IndexedPerson early = new IndexedPerson(UUID.randomUUID(), name, UUID.randomUUID() + "@mail.com", start);
+        IndexedPerson outside = new IndexedPerson(UUID.randomUUID(), name, UUID.randomUUID() + "@mail.com", start.plusHours(3));
+
+        ObjectCollection<IndexedPerson> collection = ObjectCollectionRegistry.getCollection(IndexedPerson.class);
+        collection.saveAll(List.of(late, early, outside));
+
+        List<UUID> found = collection.findRange("registeredAt", start, start.plusHours(3))
+                .filter(person -> person.getName().equals(name))
+                .map(IndexedPerson::getId)
+                .toList();
+        assertEquals(List.of(early.getId(), late.getId()), found);
+    }
+
+    @Test
+    public void findRange_WhenKeyChanges_ShouldMoveObjectInIndex() {
+        String name = "Moved-" + UUID.randomUUID();
+        LocalDateTime start = LocalDateTime.of(2031, 6, 1, 8, 0);
+        IndexedPerson person = new IndexedPerson(UUID.randomUUID(), name, UUID.randomUUID() + "@mail.com", start);
+
+        ObjectCollection<IndexedPerson> collection = ObjectCollectionRegistry.getCollection(IndexedPerson.class);
+        collection.save(person);
+        collection.save(new IndexedPerson(person.getId(), name, person.getEmail(), start.plusDays(1)));
+
+        assertTrue(collection.findRange("registeredAt", start, start.plusHours(1)).noneMatch(p -> p.getName().equals(name)));
+        assertEquals(1, collection.findRange("registeredAt", start.plusDays(1), null).filter(p -> p.getName().equals(name)).count());
+        assertThrows(MissingIndexException.class, () -> collection.findRange("name", "a", "b"));
+    }
+
+    @Test
+    public void query_WithIndexedConditions_ShouldUseMostSelectiveIndex() {
+        String name = "Query-" + UUID.randomUUID();
+        LocalDateTime start = LocalDateTime.of(2032, 2, 1, 9, 0);
+        IndexedPerson first = new IndexedPerson(UUID.randomUUID(), name, UUID.randomUUID() + "@mail.com", start.plusHours(1));
+        IndexedPerson second = new IndexedPerson(UUID.randomUUID(), name, UUID.randomUUID() + "@mail.com", start);
+        IndexedPerson outside = new IndexedPerson(UUID.randomUUID(), name, UUID.randomUUID() + "@mail.com", start.plusDays(1));
+
+        ObjectCollection<IndexedPerson> collection = ObjectCollectionRegistry.getCollection(IndexedPerson.class);
+        collection.saveAll(List.of(first, second, outside));
+
+        var query = collection.query()
+                .where("name", eq(name))
+                .and("registeredAt", between(start, start.plusHours(2)))
+                .orderByDescending("registeredAt");
+
+        assertEquals(List.of(first.getId(), second.getId()), query.list().stream().map(IndexedPerson::getId).toList());
+        assertTrue(query.explain().startsWith("RANGE INDEX SCAN registeredAt"));
+        assertTrue(query.explain().contains("FILTER name = " + name));
+        assertTrue(query.explain().contains("SORT registeredAt DESC"));
+    }
+
+    @Test
+    public void query_WithNumberOfOtherTypeOnIndexedField_ShouldMatchAsScanDoes() {
+        int rank = ThreadLocalRandom.current().nextInt(1, Integer.MAX_VALUE);
+        IndexedPerson person = new IndexedPerson(UUID.randomUUID(), "Ranked", UUID.randomUUID() + "@mail.com");
+        person.setRank(rank);
+
+        ObjectCollection<IndexedPerson> collection = ObjectCollectionRegistry.getCollection(IndexedPerson.class);
+        collection.save(person);
+
+        assertTrue(collection.query().where("rank", eq(rank)).explain().startsWith("HASH INDEX LOOKUP rank"));
+        for (Object value : List.of(rank, (long) rank, (double) rank)) {
+            assertEquals(List.of(person.getId()), collection.query().where("rank", eq(value)).list().stream().map(IndexedPerson::getId).toList());
+            assertEquals(List.of(person.getId()), collection.findBy("rank", value).stream().map(IndexedPerson::getId).toList());
+        }
+        assertTrue(collection.query().where("rank", eq(rank + 0.5)).list().isEmpty());
+    }
+
+    @Test
+    public void save_CustomerWithEmailOfAnotherCustomer_ShouldThrowAndKeepExistingCustomer() {
+        String email = "customer-" + UUID.randomUUID() + "@mail.com";
+        Customer existing = new Customer("Anna", "Smith", null, email, "pass", LocalDate.of(1990, 1, 1));
+        Customer duplicate = new Customer("Ben", "Jones", null, email, "pass", LocalDate.of(1991, 2, 2));
+
+        ObjectCollection<Customer> customers = ObjectCollectionRegistry.getCollection(Customer.class);
+        customers.save(existing);
+
+        assertThrows(UniqueConstraintViolationException.class, () -> customers.save(duplicate));
+        assertFalse(customers.existsById(duplicate.getId()));
+        assertEquals(List.of(existing.getId()), customers.findBy("email", email).stream().map(Customer::getId).toList());
+    }
+
+    @Test
+    public void findBy_MovieName_ShouldReturnEveryMovieWithThatName() {
+        String name = "Movie-" + UUID.randomUUID();
+        Movie original = new Movie(name, AgeRestrictionEnum.TWELVE, "Original", LocalDate.now().plusDays(10), 120);
+        Movie remake = new Movie(name, AgeRestrictionEnum.SIXTEEN, "Remake", LocalDate.now().plusDays(20), 130);
+
+        ObjectCollection<Movie> movies = ObjectCollectionRegistry.getCollection(Movie.class);
+        movies.saveAll(List.of(original, remake)).forEach(BatchResult::throwIfFailed);
+
+        List<UUID> found = movies.findBy("name", name).stream().map(Movie::getId).toList();
+        assertEquals(2, found.size());
+        assertTrue(found.containsAll(List.of(original.getId(), remake.getId())));
+    }
+
+    @Test
+    public void query_WithoutIndexedCondition_ShouldScanCollection() {
+        String name = "Scan-" + UUID.randomUUID();
+        IndexedPerson person = new IndexedPerson(UUID.randomUUID(), name, UUID.randomUUID() + "@mail.com");
+
+        ObjectCollection<IndexedPerson> collection = ObjectCollectionRegistry.getCollection(IndexedPerson.class);
+        collection.save(person);
+
+        var query = collection.query().where("id", eq(person.getId())).limit(1);
+
+        assertEquals(List.of(name), query.list().stream().map(IndexedPerson::getName).toList());
+        assertTrue(query.explain().startsWith("SCAN person-indexed"));
+    }
+}
@@ -0,0 +1,126 @@
+package com.magicscreencinema.domain.persistence;
+
+import com.magicscreencinema.domain.enums.HallTypeEnum;
+import com.magicscreencinema.domain.enums.ReservationStatusEnum;
+import com.magicscreencinema.domain.model.Hall;
+import com.magicscreencinema.domain.model.Reservation;
+import com.magicscreencinema.domain.model.Seat;
+import com.magicscreencinema.domain.persistence.testmodel.ReservationNote;
+import com.magicscreencinema.persistence.Condition;
+import com.magicscreencinema.persistence.ObjectCollection;
+import com.magicscreencinema.persistence.ObjectCollectionRegistry;
+import com.magicscreencinema.persistence.Query;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * findAll of reservations, which the test configuration splits across four readers
+ */
+public class ParallelFindAllTest {
+    private final ObjectCollection<Hall> halls = ObjectCollectionRegistry.getCollection(Hall.class);
+    private final ObjectCollection<Reservation> reservations = ObjectCollectionRegistry.getCollection(Reservation.class);
+    private final ObjectCollection<ReservationNote> notes = ObjectCollectionRegistry.getCollection(ReservationNote.class);
+    private final Map<UUID, List<UUID>> savedSeats = new HashMap<>();
+    private ReservationNote note;
+
+    @BeforeEach
+    public void setUp() {
+        Hall hall = new Hall(new Random().nextInt(1, 1000), HallTypeEnum.THREE_D, 4, 12, new ArrayList<>());
+        List<Seat> hallSeats = new ArrayList<>();
+        for (int row = 1; row <= 4; row++) {
+            for (int number = 1; number <= 12; number++) hallSeats.add(new Seat(number, row, hall));
+        }
+        hall.setSeats(hallSeats);
+        halls.save(hall);
+
+        for (int i = 0; i < 24; i++) {
+            List<Seat> seats = hallSeats.subList(2 * i, 2 * i + 2);
+            Reservation reservation = new Reservation(LocalDateTime.now().plusDays(1), ReservationStatusEnum.PENDING, null, seats);
+            reservations.save(reservation);
+            savedSeats.put(reservation.getReservationNumber(), ids(seats));
+            if (note == null) {
+                note = new ReservationNote(UUID.randomUUID(), reservation);
+                notes.save(note);
+            }
+        }
+    }
+
+    @Test
+    public void findAll_WithParallelism_ShouldReturnEveryObjectInIdOrder() {
+        List<Reservation> found = reservations.findAll();
+
+        assertEquals(reservations.findAllIds(), found.stream().map(Reservation::getReservationNumber).toList());
+        assertEquals(reservations.count(), found.size());
+    }
+
+    @Test
+    public void findAll_WithParallelism_ShouldResolveRelationsOnEveryReader() {
+        List<Reservation> found = reservations.findAll();
+
+        int checked = 0;
+        for (Reservation reservation : found) {
+            List<UUID> seats = savedSeats.get(reservation.getReservationNumber());
+            if (seats == null) continue;
+            assertEquals(seats, ids(reservation.getSeats()));
+            Hall hall = reservation.getSeats().getFirst().getHall();
+            assertNotNull(hall);
+            for (Seat seat : reservation.getSeats()) {
+                assertSame(hall, seat.getHall());
+            }
+            checked++;
+        }
+        assertEquals(savedSeats.size(), checked);
+    }
+
+    /**
+     * the note refers to a reservation, it only gets the instance findAll returned while that
+     * instance is in the context of the caller
+     */
+    @Test
+    public void findAll_WithFlushContext_ShouldLeaveNoObjectInContextOfCaller() {
+        Reservation found = reservation(reservations.findAll(true));
+
+        assertNotSame(found, notes.findById(note.getId()).get().getReservation());
+    }
+
+    @Test
+    public void findAll_WithoutFlushContext_ShouldKeepObjectsInContextOfCaller() {
+        Reservation found = reservation(reservations.findAll(false));
+
+        assertSame(found, notes.findById(note.getId()).get().getReservation());
+    }
+
+    @Test
+    public void findAll_WithParallelism_ShouldMatchSequentialAndParallelStreams() {
+        List<UUID> found = reservations.findAll().stream().map(Reservation::getReservationNumber).toList();
+
+        assertEquals(reservations.stream().map(Reservation::getReservationNumber).toList(), found);
+        assertEquals(reservations.parallelStream().map(Reservation::getReservationNumber).toList(), found);
+    }
+
+    @Test
+    public void query_WithoutIndexedCondition_ShouldScanWithConfiguredReaders() {
+        UUID reservationNumber = savedSeats.keySet().iterator().next();
+
+        Query<Reservation> query = reservations.query().where("reservationNumber", Condition.eq(reservationNumber));
+        List<Reservation> found = query.list();
+
+        assertTrue(query.explain().startsWith("PARALLEL SCAN reservations"));
+        assertEquals(1, found.size());
+        assertEquals(savedSeats.get(reservationNumber), ids(found.getFirst().getSeats()));
+    }
+
+    private Reservation reservation(List<Reservation> found) {
+        UUID reservationNumber = note.getReservation().getReservationNumber();
+        return found.stream().filter(reservation -> reservation.getReservationNumber().equals(reservationNumber)).findFirst().orElseThrow();
+    }
+
+    private List<UUID> ids(List<Seat> seats) {
+        return seats.stream().map(Seat::getId).sorted().toList();
+    }
+}
@@ -0,0 +1,65 @@
+package com.magicscreencinema.domain.persistence;
+
+import com.magicscreencinema.domain.persistence.testmodel.ReopenedSegmentPerson;
+import com.magicscreencinema.persistence.ObjectCollection;
+import com.magicscreencinema.persistence.ObjectCollectionRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.*;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Writes while the index is persisted every millisecond, stops without the index flush on
+ * shutdown and opens the collection again. There is no write-ahead log, so every record has to be
+ * found through the stored index or the scan of the records after its checkpoint.
+ */
+public class SegmentObjectCollectionReopenTest {
+
+    @Test
+    public void open_AfterIndexPersistedDuringConcurrentWrites_ShouldFindEveryRecord() throws Exception {
+        for (int round = 0; round < 5; round++) {
+            SeparateDatabase database = new SeparateDatabase(Map.of("index.flush.interval.ms", "1", "wal.enabled", "false"));
+            Path ids = database.path("ids");
+
+            Files.write(ids, database.run(SegmentObjectCollectionReopenTest.class, "write"));
+
+            assertEquals(200, Files.readAllLines(ids).size());
+            assertEquals(List.of(), database.run(SegmentObjectCollectionReopenTest.class, "read", ids.toString()));
+        }
+    }
+
+    /**
+     * write saves from four threads and prints every saved id, read prints the ids of the file
+     * that are missing
+     */
+    public static void main(String[] args) throws Exception {
+        ObjectCollection<ReopenedSegmentPerson> collection = ObjectCollectionRegistry.getCollection(ReopenedSegmentPerson.class);
+
+        if (args[0].equals("read")) {
+            for (String id : Files.readAllLines(Path.of(args[1]))) {
+                if (!collection.existsById(UUID.fromString(id))) System.out.println(id);
+            }
+            System.out.flush();
+            Runtime.getRuntime().halt(0);
+        }
+
+        List<Thread> writers = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            Thread writer = new Thread(() -> {
+                for (int j = 0; j < 50; j++) {
+                    UUID id = UUID.randomUUID();
+                    collection.save(new ReopenedSegmentPerson(id, "Test" + j, j));
+                    System.out.println(id);
+                }
+            });
+            writers.add(writer);
+            writer.start();
+        }
+        for (Thread writer : writers) writer.join();
+        System.out.flush();
+        Runtime.getRuntime().halt(0);
+    }
+}
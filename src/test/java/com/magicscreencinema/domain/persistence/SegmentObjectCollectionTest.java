@@ -0,0 +1,123 @@
+package com.magicscreencinema.domain.persistence;
+
+import com.magicscreencinema.domain.persistence.testmodel.SegmentPerson;
+import com.magicscreencinema.persistence.CacheStats;
+import com.magicscreencinema.persistence.ObjectCollection;
+import com.magicscreencinema.persistence.ObjectCollectionRegistry;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class SegmentObjectCollectionTest {
+    private final ObjectCollection<SegmentPerson> collection = ObjectCollectionRegistry.getCollection(SegmentPerson.class);
+
+    @Test
+    public void save_WithSegmentStorage_ShouldNotCreateFilePerEntity() throws IOException {
+        UUID uuid = UUID.randomUUID();
+        collection.save(new SegmentPerson(uuid, "Test", 20));
+
+        assertFalse(Files.exists(Path.of("db-test/person-segment", uuid + ".json")));
+        assertTrue(collection.existsById(uuid));
+    }
+
+    @Test
+    public void findById_AfterSave_ShouldReturnLatestVersion() {
+        UUID uuid = UUID.randomUUID();
+        collection.save(new SegmentPerson(uuid, "Before", 20));
+        collection.save(new SegmentPerson(uuid, "After", 21));
+
+        SegmentPerson loaded = collection.findById(uuid).get();
+        assertEquals("After", loaded.getName());
+        assertEquals(21, loaded.getAge());
+    }
+
+    @Test
+    public void update_AfterCachedRead_ShouldReturnUpdatedObject() {
+        UUID uuid = UUID.randomUUID();
+        collection.save(new SegmentPerson(uuid, "Before", 20));
+        collection.findById(uuid);
+
+        assertTrue(collection.update(uuid, Map.of("name", "After")));
+
+        SegmentPerson loaded = collection.findById(uuid).get();
+        assertEquals("After", loaded.getName());
+        assertEquals(20, loaded.getAge());
+    }
+
+    @Test
+    public void findById_WithNonExistingId_ShouldReturnEmptyOptional() {
+        Optional<SegmentPerson> loaded = collection.findById(UUID.randomUUID());
+
+        assertTrue(loaded.isEmpty());
+    }
+
+    @Test
+    public void deleteById_WithExistingId_ShouldRemoveObject() throws IOException {
+        UUID uuid = UUID.randomUUID();
+        collection.save(new SegmentPerson(uuid, "Test", 20));
+
+        assertTrue(collection.deleteById(uuid));
+        assertFalse(collection.existsById(uuid));
+        assertTrue(collection.findById(uuid).isEmpty());
+        assertFalse(collection.deleteById(uuid));
+    }
+
+    @Test
+    public void save_WhenSegmentIsFull_ShouldRollToNextSegment() throws IOException {
+        for (int i = 0; i < 100; i++) {
+            collection.save(new SegmentPerson(UUID.randomUUID(), "Person " + i, i));
+        }
+
+        try (Stream<Path> files = Files.list(Path.of("db-test/person-segment"))) {
+            assertTrue(files.count() > 1);
+        }
+    }
+
+    @Test
+    public void findAll_WithSegmentStorage_ShouldReturnLiveObjectsOnly() throws IOException {
+        UUID kept = UUID.randomUUID();
+        UUID deleted = UUID.randomUUID();
+        collection.save(new SegmentPerson(kept, "Kept", 20));
+        collection.save(new SegmentPerson(deleted, "Deleted", 20));
+        collection.deleteById(deleted);
+
+        List<UUID> ids = collection.findAll().stream().map(SegmentPerson::getId).toList();
+        assertTrue(ids.contains(kept));
+        assertFalse(ids.contains(deleted));
+    }
+
+    @Test
+    public void findById_WhenReadTwice_ShouldServeSecondReadFromCache() {
+        UUID uuid = UUID.randomUUID();
+        collection.save(new SegmentPerson(uuid, "Test", 20));
+        CacheStats before = collection.cacheStats();
+
+        collection.findById(uuid);
+        SegmentPerson loaded = collection.findById(uuid).get();
+
+        CacheStats after = collection.cacheStats();
+        assertEquals("Test", loaded.getName());
+        assertEquals(before.hits() + 2, after.hits());
+        assertEquals(before.misses(), after.misses());
+    }
+
+    @Test
+    public void findById_AfterDeleteOfCachedObject_ShouldReturnEmptyOptional() throws IOException {
+        UUID uuid = UUID.randomUUID();
+        collection.save(new SegmentPerson(uuid, "Test", 20));
+        collection.findById(uuid);
+
+        collection.deleteById(uuid);
+
+        assertTrue(collection.findById(uuid).isEmpty());
+    }
+}
@@ -0,0 +1,92 @@
+package com.magicscreencinema.domain.persistence;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * A database in a temporary folder of its own, used by JVMs of their own. They start with the
+ * test configuration and the given settings, each storage root is moved into the folder. A JVM
+ * that ends with Runtime.halt stops like a crash, without the flushes on shutdown, and the next
+ * one opens the database again.
+ */
+final class SeparateDatabase {
+    private static final String ROOT_PREFIX = "storage.root.";
+
+    private final Path folder;
+
+    SeparateDatabase(Map<String, String> settings) throws IOException {
+        folder = Files.createTempDirectory("separate-database");
+        Properties properties = new Properties();
+        try (InputStream in = SeparateDatabase.class.getClassLoader().getResourceAsStream("persistence.properties")) {
+            properties.load(in);
+        }
+        properties.setProperty("database.path", path().toString());
+        for (String key : properties.stringPropertyNames()) {
+            String rootName = key.startsWith(ROOT_PREFIX) ? key.substring(ROOT_PREFIX.length()) : "";
+            if (!rootName.isEmpty() && !rootName.contains(".")) {
+                properties.setProperty(key, folder.resolve(rootName).toString());
+            }
+        }
+        properties.putAll(settings);
+        try (OutputStream out = Files.newOutputStream(folder.resolve("persistence.properties"))) {
+            properties.store(out, null);
+        }
+    }
+
+    /**
+     * the default root of the database, or a file in it
+     */
+    Path path(String... names) {
+        return Path.of(folder.resolve("db").toString(), names);
+    }
+
+    /**
+     * a storage root named in the test configuration, or a file in it
+     */
+    Path root(String rootName, String... names) {
+        return Path.of(folder.resolve(rootName).toString(), names);
+    }
+
+    /**
+     * runs the main method of the class on this database and returns the lines it printed, the
+     * JVM has to succeed
+     */
+    List<String> run(Class<?> main, String... args) throws IOException, InterruptedException {
+        return run(List.of(), main, args);
+    }
+
+    /**
+     * the same with the given class folders or jars in front of the class path
+     */
+    List<String> run(List<Path> classPath, Class<?> main, String... args) throws IOException, InterruptedException {
+        List<String> entries = new ArrayList<>();
+        entries.add(folder.toString());
+        classPath.forEach(entry -> entries.add(entry.toString()));
+        entries.add(System.getProperty("java.class.path"));
+
+        List<String> command = new ArrayList<>();
+        command.add(Path.of(System.getProperty("java.home"), "bin", "java").toString());
+        if (ManagementFactory.getRuntimeMXBean().getInputArguments().contains("--enable-preview")) {
+            command.add("--enable-preview");
+        }
+        command.addAll(List.of("-cp", String.join(File.pathSeparator, entries), main.getName()));
+        command.addAll(List.of(args));
+
+        Process process = new ProcessBuilder(command).redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        String output = new String(process.getInputStream().readAllBytes(), StandardCharsets.UTF_8);
+        if (process.waitFor() != 0) {
+            throw new IllegalStateException(main.getName() + " " + String.join(" ", args) + " exited with " + process.exitValue());
+        }
+        return output.lines().toList();
+    }
+}
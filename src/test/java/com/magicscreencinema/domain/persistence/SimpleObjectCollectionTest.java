@@ -1,12 +1,26 @@
 package com.magicscreencinema.domain.persistence;
 
+import com.magicscreencinema.domain.persistence.testmodel.CachedPerson;
 import com.magicscreencinema.domain.persistence.testmodel.PersonWithNoArgsConstructor;
+import com.magicscreencinema.domain.persistence.testmodel.SecondRootPerson;
+import com.magicscreencinema.domain.persistence.testmodel.ShardedPerson;
 import com.magicscreencinema.domain.persistence.testmodel.SimplePerson;
+import com.magicscreencinema.domain.persistence.testmodel.VersionedPerson;
+import com.magicscreencinema.domain.persistence.testmodel.VersionedTeam;
+import com.magicscreencinema.domain.persistence.testmodel.WriteBehindPerson;
+import com.magicscreencinema.persistence.AsyncObjectCollection;
+import com.magicscreencinema.persistence.BatchResult;
 import com.magicscreencinema.persistence.ObjectCollection;
 import com.magicscreencinema.persistence.ObjectCollectionRegistry;
+import com.magicscreencinema.persistence.Page;
+import com.magicscreencinema.persistence.Projection;
 import com.magicscreencinema.persistence.exception.CouldNotPersistObjectException;
 import com.magicscreencinema.persistence.exception.CouldNotReadObjectException;
+import com.magicscreencinema.persistence.exception.InvalidCursorException;
+import com.magicscreencinema.persistence.exception.InvalidQueryException;
+import com.magicscreencinema.persistence.exception.InvalidUpdateException;
 import com.magicscreencinema.persistence.exception.MissingNoArgsConstructorException;
+import com.magicscreencinema.persistence.exception.OptimisticLockException;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 
@@ -17,14 +31,20 @@ import java.io.IOException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
 import java.time.DayOfWeek;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Stream;
 
 public class SimpleObjectCollectionTest {
     @BeforeEach
     void cleanDbFolder() throws IOException {
         Path dbFolder = Paths.get("db-test");
+        if (Files.notExists(dbFolder)) return;
 
         try (Stream<Path> paths = Files.walk(dbFolder)) {
             paths.sorted(Comparator.reverseOrder())
@@ -509,4 +529,435 @@ public class SimpleObjectCollectionTest {
         assertTrue(Files.exists(folder));
         assertFalse(Files.exists(filePath));
     }
+
+    @Test
+    public void count_AfterSaveAndDelete_ShouldReturnNumberOfStoredObjects() throws IOException {
+        UUID uuid1 = UUID.randomUUID();
+        UUID uuid2 = UUID.randomUUID();
+
+        ObjectCollection<SimplePerson> registry = ObjectCollectionRegistry.getCollection(SimplePerson.class);
+        registry.save(new SimplePerson(uuid1, "Test1", 20, List.of(), "test1@email"));
+        registry.save(new SimplePerson(uuid2, "Test2", 20, List.of(), "test2@email"));
+        registry.deleteById(uuid1);
+
+        assertEquals(1, registry.count());
+    }
+
+    @Test
+    public void findAllIds_WhenFileWasAddedOutsideCollection_ShouldReturnItsId() throws IOException {
+        UUID uuid = UUID.randomUUID();
+        UUID external = UUID.randomUUID();
+
+        ObjectCollection<SimplePerson> registry = ObjectCollectionRegistry.getCollection(SimplePerson.class);
+        registry.save(new SimplePerson(uuid, "Test", 20, List.of(), "test@email"));
+        Files.writeString(Path.of("db-test/person", external + ".json"), "{\"id\": \"%s\"}".formatted(external));
+
+        List<UUID> ids = registry.findAllIds();
+        assertEquals(2, ids.size());
+        assertTrue(ids.contains(uuid));
+        assertTrue(ids.contains(external));
+    }
+
+    @Test
+    public void saveAll_WithSeveralObjects_ShouldPersistAllAndReturnResultPerObject() {
+        UUID uuid1 = UUID.randomUUID();
+        UUID uuid2 = UUID.randomUUID();
+
+        ObjectCollection<SimplePerson> registry = ObjectCollectionRegistry.getCollection(SimplePerson.class);
+        List<BatchResult> results = registry.saveAll(List.of(
+                new SimplePerson(uuid1, "Test1", 20, List.of(), "test1@email"),
+                new SimplePerson(uuid2, "Test2", 20, List.of(), "test2@email")));
+
+        assertEquals(2, results.size());
+        assertTrue(results.stream().allMatch(BatchResult::applied));
+        assertTrue(Files.exists(Path.of("db-test/person", uuid1 + ".json")));
+        assertTrue(Files.exists(Path.of("db-test/person", uuid2 + ".json")));
+    }
+
+    @Test
+    public void save_FromSeveralThreads_ShouldPersistEveryObjectAndKeepRecordsReadable() throws Exception {
+        ObjectCollection<SimplePerson> registry = ObjectCollectionRegistry.getCollection(SimplePerson.class);
+        UUID shared = UUID.randomUUID();
+        List<UUID> ids = Collections.synchronizedList(new ArrayList<>());
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            int thread = i;
+            futures.add(executor.submit(() -> {
+                for (int j = 0; j < 25; j++) {
+                    UUID id = UUID.randomUUID();
+                    registry.save(new SimplePerson(id, "Test" + thread, j, List.of(), "test@email"));
+                    ids.add(id);
+                    registry.save(new SimplePerson(shared, "Shared" + thread, j, List.of(), "shared@email"));
+                    assertTrue(registry.findById(shared).get().getName().startsWith("Shared"));
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertEquals(201, registry.count());
+        for (UUID id : ids) {
+            assertTrue(registry.findById(id).isPresent());
+        }
+    }
+
+    @Test
+    public void saveIfVersion_WithStaleVersion_ShouldReturnConflictAndKeepStoredObject() {
+        UUID uuid = UUID.randomUUID();
+        VersionedPerson current = new VersionedPerson(uuid, "Current");
+        VersionedPerson stale = new VersionedPerson(uuid, "Stale");
+
+        ObjectCollection<VersionedPerson> registry = ObjectCollectionRegistry.getCollection(VersionedPerson.class);
+        assertTrue(registry.saveIfVersion(current).applied());
+        current.setName("Updated");
+        assertTrue(registry.saveIfVersion(current).applied());
+        BatchResult conflict = registry.saveIfVersion(stale);
+
+        assertEquals(2, current.getVersion());
+        assertEquals(0, stale.getVersion());
+        assertTrue(conflict.error() instanceof OptimisticLockException);
+        assertEquals("Updated", registry.findById(uuid).get().getName());
+        assertEquals(2, registry.findById(uuid).get().getVersion());
+    }
+
+    @Test
+    public void saveIfVersion_WithRecordWrittenBeforeVersionField_ShouldReadVersionZero() throws IOException {
+        UUID uuid = UUID.randomUUID();
+        Path folder = Path.of("db-test/person-versioned");
+        Files.createDirectories(folder);
+        Files.writeString(folder.resolve(uuid + ".json"), """
+                {
+                    "id": "%s",
+                    "name": "Legacy"
+                }
+                """.formatted(uuid));
+
+        ObjectCollection<VersionedPerson> registry = ObjectCollectionRegistry.getCollection(VersionedPerson.class);
+        VersionedPerson legacy = registry.findById(uuid).get();
+        assertEquals(0, legacy.getVersion());
+        legacy.setName("Migrated");
+
+        assertTrue(registry.saveIfVersion(legacy).applied());
+        assertEquals(1, registry.findById(uuid).get().getVersion());
+        assertEquals("Migrated", registry.findById(uuid).get().getName());
+    }
+
+    @Test
+    public void save_WithStaleVersion_ShouldOverwriteStoredObjectAndIncrementItsOwnVersion() {
+        UUID uuid = UUID.randomUUID();
+        VersionedPerson current = new VersionedPerson(uuid, "Current");
+        VersionedPerson stale = new VersionedPerson(uuid, "Stale");
+
+        ObjectCollection<VersionedPerson> registry = ObjectCollectionRegistry.getCollection(VersionedPerson.class);
+        registry.save(current);
+        current.setName("Updated");
+        registry.save(current);
+        registry.save(stale);
+
+        assertEquals(1, stale.getVersion());
+        assertEquals("Stale", registry.findById(uuid).get().getName());
+        assertEquals(1, registry.findById(uuid).get().getVersion());
+        assertFalse(registry.saveIfVersion(current).applied());
+    }
+
+    @Test
+    public void saveAsync_WithSeveralUpdatesOfSameId_ShouldApplyThemInSubmissionOrder() {
+        UUID shared = UUID.randomUUID();
+        UUID deleted = UUID.randomUUID();
+
+        AsyncObjectCollection<SimplePerson> registry = ObjectCollectionRegistry.getAsyncCollection(SimplePerson.class);
+        List<CompletableFuture<?>> futures = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            futures.add(registry.saveAsync(new SimplePerson(shared, "Test" + i, i, List.of(), "test@email")));
+        }
+        futures.add(registry.saveAsync(new SimplePerson(deleted, "Deleted", 20, List.of(), "test@email")));
+        CompletableFuture<Boolean> deletion = registry.deleteAsync(deleted);
+        Optional<SimplePerson> found = registry.findByIdAsync(shared).join();
+        CompletableFuture.allOf(futures.toArray(CompletableFuture[]::new)).join();
+
+        assertEquals("Test49", found.get().getName());
+        assertTrue(deletion.join());
+        assertFalse(registry.findByIdAsync(deleted).join().isPresent());
+        assertEquals(1, registry.collection().count());
+    }
+
+    @Test
+    public void save_WithWriteBehindCollection_ShouldCoalesceSavesUntilFlushed() {
+        UUID uuid = UUID.randomUUID();
+        Path file = Path.of("db-test/person-write-behind", uuid + ".json");
+
+        ObjectCollection<WriteBehindPerson> registry = ObjectCollectionRegistry.getCollection(WriteBehindPerson.class);
+        registry.save(new WriteBehindPerson(uuid, "First", 20));
+        registry.save(new WriteBehindPerson(uuid, "Second", 21));
+
+        assertTrue(registry.existsById(uuid));
+        assertEquals("Second", registry.findById(uuid).get().getName());
+        assertEquals(1, registry.findAllIds().stream().filter(uuid::equals).count());
+        assertEquals(1, registry.findAll().stream().filter(person -> person.getId().equals(uuid)).count());
+        assertFalse(Files.exists(file));
+
+        assertTrue(ObjectCollectionRegistry.flush(WriteBehindPerson.class).stream().anyMatch(result -> result.id().equals(uuid) && result.applied()));
+        assertTrue(Files.exists(file));
+        assertEquals(21, registry.findById(uuid).get().getAge());
+    }
+
+    @Test
+    public void save_WithUnchangedObject_ShouldNotRewriteFile() throws IOException {
+        UUID uuid = UUID.randomUUID();
+        Path file = Path.of("db-test/person-cached", uuid + ".json");
+        FileTime old = FileTime.fromMillis(0);
+
+        ObjectCollection<CachedPerson> registry = ObjectCollectionRegistry.getCollection(CachedPerson.class);
+        registry.save(new CachedPerson(uuid, "Test", 20));
+        Files.setLastModifiedTime(file, old);
+        registry.save(new CachedPerson(uuid, "Test", 20));
+
+        assertEquals(old, Files.getLastModifiedTime(file));
+
+        registry.save(new CachedPerson(uuid, "Changed", 20));
+
+        assertNotEquals(old, Files.getLastModifiedTime(file));
+        assertEquals("Changed", registry.findById(uuid).get().getName());
+    }
+
+    @Test
+    public void save_WithUnchangedObjectEvictedFromCache_ShouldRewriteFile() throws IOException {
+        UUID evicted = UUID.randomUUID();
+        UUID cached = UUID.randomUUID();
+        Path evictedFile = Path.of("db-test/person-cached", evicted + ".json");
+        Path cachedFile = Path.of("db-test/person-cached", cached + ".json");
+        FileTime old = FileTime.fromMillis(0);
+
+        ObjectCollection<CachedPerson> registry = ObjectCollectionRegistry.getCollection(CachedPerson.class);
+        registry.save(new CachedPerson(evicted, "Evicted", 20));
+        registry.save(new CachedPerson(cached, "Cached", 20));
+        registry.save(new CachedPerson(UUID.randomUUID(), "Other", 20));
+        registry.findById(cached);
+        Files.setLastModifiedTime(evictedFile, old);
+        Files.setLastModifiedTime(cachedFile, old);
+
+        registry.save(new CachedPerson(cached, "Cached", 20));
+        registry.save(new CachedPerson(evicted, "Evicted", 20));
+
+        assertEquals(old, Files.getLastModifiedTime(cachedFile));
+        assertNotEquals(old, Files.getLastModifiedTime(evictedFile));
+    }
+
+    @Test
+    public void save_WithShardedLayout_ShouldStoreFileInPrefixFolders() {
+        UUID uuid = UUID.randomUUID();
+        String name = uuid.toString();
+        Path file = Path.of("db-test/person-sharded", name.substring(0, 2), name.substring(2, 4), name + ".json");
+
+        ObjectCollection<ShardedPerson> registry = ObjectCollectionRegistry.getCollection(ShardedPerson.class);
+        registry.save(new ShardedPerson(uuid, "Test", 20));
+
+        assertTrue(Files.exists(file));
+        assertFalse(Files.exists(Path.of("db-test/person-sharded", name + ".json")));
+        assertEquals("Test", registry.findById(uuid).get().getName());
+        assertEquals(List.of(uuid), registry.findAllIds());
+    }
+
+    @Test
+    public void migrateLayout_WithFlatFile_ShouldMoveItIntoShardFolders() throws IOException {
+        UUID uuid = UUID.randomUUID();
+        String name = uuid.toString();
+        Path sharded = Path.of("db-test/person-sharded", name.substring(0, 2), name.substring(2, 4), name + ".json");
+        Path flat = Path.of("db-test/person-sharded", name + ".json");
+
+        ObjectCollection<ShardedPerson> registry = ObjectCollectionRegistry.getCollection(ShardedPerson.class);
+        registry.save(new ShardedPerson(uuid, "Test", 20));
+        Files.move(sharded, flat);
+
+        assertEquals("Test", registry.findById(uuid).get().getName());
+        assertEquals(1, ObjectCollectionRegistry.migrateLayout(ShardedPerson.class));
+
+        assertTrue(Files.exists(sharded));
+        assertFalse(Files.exists(flat));
+        assertEquals("Test", registry.findById(uuid).get().getName());
+        assertEquals(0, ObjectCollectionRegistry.migrateLayout(ShardedPerson.class));
+    }
+
+    @Test
+    public void save_WithCollectionOnOtherRoot_ShouldStoreFileAndIndexInThatRoot() {
+        UUID uuid = UUID.randomUUID();
+
+        ObjectCollection<SecondRootPerson> registry = ObjectCollectionRegistry.getCollection(SecondRootPerson.class);
+        registry.save(new SecondRootPerson(uuid, "Test", 20));
+        ObjectCollectionRegistry.getAsyncCollection(SecondRootPerson.class)
+                .saveAsync(new SecondRootPerson(uuid, "Async", 21)).join();
+
+        assertTrue(Files.exists(Path.of("db-test/second/person-second-root", uuid + ".json")));
+        assertFalse(Files.exists(Path.of("db-test/person-second-root")));
+        assertEquals("Async", registry.findById(uuid).get().getName());
+    }
+
+    @Test
+    public void update_WithExistingId_ShouldChangeOnlyGivenFields() {
+        UUID uuid = UUID.randomUUID();
+        UUID missing = UUID.randomUUID();
+
+        ObjectCollection<SimplePerson> registry = ObjectCollectionRegistry.getCollection(SimplePerson.class);
+        registry.save(new SimplePerson(uuid, "Test", 20, List.of(DayOfWeek.MONDAY), "test@email"));
+
+        assertTrue(registry.update(uuid, Map.of("name", "Updated", "age", 21)));
+        assertFalse(registry.update(missing, Map.of("name", "Updated")));
+        assertThrows(InvalidUpdateException.class, () -> registry.update(uuid, Map.of("unknown", 1)));
+        assertThrows(InvalidUpdateException.class, () -> registry.update(uuid, Map.of("age", "old")));
+        assertThrows(InvalidUpdateException.class, () -> registry.update(uuid, Map.of("id", UUID.randomUUID())));
+
+        SimplePerson loaded = registry.findById(uuid).get();
+        assertEquals("Updated", loaded.getName());
+        assertEquals(21, loaded.getAge());
+        assertEquals(List.of(DayOfWeek.MONDAY), loaded.getDays());
+        assertFalse(Files.exists(Path.of("db-test/person", missing + ".json")));
+    }
+
+    @Test
+    public void updateAll_WithVersionedObjects_ShouldUpdateEveryObjectAndIncrementVersion() {
+        VersionedPerson first = new VersionedPerson(UUID.randomUUID(), "First");
+        VersionedPerson second = new VersionedPerson(UUID.randomUUID(), "Second");
+        UUID missing = UUID.randomUUID();
+
+        ObjectCollection<VersionedPerson> registry = ObjectCollectionRegistry.getCollection(VersionedPerson.class);
+        registry.saveAll(List.of(first, second));
+        List<BatchResult> results = registry.updateAll(List.of(first.getId(), second.getId(), missing), Map.of("name", "Cancelled"));
+
+        assertEquals(List.of(true, true, false), results.stream().map(BatchResult::applied).toList());
+        assertEquals("Cancelled", registry.findById(first.getId()).get().getName());
+        assertEquals(2, registry.findById(second.getId()).get().getVersion());
+        assertFalse(registry.saveIfVersion(first).applied());
+    }
+
+    @Test
+    public void save_WithUnchangedVersionedObject_ShouldNotRewriteFileNorIncrementVersion() throws IOException {
+        UUID uuid = UUID.randomUUID();
+        Path file = Path.of("db-test/person-versioned", uuid + ".json");
+        FileTime old = FileTime.fromMillis(0);
+        VersionedPerson person = new VersionedPerson(uuid, "Test");
+
+        ObjectCollection<VersionedPerson> registry = ObjectCollectionRegistry.getCollection(VersionedPerson.class);
+        registry.save(person);
+        Files.setLastModifiedTime(file, old);
+        registry.save(person);
+        assertTrue(registry.saveIfVersion(person).applied());
+
+        assertEquals(old, Files.getLastModifiedTime(file));
+        assertEquals(1, person.getVersion());
+
+        person.setName("Changed");
+        registry.save(person);
+
+        assertNotEquals(old, Files.getLastModifiedTime(file));
+        assertEquals(2, person.getVersion());
+        assertEquals(2, registry.findById(uuid).get().getVersion());
+    }
+
+    @Test
+    public void save_WithCascadeIntoVersionedObject_ShouldSaveItOnceAndIncrementVersionOnce() {
+        VersionedPerson member = new VersionedPerson(UUID.randomUUID(), "Member");
+        VersionedTeam team = new VersionedTeam(UUID.randomUUID(), "Team", List.of(member));
+
+        ObjectCollectionRegistry.getCollection(VersionedTeam.class).save(team);
+
+        assertEquals(1, team.getVersion());
+        assertEquals(1, member.getVersion());
+        assertEquals(1, ObjectCollectionRegistry.getCollection(VersionedPerson.class).findById(member.getId()).get().getVersion());
+        assertEquals(List.of(member.getId()), ObjectCollectionRegistry.getCollection(VersionedTeam.class).findById(team.getId()).get()
+                .getMembers().stream().map(VersionedPerson::getId).toList());
+    }
+
+    @Test
+    public void findAllById_WithMissingId_ShouldReturnOnlyExistingObjectsInRequestedOrder() {
+        UUID uuid1 = UUID.randomUUID();
+        UUID uuid2 = UUID.randomUUID();
+        UUID missing = UUID.randomUUID();
+
+        ObjectCollection<SimplePerson> registry = ObjectCollectionRegistry.getCollection(SimplePerson.class);
+        registry.save(new SimplePerson(uuid1, "Test1", 20, List.of(), "test1@email"));
+        registry.save(new SimplePerson(uuid2, "Test2", 20, List.of(), "test2@email"));
+
+        Map<UUID, SimplePerson> found = registry.findAllById(List.of(uuid2, missing, uuid1));
+        assertEquals(List.of(uuid2, uuid1), List.copyOf(found.keySet()));
+        assertEquals("Test2", found.get(uuid2).getName());
+    }
+
+    @Test
+    public void deleteAllById_WithMissingId_ShouldReportItAsNotApplied() {
+        UUID uuid = UUID.randomUUID();
+        UUID missing = UUID.randomUUID();
+
+        ObjectCollection<SimplePerson> registry = ObjectCollectionRegistry.getCollection(SimplePerson.class);
+        registry.save(new SimplePerson(uuid, "Test", 20, List.of(), "test@email"));
+
+        List<BatchResult> results = registry.deleteAllById(List.of(uuid, missing));
+        assertTrue(results.get(0).applied());
+        assertFalse(results.get(1).applied());
+        assertFalse(results.get(1).failed());
+        assertEquals(0, registry.count());
+    }
+
+    @Test
+    public void stream_WithFilterAndLimit_ShouldReturnMatchingObjects() {
+        ObjectCollection<SimplePerson> registry = ObjectCollectionRegistry.getCollection(SimplePerson.class);
+        for (int i = 0; i < 5; i++) {
+            registry.save(new SimplePerson(UUID.randomUUID(), "Test" + i, 20 + i, List.of(), "test@email"));
+        }
+
+        List<SimplePerson> adults;
+        try (Stream<SimplePerson> stream = registry.stream()) {
+            adults = stream.filter(person -> person.getAge() > 21).limit(2).toList();
+        }
+
+        assertEquals(2, adults.size());
+        assertTrue(adults.stream().allMatch(person -> person.getAge() > 21));
+        assertEquals(5, registry.findAll().size());
+    }
+
+    @Test
+    public void findPageByCursor_WhenFollowingCursors_ShouldReturnEveryObjectOnce() {
+        ObjectCollection<SimplePerson> registry = ObjectCollectionRegistry.getCollection(SimplePerson.class);
+        for (int i = 0; i < 5; i++) {
+            registry.save(new SimplePerson(UUID.randomUUID(), "Test" + i, 20, List.of(), "test@email"));
+        }
+
+        List<UUID> seen = new ArrayList<>();
+        Page<SimplePerson> page = registry.findPageByCursor(null, 2);
+        page.items().forEach(person -> seen.add(person.getId()));
+        while (page.hasNext()) {
+            page = registry.findPageByCursor(page.nextCursor(), 2);
+            page.items().forEach(person -> seen.add(person.getId()));
+        }
+
+        assertEquals(registry.findAllIds(), seen);
+    }
+
+    @Test
+    public void findPageByCursor_WithInvalidCursor_ShouldThrowException() {
+        ObjectCollection<SimplePerson> registry = ObjectCollectionRegistry.getCollection(SimplePerson.class);
+
+        assertThrows(InvalidCursorException.class, () -> registry.findPageByCursor("not-a-cursor", 2));
+    }
+
+    @Test
+    public void findAll_WithProjection_ShouldReturnOnlyRequestedFields() {
+        UUID uuid = UUID.randomUUID();
+        SimplePerson person = new SimplePerson(uuid, "Test", 20, List.of(DayOfWeek.MONDAY), "test@email");
+
+        ObjectCollection<SimplePerson> collection = ObjectCollectionRegistry.getCollection(SimplePerson.class);
+        collection.save(person);
+
+        List<Map<String, Object>> projected = collection.findAll(Projection.of("email", "name"));
+        assertEquals(1, projected.size());
+        assertEquals(List.of("email", "name"), List.copyOf(projected.getFirst().keySet()));
+        assertEquals("test@email", projected.getFirst().get("email"));
+        assertEquals("Test", projected.getFirst().get("name"));
+        assertEquals(Map.of("age", 20), collection.findById(uuid, Projection.of("age")).orElseThrow());
+        assertThrows(InvalidQueryException.class, () -> collection.findAll(Projection.of("missing")));
+    }
 }
@@ -0,0 +1,309 @@
+package com.magicscreencinema.domain.persistence;
+
+import com.magicscreencinema.domain.persistence.testmodel.ShardedPerson;
+import com.magicscreencinema.domain.persistence.testmodel.VersionedPerson;
+import com.magicscreencinema.domain.persistence.testmodel.VersionedTeam;
+import com.magicscreencinema.domain.persistence.testmodel.WalPerson;
+import com.magicscreencinema.persistence.ObjectCollection;
+import com.magicscreencinema.persistence.ObjectCollectionRegistry;
+import com.magicscreencinema.persistence.exception.CouldNotPersistObjectException;
+import org.junit.jupiter.api.Test;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A crash between the commit of a transaction and the changes to its files is reproduced by
+ * changes that cannot be applied: the shard folders of person-sharded are replaced by files, or a
+ * record or the temporary file of a relation by a folder. The JVM then halts and the next one
+ * opens the database after the files were repaired, which only the log can bring up to date.
+ */
+public class WriteAheadLogTest {
+    private final SeparateDatabase database;
+    private final Path shardedFolder;
+
+    public WriteAheadLogTest() throws IOException {
+        database = new SeparateDatabase(Map.of());
+        shardedFolder = database.path("person-sharded");
+    }
+
+    @Test
+    public void open_AfterCrashBeforeApply_ShouldReplayEntityChanges() throws Exception {
+        UUID deleted = UUID.randomUUID();
+        UUID saved = idInOtherShard(deleted);
+
+        assertEquals(List.of("applied", "unapplied", "unapplied"), database.run(WriteAheadLogTest.class,
+                "save", deleted.toString(), "Deleted", "block-record", shardedFolder.toString(), deleted.toString(),
+                "delete", deleted.toString(), "block-shards", shardedFolder.toString(), "save", saved.toString(), "Saved"));
+        repair(deleted);
+
+        assertEquals(List.of("Saved", "missing"), database.run(WriteAheadLogTest.class, "find", saved.toString(), "find", deleted.toString()));
+    }
+
+    @Test
+    public void open_AfterCrashBeforeApply_ShouldReplayRelationChanges() throws Exception {
+        UUID team = UUID.randomUUID();
+        UUID member = UUID.randomUUID();
+        Path temporary = database.path("person-versioned_team-versioned.tmp");
+        Files.createDirectories(temporary.resolve("blocked"));
+
+        assertEquals(List.of("unapplied"), database.run(WriteAheadLogTest.class, "team", team.toString(), member.toString()));
+        Files.delete(temporary.resolve("blocked"));
+        Files.delete(temporary);
+
+        assertEquals(List.of(member.toString()), database.run(WriteAheadLogTest.class, "members", team.toString()));
+    }
+
+    @Test
+    public void open_WithTornRecordAtEnd_ShouldTruncateItAndKeepEarlierRecords() throws Exception {
+        UUID kept = UUID.randomUUID();
+        assertEquals(List.of("unapplied"), database.run(WriteAheadLogTest.class,
+                "block-shards", shardedFolder.toString(), "save", kept.toString(), "Kept"));
+        long validSize = Files.size(log());
+
+        try (FileChannel channel = FileChannel.open(log(), StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+            channel.write(ByteBuffer.allocate(12).putInt(0, 4096));
+        }
+        repair(null);
+
+        assertEquals(List.of("Kept"), database.run(WriteAheadLogTest.class, "find", kept.toString()));
+        assertEquals(validSize, Files.size(log()));
+    }
+
+    @Test
+    public void open_WithCorruptedLastRecord_ShouldTruncateItAndSkipItsChanges() throws Exception {
+        UUID kept = UUID.randomUUID();
+        UUID corrupted = UUID.randomUUID();
+        List<String> output = database.run(WriteAheadLogTest.class, "block-shards", shardedFolder.toString(),
+                "save", kept.toString(), "Kept", "size", log().toString(), "save", corrupted.toString(), "Corrupted");
+        long validSize = Long.parseLong(output.get(1));
+
+        try (FileChannel channel = FileChannel.open(log(), StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            long last = channel.size() - 1;
+            ByteBuffer lastByte = ByteBuffer.allocate(1);
+            channel.read(lastByte, last);
+            channel.write(ByteBuffer.wrap(new byte[]{(byte) ~lastByte.get(0)}), last);
+        }
+        repair(null);
+
+        assertEquals(List.of("Kept", "missing"), database.run(WriteAheadLogTest.class, "find", kept.toString(), "find", corrupted.toString()));
+        assertEquals(validSize, Files.size(log()));
+    }
+
+    /**
+     * every commit checkpoints, the second JVM never opens person-sharded, so the save of the
+     * first one is still unreplayed, and its relation change stays unapplied
+     */
+    @Test
+    public void checkpoint_WithUnreplayedAndUnappliedChanges_ShouldCarryThemIntoNewLog() throws Exception {
+        SeparateDatabase database = new SeparateDatabase(Map.of("wal.checkpoint.bytes", "1"));
+        UUID unreplayed = UUID.randomUUID();
+        UUID team = UUID.randomUUID();
+        UUID member = UUID.randomUUID();
+        Path folder = database.path("person-sharded");
+        Path log = database.root("second", "wal.log");
+        Path temporary = database.path("person-versioned_team-versioned.tmp");
+
+        assertEquals(List.of("unapplied"), database.run(WriteAheadLogTest.class,
+                "block-shards", folder.toString(), "save", unreplayed.toString(), "Unreplayed"));
+        Files.createDirectories(temporary.resolve("blocked"));
+        List<String> output = database.run(WriteAheadLogTest.class, "team", team.toString(), member.toString(),
+                "size", log.toString(), "save-other", "size", log.toString(), "save-other", "size", log.toString());
+
+        assertEquals("unapplied", output.getFirst());
+        assertEquals(1, Set.copyOf(output.subList(1, output.size())).size());
+
+        Files.delete(temporary.resolve("blocked"));
+        Files.delete(temporary);
+        unblockShards(folder);
+
+        assertEquals(List.of("Unreplayed", member.toString()), database.run(WriteAheadLogTest.class,
+                "find", unreplayed.toString(), "members", team.toString()));
+    }
+
+    @Test
+    public void append_FromConcurrentCommitters_ShouldRecoverEveryCommit() throws Exception {
+        List<String> committed = database.run(WriteAheadLogTest.class, "block-shards", shardedFolder.toString(), "save-concurrently");
+        repair(null);
+
+        assertEquals(400, committed.size());
+        Path ids = database.path("ids");
+        Files.write(ids, committed);
+        assertEquals(List.of(), database.run(WriteAheadLogTest.class, "missing", ids.toString()));
+    }
+
+    @Test
+    public void save_WhenApplyFailsAfterCommit_ShouldKeepPreviousRecordAndApplyChangeWithNextWrite() throws IOException {
+        UUID uuid = UUID.randomUUID();
+        String name = uuid.toString();
+        Path folder = Path.of("db-test/person-sharded");
+        Path shard = folder.resolve(name.substring(0, 2));
+        Path flat = folder.resolve(name + ".json");
+        ObjectCollection<ShardedPerson> persons = ObjectCollectionRegistry.getCollection(ShardedPerson.class);
+
+        persons.save(new ShardedPerson(uuid, "Before", 20));
+        Files.move(shard.resolve(name.substring(2, 4)).resolve(name + ".json"), flat);
+        Files.delete(shard.resolve(name.substring(2, 4)));
+        Files.delete(shard);
+        Files.createFile(shard);
+
+        assertThrows(CouldNotPersistObjectException.class, () -> persons.save(new ShardedPerson(uuid, "After", 21)));
+        assertTrue(Files.exists(flat));
+        assertEquals("Before", persons.findById(uuid).get().getName());
+
+        Files.delete(shard);
+        persons.save(new ShardedPerson(uuid, "After", 21));
+
+        assertEquals("After", persons.findById(uuid).get().getName());
+    }
+
+    @Test
+    public void save_WithWalRoot_ShouldPlaceLogInThatRoot() throws Exception {
+        database.run(WriteAheadLogTest.class, "save-other");
+
+        assertTrue(Files.exists(log()));
+        assertFalse(Files.exists(database.path("wal.log")));
+    }
+
+    /**
+     * Runs the steps given as arguments on the database of the test configuration and halts, the
+     * outcome of a step is printed: applied or unapplied for changes, the name or missing for
+     * find, the size of a file, the member ids of a team and the ids missing from a file of ids.
+     */
+    public static void main(String[] args) throws Exception {
+        // opened on first use, replaying into person-sharded fails while its shards are blocked
+        Iterator<String> steps = List.of(args).iterator();
+
+        while (steps.hasNext()) {
+            switch (steps.next()) {
+                case "save" -> {
+                    ShardedPerson person = new ShardedPerson(UUID.fromString(steps.next()), steps.next(), 20);
+                    System.out.println(outcome(() -> persons().save(person)));
+                }
+                case "delete" -> {
+                    UUID id = UUID.fromString(steps.next());
+                    System.out.println(outcome(() -> persons().deleteById(id)));
+                }
+                case "find" -> System.out.println(persons().findById(UUID.fromString(steps.next())).map(ShardedPerson::getName).orElse("missing"));
+                case "team" -> {
+                    VersionedTeam team = new VersionedTeam(UUID.fromString(steps.next()), "Team",
+                            List.of(new VersionedPerson(UUID.fromString(steps.next()), "Member")));
+                    System.out.println(outcome(() -> ObjectCollectionRegistry.getCollection(VersionedTeam.class).save(team)));
+                }
+                case "members" -> ObjectCollectionRegistry.getCollection(VersionedTeam.class).findById(UUID.fromString(steps.next()))
+                        .orElseThrow().getMembers().forEach(member -> System.out.println(member.getId()));
+                case "save-other" -> ObjectCollectionRegistry.getCollection(WalPerson.class).save(new WalPerson(UUID.randomUUID(), "Other", 20));
+                case "size" -> System.out.println(Files.size(Path.of(steps.next())));
+                case "block-shards" -> blockShards(Path.of(steps.next()));
+                case "block-record" -> {
+                    Path record = record(Path.of(steps.next()), UUID.fromString(steps.next()));
+                    Files.move(record, record.resolveSibling(record.getFileName() + ".aside"));
+                    Files.createDirectories(record.resolve("blocked"));
+                }
+                case "save-concurrently" -> saveConcurrently(persons());
+                case "missing" -> {
+                    for (String id : Files.readAllLines(Path.of(steps.next()))) {
+                        if (!persons().existsById(UUID.fromString(id))) System.out.println(id);
+                    }
+                }
+                default -> throw new IllegalArgumentException("Unknown step");
+            }
+        }
+        System.out.flush();
+        Runtime.getRuntime().halt(0);
+    }
+
+    private static ObjectCollection<ShardedPerson> persons() {
+        return ObjectCollectionRegistry.getCollection(ShardedPerson.class);
+    }
+
+    private static String outcome(Change change) throws IOException {
+        try {
+            change.apply();
+            return "applied";
+        } catch (CouldNotPersistObjectException e) {
+            return "unapplied";
+        }
+    }
+
+    private interface Change {
+        void apply() throws IOException;
+    }
+
+    /**
+     * prints the ids of the saves that were committed
+     */
+    private static void saveConcurrently(ObjectCollection<ShardedPerson> persons) throws InterruptedException {
+        List<Thread> committers = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            Thread committer = new Thread(() -> {
+                for (int j = 0; j < 50; j++) {
+                    UUID id = UUID.randomUUID();
+                    try {
+                        persons.save(new ShardedPerson(id, "Test" + j, j));
+                    } catch (CouldNotPersistObjectException e) {
+                        System.out.println(id);
+                    }
+                }
+            });
+            committers.add(committer);
+            committer.start();
+        }
+        for (Thread committer : committers) committer.join();
+    }
+
+    /**
+     * replaces every shard folder that does not exist yet by a file
+     */
+    private static void blockShards(Path folder) throws IOException {
+        Files.createDirectories(folder);
+        for (int shard = 0; shard < 256; shard++) {
+            Path path = folder.resolve(String.format("%02x", shard));
+            if (Files.notExists(path)) Files.createFile(path);
+        }
+    }
+
+    private static void unblockShards(Path folder) throws IOException {
+        try (Stream<Path> paths = Files.list(folder)) {
+            for (Path path : paths.filter(Files::isRegularFile).filter(path -> path.getFileName().toString().length() == 2).toList()) {
+                Files.delete(path);
+            }
+        }
+    }
+
+    private static Path record(Path folder, UUID id) {
+        String name = id.toString();
+        return folder.resolve(name.substring(0, 2)).resolve(name.substring(2, 4)).resolve(name + ".json");
+    }
+
+    /**
+     * removes what blocked the files of person-sharded, the blocked record of the given id is put
+     * back as it was before the crash
+     */
+    private void repair(UUID blockedRecord) throws IOException {
+        unblockShards(shardedFolder);
+        if (blockedRecord == null) return;
+        Path record = record(shardedFolder, blockedRecord);
+        Files.delete(record.resolve("blocked"));
+        Files.delete(record);
+        Files.move(record.resolveSibling(record.getFileName() + ".aside"), record);
+    }
+
+    private UUID idInOtherShard(UUID id) {
+        UUID other = UUID.randomUUID();
+        while (other.toString().substring(0, 2).equals(id.toString().substring(0, 2))) other = UUID.randomUUID();
+        return other;
+    }
+
+    private Path log() {
+        return database.root("second", "wal.log");
+    }
+}
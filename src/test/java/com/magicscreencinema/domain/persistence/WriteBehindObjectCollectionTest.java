@@ -0,0 +1,156 @@
+package com.magicscreencinema.domain.persistence;
+
+import com.magicscreencinema.domain.persistence.testmodel.BackgroundWriteBehindPerson;
+import com.magicscreencinema.domain.persistence.testmodel.WriteBehindIndexedPerson;
+import com.magicscreencinema.persistence.BatchResult;
+import com.magicscreencinema.persistence.Condition;
+import com.magicscreencinema.persistence.ObjectCollection;
+import com.magicscreencinema.persistence.ObjectCollectionRegistry;
+import com.magicscreencinema.persistence.exception.UniqueConstraintViolationException;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class WriteBehindObjectCollectionTest {
+    private final ObjectCollection<WriteBehindIndexedPerson> persons = ObjectCollectionRegistry.getCollection(WriteBehindIndexedPerson.class);
+
+    @Test
+    public void flush_WithRejectedObject_ShouldReportItAndDropItAfterMaxAttempts() {
+        String email = UUID.randomUUID() + "@mail.com";
+        WriteBehindIndexedPerson first = new WriteBehindIndexedPerson(UUID.randomUUID(), email);
+        WriteBehindIndexedPerson second = new WriteBehindIndexedPerson(UUID.randomUUID(), email);
+
+        persons.save(first);
+        flush();
+        persons.save(second);
+
+        assertTrue(result(flush(), second.getId()).failed());
+        assertFalse(Files.exists(file(second.getId())));
+        assertTrue(persons.existsById(second.getId()));
+        assertTrue(result(flush(), second.getId()).error() instanceof UniqueConstraintViolationException);
+        assertFalse(persons.existsById(second.getId()));
+        assertTrue(persons.findById(second.getId()).isEmpty());
+        assertTrue(flush().stream().noneMatch(result -> result.id().equals(second.getId())));
+
+        second.setEmail(UUID.randomUUID() + "@mail.com");
+        persons.save(second);
+
+        assertTrue(result(flush(), second.getId()).applied());
+        assertTrue(Files.exists(file(second.getId())));
+        assertTrue(flush().stream().noneMatch(result -> result.id().equals(second.getId())));
+    }
+
+    /**
+     * person-write-behind-background is flushed every 20 ms and gives up after two attempts
+     */
+    @Test
+    public void flush_AfterBackgroundFlushDroppedObject_ShouldReportItOnce() throws InterruptedException {
+        ObjectCollection<BackgroundWriteBehindPerson> background = ObjectCollectionRegistry.getCollection(BackgroundWriteBehindPerson.class);
+        String email = UUID.randomUUID() + "@mail.com";
+        BackgroundWriteBehindPerson first = new BackgroundWriteBehindPerson(UUID.randomUUID(), email);
+        BackgroundWriteBehindPerson second = new BackgroundWriteBehindPerson(UUID.randomUUID(), email);
+
+        background.save(first);
+        ObjectCollectionRegistry.flush(BackgroundWriteBehindPerson.class);
+        background.save(second);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (background.existsById(second.getId()) && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+
+        assertFalse(background.existsById(second.getId()));
+        assertTrue(result(ObjectCollectionRegistry.flush(BackgroundWriteBehindPerson.class), second.getId()).failed());
+        assertTrue(ObjectCollectionRegistry.flush(BackgroundWriteBehindPerson.class).stream()
+                .noneMatch(result -> result.id().equals(second.getId())));
+    }
+
+    @Test
+    public void saveAll_ShouldWriteThroughAndReportWhatWasWritten() {
+        String email = UUID.randomUUID() + "@mail.com";
+        WriteBehindIndexedPerson first = new WriteBehindIndexedPerson(UUID.randomUUID(), email);
+        WriteBehindIndexedPerson duplicate = new WriteBehindIndexedPerson(UUID.randomUUID(), email);
+        WriteBehindIndexedPerson other = new WriteBehindIndexedPerson(UUID.randomUUID(), UUID.randomUUID() + "@mail.com");
+
+        persons.save(first);
+        flush();
+        List<BatchResult> results = persons.saveAll(List.of(duplicate, other));
+
+        assertTrue(results.get(0).failed());
+        assertTrue(results.get(1).applied());
+        assertFalse(Files.exists(file(duplicate.getId())));
+        assertTrue(Files.exists(file(other.getId())));
+    }
+
+    @Test
+    public void findById_WithDirtyObject_ShouldReturnCopyOfIt() {
+        String email = UUID.randomUUID() + "@mail.com";
+        WriteBehindIndexedPerson person = new WriteBehindIndexedPerson(UUID.randomUUID(), email);
+
+        persons.save(person);
+        WriteBehindIndexedPerson found = persons.findById(person.getId()).get();
+        found.setEmail("changed@mail.com");
+
+        assertNotSame(person, found);
+        assertEquals(email, person.getEmail());
+        assertEquals(email, persons.findById(person.getId()).get().getEmail());
+        assertFalse(Files.exists(file(person.getId())));
+    }
+
+    @Test
+    public void save_ThenChangingObject_ShouldWriteObjectAsItWasSaved() {
+        String email = UUID.randomUUID() + "@mail.com";
+        WriteBehindIndexedPerson person = new WriteBehindIndexedPerson(UUID.randomUUID(), email);
+
+        persons.save(person);
+        person.setEmail("changed@mail.com");
+        flush();
+
+        assertEquals(email, persons.findById(person.getId()).get().getEmail());
+        assertEquals(List.of(person.getId()), persons.findBy("email", email).stream().map(WriteBehindIndexedPerson::getId).toList());
+    }
+
+    @Test
+    public void reads_WithDirtyObjects_ShouldSeeThemWithoutWritingThem() {
+        String email = UUID.randomUUID() + "@mail.com";
+        String changed = UUID.randomUUID() + "@mail.com";
+        String addedEmail = UUID.randomUUID() + "@mail.com";
+        WriteBehindIndexedPerson stored = new WriteBehindIndexedPerson(UUID.randomUUID(), email);
+        WriteBehindIndexedPerson added = new WriteBehindIndexedPerson(UUID.randomUUID(), addedEmail);
+
+        persons.save(stored);
+        flush();
+        long count = persons.count();
+        stored.setEmail(changed);
+        persons.save(stored);
+        persons.save(added);
+
+        assertEquals(count + 1, persons.count());
+        assertTrue(persons.findBy("email", email).isEmpty());
+        assertEquals(List.of(stored.getId()), ids(persons.findBy("email", changed)));
+        assertEquals(List.of(added.getId()), ids(persons.query().where("email", Condition.eq(addedEmail)).list()));
+        assertTrue(persons.findAllIds().contains(added.getId()));
+        assertEquals(persons.findAllIds(), ids(persons.findAll()));
+        assertFalse(Files.exists(file(added.getId())));
+    }
+
+    private List<BatchResult> flush() {
+        return ObjectCollectionRegistry.flush(WriteBehindIndexedPerson.class);
+    }
+
+    private List<UUID> ids(List<WriteBehindIndexedPerson> found) {
+        return found.stream().map(WriteBehindIndexedPerson::getId).toList();
+    }
+
+    private BatchResult result(List<BatchResult> results, UUID id) {
+        return results.stream().filter(result -> result.id().equals(id)).findFirst().orElseThrow();
+    }
+
+    private Path file(UUID id) {
+        return Path.of("db-test/person-write-behind-indexed", id + ".json");
+    }
+}
@@ -0,0 +1,64 @@
+package com.magicscreencinema.domain.persistence.testmodel;
+
+import com.magicscreencinema.persistence.declaration.ElementCollection;
+import com.magicscreencinema.persistence.declaration.Id;
+
+import java.time.DayOfWeek;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+@ElementCollection(name = "person-binary")
+public class BinaryPerson {
+    @Id
+    private UUID id;
+    private String name;
+    private int age;
+    private double height;
+    private List<DayOfWeek> days;
+    private LocalDate birthDate;
+    private LocalDateTime registeredAt;
+
+    public BinaryPerson(UUID id, String name, int age, double height, List<DayOfWeek> days,
+                        LocalDate birthDate, LocalDateTime registeredAt) {
+        this.id = id;
+        this.name = name;
+        this.age = age;
+        this.height = height;
+        this.days = days;
+        this.birthDate = birthDate;
+        this.registeredAt = registeredAt;
+    }
+
+    BinaryPerson() {
+    }
+
+    public UUID getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getAge() {
+        return age;
+    }
+
+    public double getHeight() {
+        return height;
+    }
+
+    public List<DayOfWeek> getDays() {
+        return days;
+    }
+
+    public LocalDate getBirthDate() {
+        return birthDate;
+    }
+
+    public LocalDateTime getRegisteredAt() {
+        return registeredAt;
+    }
+}
@@ -0,0 +1,35 @@
+package com.magicscreencinema.domain.persistence.testmodel;
+
+import com.magicscreencinema.persistence.declaration.ElementCollection;
+import com.magicscreencinema.persistence.declaration.Id;
+
+import java.util.UUID;
+
+@ElementCollection(name = "person-cached")
+public class CachedPerson {
+    @Id
+    private UUID id;
+    private String name;
+    private int age;
+
+    public CachedPerson(UUID id, String name, int age) {
+        this.id = id;
+        this.name = name;
+        this.age = age;
+    }
+
+    CachedPerson() {
+    }
+
+    public UUID getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getAge() {
+        return age;
+    }
+}
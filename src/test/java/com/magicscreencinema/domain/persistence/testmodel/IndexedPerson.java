@@ -0,0 +1,65 @@
+package com.magicscreencinema.domain.persistence.testmodel;
+
+import com.magicscreencinema.persistence.declaration.ElementCollection;
+import com.magicscreencinema.persistence.declaration.Id;
+import com.magicscreencinema.persistence.declaration.Indexed;
+import com.magicscreencinema.persistence.declaration.RangeIndexed;
+
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+@ElementCollection(name = "person-indexed")
+public class IndexedPerson {
+    @Id
+    private UUID id;
+    @Indexed
+    private String name;
+    @Indexed(unique = true)
+    private String email;
+    @RangeIndexed
+    private LocalDateTime registeredAt;
+    @Indexed
+    private int rank;
+
+    public IndexedPerson(UUID id, String name, String email) {
+        this(id, name, email, null);
+    }
+
+    public IndexedPerson(UUID id, String name, String email, LocalDateTime registeredAt) {
+        this.id = id;
+        this.name = name;
+        this.email = email;
+        this.registeredAt = registeredAt;
+    }
+
+    IndexedPerson() {
+    }
+
+    public UUID getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public LocalDateTime getRegisteredAt() {
+        return registeredAt;
+    }
+
+    public void setEmail(String email) {
+        this.email = email;
+    }
+
+    public int getRank() {
+        return rank;
+    }
+
+    public void setRank(int rank) {
+        this.rank = rank;
+    }
+}
@@ -0,0 +1,32 @@
+package com.magicscreencinema.domain.persistence.testmodel;
+
+import com.magicscreencinema.domain.model.Reservation;
+import com.magicscreencinema.persistence.declaration.ElementCollection;
+import com.magicscreencinema.persistence.declaration.Id;
+import com.magicscreencinema.persistence.declaration.ManyToOne;
+
+import java.util.UUID;
+
+@ElementCollection(name = "reservation-note")
+public class ReservationNote {
+    @Id
+    private UUID id;
+    @ManyToOne
+    private Reservation reservation;
+
+    public ReservationNote(UUID id, Reservation reservation) {
+        this.id = id;
+        this.reservation = reservation;
+    }
+
+    ReservationNote() {
+    }
+
+    public UUID getId() {
+        return id;
+    }
+
+    public Reservation getReservation() {
+        return reservation;
+    }
+}
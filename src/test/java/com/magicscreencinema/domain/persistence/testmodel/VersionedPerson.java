@@ -0,0 +1,40 @@
+package com.magicscreencinema.domain.persistence.testmodel;
+
+import com.magicscreencinema.persistence.declaration.ElementCollection;
+import com.magicscreencinema.persistence.declaration.Id;
+import com.magicscreencinema.persistence.declaration.Version;
+
+import java.util.UUID;
+
+@ElementCollection(name = "person-versioned")
+public class VersionedPerson {
+    @Id
+    private UUID id;
+    private String name;
+    @Version
+    private long version;
+
+    public VersionedPerson(UUID id, String name) {
+        this.id = id;
+        this.name = name;
+    }
+
+    VersionedPerson() {
+    }
+
+    public UUID getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public void setName(String name) {
+        this.name = name;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+}
@@ -0,0 +1,43 @@
+package com.magicscreencinema.domain.persistence.testmodel;
+
+import com.magicscreencinema.persistence.declaration.Cascade;
+import com.magicscreencinema.persistence.declaration.ElementCollection;
+import com.magicscreencinema.persistence.declaration.Fetch;
+import com.magicscreencinema.persistence.declaration.Id;
+import com.magicscreencinema.persistence.declaration.ManyToMany;
+import com.magicscreencinema.persistence.declaration.Version;
+
+import java.util.List;
+import java.util.UUID;
+
+@ElementCollection(name = "team-versioned")
+public class VersionedTeam {
+    @Id
+    private UUID id;
+    private String name;
+    @ManyToMany(cascade = {Cascade.SAVE}, fetch = Fetch.EAGER)
+    private List<VersionedPerson> members;
+    @Version
+    private long version;
+
+    public VersionedTeam(UUID id, String name, List<VersionedPerson> members) {
+        this.id = id;
+        this.name = name;
+        this.members = members;
+    }
+
+    VersionedTeam() {
+    }
+
+    public UUID getId() {
+        return id;
+    }
+
+    public List<VersionedPerson> getMembers() {
+        return members;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+}
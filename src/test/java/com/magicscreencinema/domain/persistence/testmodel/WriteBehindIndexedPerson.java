@@ -0,0 +1,35 @@
+package com.magicscreencinema.domain.persistence.testmodel;
+
+import com.magicscreencinema.persistence.declaration.ElementCollection;
+import com.magicscreencinema.persistence.declaration.Id;
+import com.magicscreencinema.persistence.declaration.Indexed;
+
+import java.util.UUID;
+
+@ElementCollection(name = "person-write-behind-indexed")
+public class WriteBehindIndexedPerson {
+    @Id
+    private UUID id;
+    @Indexed(unique = true)
+    private String email;
+
+    public WriteBehindIndexedPerson(UUID id, String email) {
+        this.id = id;
+        this.email = email;
+    }
+
+    WriteBehindIndexedPerson() {
+    }
+
+    public UUID getId() {
+        return id;
+    }
+
+    public String getEmail() {
+        return email;
+    }
+
+    public void setEmail(String email) {
+        this.email = email;
+    }
+}